@@ -24,9 +24,14 @@ import android.support.annotation.RequiresPermission;
 import java.util.List;
 
 import is.hello.buruberi.bluetooth.errors.ChangePowerStateException;
+import is.hello.buruberi.bluetooth.errors.PeripheralNotFoundException;
 import is.hello.buruberi.bluetooth.errors.UserDisabledBuruberiException;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingDecoderRegistry;
 import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
 import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import is.hello.buruberi.bluetooth.stacks.util.PresenceEvent;
+import is.hello.buruberi.bluetooth.stacks.util.TelemetrySample;
 import rx.Observable;
 import rx.Scheduler;
 
@@ -56,6 +61,10 @@ public interface BluetoothStack {
     /**
      * Performs a scan for peripherals matching a given set of criteria.
      * <p>
+     * If the criteria specifies a {@link PeripheralCriteria#cacheTtl}, and matching
+     * peripherals were found by a scan within that many milliseconds, they will be
+     * emitted immediately, followed by the results of the new scan.
+     * <p>
      * Yields {@link UserDisabledBuruberiException} if
      * the device's Bluetooth radio is currently disabled.
      *
@@ -67,6 +76,104 @@ public interface BluetoothStack {
     })
     @NonNull Observable<List<GattPeripheral>> discoverPeripherals(@NonNull PeripheralCriteria peripheralCriteria);
 
+    /**
+     * Performs a scan for the first peripheral matching a given set of criteria, and
+     * connects to it as soon as its advertisement is received. The scan is stopped
+     * before the connection attempt begins. The limit of the criteria is ignored.
+     * <p>
+     * Yields {@link UserDisabledBuruberiException} if the device's Bluetooth radio is
+     * currently disabled, and {@link PeripheralNotFoundException} if no matching peripheral
+     * is found before the scan concludes. Otherwise behaves like
+     * {@link GattPeripheral#connect(int, OperationTimeout)}.
+     *
+     * @param peripheralCriteria    The criteria to scan with.
+     * @param flags                 The flags to connect with.
+     * @param timeout               The timeout to apply to the connection attempt.
+     * @see PeripheralCriteria
+     */
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    @NonNull Observable<GattPeripheral> scanAndConnect(@NonNull PeripheralCriteria peripheralCriteria,
+                                                       @GattPeripheral.ConnectFlags int flags,
+                                                       @NonNull OperationTimeout timeout);
+
+    /**
+     * Performs a scan for peripherals matching a given set of criteria, emitting each
+     * matching peripheral when it is first seen, and again each time the contents of
+     * its advertising data change. Advertisements that only differ in signal strength
+     * are not emitted. Completes when the scan concludes.
+     * <p>
+     * Intended for peripherals that broadcast readings in their advertising data.
+     * Peripherals may be emitted from the thread scan results are delivered on.
+     * <p>
+     * Concurrent observations share a single scan when their criteria only
+     * depend on individual advertisements.
+     * <p>
+     * Yields {@link UserDisabledBuruberiException} if
+     * the device's Bluetooth radio is currently disabled.
+     *
+     * @see AdvertisingData#hashScanRecord(byte[])
+     */
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    @NonNull Observable<GattPeripheral> observeAdvertisements(@NonNull PeripheralCriteria peripheralCriteria);
+
+    /**
+     * Monitors the presence of peripherals matching a given set of criteria until unsubscribed.
+     * <p>
+     * Scans are performed in successive windows of {@link PeripheralCriteria#duration},
+     * restarted no more often than the platform allows. After each window, a peripheral's
+     * signal strength is folded into a moving average. A {@link PresenceEvent.Type#ENTERED}
+     * event is emitted once that average reaches {@link PeripheralCriteria#enterRssi}. A
+     * {@link PresenceEvent.Type#EXITED} event is emitted once it falls below
+     * {@link PeripheralCriteria#exitRssi}, or the peripheral goes unseen for
+     * {@link PeripheralCriteria#exitTimeout}. The limit of the criteria is ignored.
+     * <p>
+     * Yields {@link UserDisabledBuruberiException} if the device's Bluetooth
+     * radio is disabled when the session starts, or when a window starts.
+     *
+     * @throws IllegalArgumentException if the criteria's duration is longer than a scan
+     *                                  may run without being downgraded by the platform.
+     * @see PeripheralCriteria#setPresenceThresholds(int, int)
+     */
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    @NonNull Observable<PresenceEvent> monitorPresence(@NonNull PeripheralCriteria peripheralCriteria);
+
+    /**
+     * Continuously scans for peripherals matching a given set of criteria until unsubscribed,
+     * decoding sensor readings broadcast in their advertising data without connecting to them.
+     * <p>
+     * Scans are performed in successive windows of {@link PeripheralCriteria#duration}, like
+     * {@link #monitorPresence(PeripheralCriteria)}. Each time the advertising data of a peripheral
+     * changes, it is decoded with {@code decoders}, and every decoded value becomes a sample.
+     * Samples are delivered in batches every {@code batchInterval} milliseconds; no batch is
+     * delivered for an interval without samples. The limit of the criteria is ignored.
+     * <p>
+     * Yields {@link UserDisabledBuruberiException} if the device's Bluetooth
+     * radio is disabled when ingestion starts, or when a window starts.
+     *
+     * @param peripheralCriteria    The criteria to scan with.
+     * @param decoders              The decoders to decode advertising data with.
+     * @param batchInterval         How often to deliver samples, in milliseconds.
+     * @throws IllegalArgumentException if the criteria's duration is longer than a scan
+     *                                  may run without being downgraded by the platform,
+     *                                  or if the batch interval is not positive.
+     */
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    @NonNull Observable<List<TelemetrySample>> ingestTelemetry(@NonNull PeripheralCriteria peripheralCriteria,
+                                                               @NonNull AdvertisingDecoderRegistry decoders,
+                                                               long batchInterval);
+
     /**
      * Returns the RxJava {@code Scheduler} used for all stack operations.
      */
@@ -79,6 +186,19 @@ public interface BluetoothStack {
      */
     <T> Observable<T> newConfiguredObservable(@NonNull Observable.OnSubscribe<T> onSubscribe);
 
+    /**
+     * Limits how many GATT operations may be in flight across all peripherals vended by the
+     * stack. Once the limit is reached, further operations wait their turn, and are started
+     * in rotation between peripherals as operations complete. Connection attempts are not
+     * counted, as a connection attempt may wait for a peripheral indefinitely.
+     * <p>
+     * Defaults to {@code 0}, which places no limit on operations.
+     *
+     * @param maximumConcurrentOperations   The number of operations allowed in flight.
+     * @throws IllegalArgumentException if the limit is negative.
+     */
+    void setMaximumConcurrentOperations(int maximumConcurrentOperations);
+
     /**
      * Returns an observable that will continuously report the power state
      * of the device's bluetooth radio.
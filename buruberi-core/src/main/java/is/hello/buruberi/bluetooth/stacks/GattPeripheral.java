@@ -40,6 +40,7 @@ import is.hello.buruberi.bluetooth.errors.ServiceDiscoveryException;
 import is.hello.buruberi.bluetooth.stacks.android.BluetoothDeviceCompat;
 import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
 import is.hello.buruberi.util.NonGuaranteed;
+import is.hello.buruberi.util.Operation;
 import rx.Observable;
 
 /**
@@ -79,6 +80,28 @@ public interface GattPeripheral extends Comparable<GattPeripheral> {
      */
     String ACTION_DISCONNECTED = GattPeripheral.class.getName() + ".ACTION_DISCONNECTED";
 
+    /**
+     * A local broadcast that informs interested listeners that a {@code GattPeripheral}
+     * has applied its {@link IdlePolicy}, or has resumed activity after doing so.
+     *
+     * @see #EXTRA_NAME
+     * @see #EXTRA_ADDRESS
+     * @see #EXTRA_IDLE_TRANSITION
+     */
+    String ACTION_IDLE_TRANSITION = GattPeripheral.class.getName() + ".ACTION_IDLE_TRANSITION";
+
+    /**
+     * The transition of an {@link #ACTION_IDLE_TRANSITION} broadcast. Either the name
+     * of the {@link IdlePolicy.Action} that was taken, or {@link #IDLE_TRANSITION_ACTIVE}.
+     */
+    String EXTRA_IDLE_TRANSITION = GattPeripheral.class.getName() + ".EXTRA_IDLE_TRANSITION";
+
+    /**
+     * Indicates that an operation was performed on a peripheral after
+     * its {@link IdlePolicy.Action#LOWER_PRIORITY} policy was applied.
+     */
+    String IDLE_TRANSITION_ACTIVE = "ACTIVE";
+
     /**
      * The name of the affected {@code GattPeripheral}.
      *
@@ -195,7 +218,7 @@ public interface GattPeripheral extends Comparable<GattPeripheral> {
      * Corresponds to {@link BluetoothDeviceCompat#TRANSPORT_AUTO}.
      * It is undefined behavior to include more than one transport flag.
      * <p>
-     * Only applies to devices on API level 23 (Marshmallow) or later.
+     * Only applies to devices on API level 21 (Lollipop) or later.
      */
     int CONNECT_FLAG_TRANSPORT_AUTO = (1 << 2);
 
@@ -203,7 +226,7 @@ public interface GattPeripheral extends Comparable<GattPeripheral> {
      * Corresponds to {@link BluetoothDeviceCompat#TRANSPORT_BREDR}.
      * It is undefined behavior to include more than one transport flag.
      * <p>
-     * Only applies to devices on API level 23 (Marshmallow) or later.
+     * Only applies to devices on API level 21 (Lollipop) or later.
      */
     int CONNECT_FLAG_TRANSPORT_BREDR = (1 << 3);
 
@@ -211,10 +234,39 @@ public interface GattPeripheral extends Comparable<GattPeripheral> {
      * Corresponds to {@link BluetoothDeviceCompat#TRANSPORT_LE}.
      * It is undefined behavior to include more than one transport flag.
      * <p>
-     * Only applies to devices on API level 23 (Marshmallow) or later.
+     * Only applies to devices on API level 21 (Lollipop) or later.
      */
     int CONNECT_FLAG_TRANSPORT_LE = (1 << 4);
 
+    /**
+     * If set, the connection will be restored automatically after the user
+     * power cycles the Bluetooth radio. Restoring a connection includes service
+     * discovery if services had been discovered, and re-enabling any notifications
+     * that were enabled at the time the radio was turned off, along with their
+     * packet listeners.
+     * <p>
+     * Calling {@link #disconnect()} stops the peripheral from being restored.
+     */
+    int CONNECT_FLAG_RESTORE = (1 << 5);
+
+    /**
+     * If set, connect will attempt a direct connection first, and fall back to waiting
+     * for the remote device to become available if a connection is not established
+     * within a few seconds. Takes precedence over {@link #CONNECT_FLAG_WAIT_AVAILABLE}.
+     * <p>
+     * Direct connections are established quickly when the remote device is in range,
+     * while waiting for the device to become available ensures a connection is
+     * eventually established when it is not.
+     */
+    int CONNECT_FLAG_DIRECT_FIRST = (1 << 6);
+
+    /**
+     * If set, the remote device will be scanned for while connect is waiting for it to
+     * become available, and a direct connection will be attempted as soon as it is seen.
+     * Only applies when connect is waiting for the remote device to become available.
+     */
+    int CONNECT_FLAG_SCAN_WHILE_WAITING = (1 << 7);
+
     /**
      * The recommended default flags to use with gatt connections.
      */
@@ -228,6 +280,9 @@ public interface GattPeripheral extends Comparable<GattPeripheral> {
      * @see #CONNECT_FLAG_TRANSPORT_AUTO
      * @see #CONNECT_FLAG_TRANSPORT_BREDR
      * @see #CONNECT_FLAG_TRANSPORT_LE
+     * @see #CONNECT_FLAG_RESTORE
+     * @see #CONNECT_FLAG_DIRECT_FIRST
+     * @see #CONNECT_FLAG_SCAN_WHILE_WAITING
      * @see #CONNECT_FLAG_DEFAULTS
      */
     @Target({
@@ -244,6 +299,9 @@ public interface GattPeripheral extends Comparable<GattPeripheral> {
                     CONNECT_FLAG_TRANSPORT_AUTO,
                     CONNECT_FLAG_TRANSPORT_BREDR,
                     CONNECT_FLAG_TRANSPORT_LE,
+                    CONNECT_FLAG_RESTORE,
+                    CONNECT_FLAG_DIRECT_FIRST,
+                    CONNECT_FLAG_SCAN_WHILE_WAITING,
                     CONNECT_FLAG_DEFAULTS,
             })
     @interface ConnectFlags {}
@@ -314,6 +372,25 @@ public interface GattPeripheral extends Comparable<GattPeripheral> {
                                                      long duration,
                                                      @NonNull TimeUnit timeUnit);
 
+    /**
+     * Returns a new {@link OperationTimeout} whose duration adapts to how quickly the
+     * {@code GattPeripheral} has previously completed a given operation.
+     * <p>
+     * The duration is a high percentile of the recorded latencies of the operation multiplied
+     * by a safety factor, so stuck operations fail quickly, and slow but healthy peripherals
+     * are not cut off. Only the latencies of successful operations are recorded. The maximum
+     * duration is used until enough latencies have been recorded.
+     *
+     * @param operation The operation the timeout will be used with.
+     * @param maximumDuration The longest amount of time to elapse before the timeout expires.
+     * @param timeUnit The time unit of the {@code maximumDuration}.
+     * @return A new {@link OperationTimeout}
+     */
+    @CheckResult
+    @NonNull OperationTimeout createAdaptiveOperationTimeout(@NonNull Operation operation,
+                                                             long maximumDuration,
+                                                             @NonNull TimeUnit timeUnit);
+
     //endregion
 
 
@@ -363,6 +440,20 @@ public interface GattPeripheral extends Comparable<GattPeripheral> {
     @CheckResult
     @ConnectivityStatus int getConnectionStatus();
 
+    /**
+     * Sets the policy to apply when the connection of the peripheral goes unused.
+     * The policy takes effect the next time the peripheral connects. Pass
+     * {@code null} to keep connections open indefinitely, the default.
+     */
+    void setIdlePolicy(@Nullable IdlePolicy idlePolicy);
+
+    /**
+     * Sets the policy to apply when an operation performed on the peripheral fails.
+     * The policy takes effect immediately. Pass {@code null} to never retry failed
+     * operations, the default.
+     */
+    void setRetryPolicy(@Nullable RetryPolicy retryPolicy);
+
     //endregion
 
 
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.UUID;
+
+/**
+ * Describes what a {@link GattPeripheral} should do with its connection
+ * after a period of time passes without any operations being performed.
+ * <p>
+ * Each transition is reported through the {@link GattPeripheral#ACTION_IDLE_TRANSITION}
+ * local broadcast, so clients can tell when a connection was preserved and when
+ * it will need to be re-established.
+ *
+ * @see GattPeripheral#setIdlePolicy(IdlePolicy)
+ */
+public final class IdlePolicy {
+    /**
+     * The actions a peripheral can take once its connection becomes idle.
+     */
+    public enum Action {
+        /**
+         * Requests the low power connection priority, and restores the balanced
+         * connection priority when the next operation is performed. Only supported
+         * starting in API level 21, Android Lollipop; does nothing on older versions.
+         */
+        LOWER_PRIORITY,
+
+        /**
+         * Reads a characteristic after every idle period, keeping the link in use so
+         * that neither the phone nor the peripheral's supervision timeout drops it.
+         * Requires services to have been discovered.
+         */
+        KEEP_ALIVE,
+
+        /**
+         * Disconnects from the peripheral, releasing its client handle.
+         */
+        DISCONNECT,
+    }
+
+    /**
+     * How long a connection may go without operations before it is considered idle.
+     */
+    public final long idleTimeout;
+
+    /**
+     * What to do once the connection becomes idle.
+     */
+    public final @NonNull Action action;
+
+    /**
+     * The service containing the characteristic to read for {@link Action#KEEP_ALIVE}.
+     */
+    public final @Nullable UUID keepAliveService;
+
+    /**
+     * The characteristic to read for {@link Action#KEEP_ALIVE}.
+     */
+    public final @Nullable UUID keepAliveCharacteristic;
+
+    private IdlePolicy(long idleTimeout,
+                       @NonNull Action action,
+                       @Nullable UUID keepAliveService,
+                       @Nullable UUID keepAliveCharacteristic) {
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("idleTimeout must be positive");
+        }
+
+        this.idleTimeout = idleTimeout;
+        this.action = action;
+        this.keepAliveService = keepAliveService;
+        this.keepAliveCharacteristic = keepAliveCharacteristic;
+    }
+
+    /**
+     * Creates a policy that requests the low power connection priority while idle.
+     *
+     * @param idleTimeout How long the connection may go without operations, in milliseconds.
+     */
+    public static IdlePolicy lowerPriority(long idleTimeout) {
+        return new IdlePolicy(idleTimeout, Action.LOWER_PRIORITY, null, null);
+    }
+
+    /**
+     * Creates a policy that reads a given characteristic every time the connection is idle.
+     *
+     * @param idleTimeout       How long the connection may go without operations, in milliseconds.
+     * @param service           The service containing the characteristic.
+     * @param characteristic    The characteristic to read. Must be readable.
+     */
+    public static IdlePolicy keepAlive(long idleTimeout,
+                                       @NonNull UUID service,
+                                       @NonNull UUID characteristic) {
+        return new IdlePolicy(idleTimeout, Action.KEEP_ALIVE, service, characteristic);
+    }
+
+    /**
+     * Creates a policy that disconnects from the peripheral once the connection is idle.
+     *
+     * @param idleTimeout How long the connection may go without operations, in milliseconds.
+     */
+    public static IdlePolicy disconnect(long idleTimeout) {
+        return new IdlePolicy(idleTimeout, Action.DISCONNECT, null, null);
+    }
+
+    @Override
+    public String toString() {
+        return "IdlePolicy{" +
+                "idleTimeout=" + idleTimeout +
+                ", action=" + action +
+                '}';
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks;
+
+import android.support.annotation.NonNull;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import is.hello.buruberi.bluetooth.errors.GattException;
+import is.hello.buruberi.util.Operation;
+
+/**
+ * Describes which failed operations a {@link GattPeripheral} should retry, and how.
+ * <p>
+ * An operation is retried when it fails with a {@link GattException} whose status has
+ * a rule for the operation. Retries are delayed by an exponential backoff with jitter,
+ * and limited both per operation and by a budget shared by all of a peripheral's
+ * operations. Retries keep the operation's place in the peripheral's queue, so no
+ * other operation is performed between attempts.
+ *
+ * @see GattPeripheral#setRetryPolicy(RetryPolicy)
+ */
+public final class RetryPolicy {
+    /**
+     * The default number of times a single operation may be retried. 2 retries.
+     */
+    public static final int DEFAULT_MAXIMUM_RETRIES = 2;
+
+    /**
+     * The default delay before the first retry. 100 milliseconds.
+     */
+    public static final long DEFAULT_BASE_DELAY = 100;
+
+    /**
+     * The default longest delay before a retry. 2 seconds.
+     */
+    public static final long DEFAULT_MAXIMUM_DELAY = 2 * 1000;
+
+    /**
+     * The default fraction of each delay that is randomized. 50%.
+     */
+    public static final float DEFAULT_JITTER = 0.5f;
+
+    /**
+     * The default number of retries a peripheral may perform within a budget window. 10 retries.
+     */
+    public static final int DEFAULT_BUDGET = 10;
+
+    /**
+     * The default budget window. 1 minute.
+     */
+    public static final long DEFAULT_BUDGET_WINDOW = 60 * 1000;
+
+    /**
+     * The statuses to retry for each operation. Operations
+     * without an entry in this map are never retried.
+     */
+    public final Map<Operation, Set<Integer>> rules = new EnumMap<>(Operation.class);
+
+    /**
+     * The number of times a single operation may be retried.
+     */
+    public int maximumRetries = DEFAULT_MAXIMUM_RETRIES;
+
+    /**
+     * The delay before the first retry, in milliseconds. Doubles with each following retry.
+     */
+    public long baseDelay = DEFAULT_BASE_DELAY;
+
+    /**
+     * The longest delay before a retry, in milliseconds.
+     */
+    public long maximumDelay = DEFAULT_MAXIMUM_DELAY;
+
+    /**
+     * The fraction of each delay that is randomized, from {@code 0.0} to {@code 1.0}.
+     */
+    public float jitter = DEFAULT_JITTER;
+
+    /**
+     * The number of retries a peripheral may perform within {@link #budgetWindow}.
+     */
+    public int budget = DEFAULT_BUDGET;
+
+    /**
+     * The window the {@link #budget} applies to, in milliseconds.
+     */
+    public long budgetWindow = DEFAULT_BUDGET_WINDOW;
+
+    /**
+     * Returns a policy that retries reads, writes, service discovery, and notification
+     * changes that fail with {@link GattException#GATT_BUSY}, {@link GattException#GATT_STACK_ERROR},
+     * or {@link GattException#GATT_CONN_TIMEOUT}.
+     */
+    public static @NonNull RetryPolicy forTransientErrors() {
+        final int[] statuses = {
+                GattException.GATT_BUSY,
+                GattException.GATT_STACK_ERROR,
+                GattException.GATT_CONN_TIMEOUT,
+        };
+        return new RetryPolicy()
+                .addRule(Operation.READ, statuses)
+                .addRule(Operation.WRITE_COMMAND, statuses)
+                .addRule(Operation.DISCOVER_SERVICES, statuses)
+                .addRule(Operation.ENABLE_NOTIFICATION, statuses)
+                .addRule(Operation.DISABLE_NOTIFICATION, statuses);
+    }
+
+
+    //region Builder
+
+    /**
+     * Adds statuses to retry a given operation for.
+     */
+    public RetryPolicy addRule(@NonNull Operation operation, int... statuses) {
+        Set<Integer> operationStatuses = rules.get(operation);
+        if (operationStatuses == null) {
+            operationStatuses = new HashSet<>();
+            rules.put(operation, operationStatuses);
+        }
+        for (final int status : statuses) {
+            operationStatuses.add(status);
+        }
+        return this;
+    }
+
+    /**
+     * Sets the number of times a single operation may be retried.
+     *
+     * @see #DEFAULT_MAXIMUM_RETRIES
+     */
+    public RetryPolicy setMaximumRetries(int maximumRetries) {
+        this.maximumRetries = maximumRetries;
+        return this;
+    }
+
+    /**
+     * Sets the delay before the first retry, and the longest delay before a retry.
+     *
+     * @see #DEFAULT_BASE_DELAY
+     * @see #DEFAULT_MAXIMUM_DELAY
+     */
+    public RetryPolicy setBackoff(long baseDelay, long maximumDelay) {
+        this.baseDelay = baseDelay;
+        this.maximumDelay = maximumDelay;
+        return this;
+    }
+
+    /**
+     * Sets the fraction of each delay that is randomized.
+     *
+     * @see #DEFAULT_JITTER
+     */
+    public RetryPolicy setJitter(float jitter) {
+        if (jitter < 0f || jitter > 1f) {
+            throw new IllegalArgumentException("jitter must be between 0.0 and 1.0");
+        }
+
+        this.jitter = jitter;
+        return this;
+    }
+
+    /**
+     * Sets the number of retries a peripheral may perform within a given window.
+     *
+     * @see #DEFAULT_BUDGET
+     * @see #DEFAULT_BUDGET_WINDOW
+     */
+    public RetryPolicy setBudget(int budget, long budgetWindow) {
+        this.budget = budget;
+        this.budgetWindow = budgetWindow;
+        return this;
+    }
+
+    //endregion
+
+
+    //region Evaluation
+
+    /**
+     * Returns whether or not a given error has a rule for a given operation.
+     */
+    public boolean isRetryable(@NonNull Operation operation, @NonNull Throwable e) {
+        if (!(e instanceof GattException)) {
+            return false;
+        }
+
+        final Set<Integer> statuses = rules.get(operation);
+        return (statuses != null && statuses.contains(((GattException) e).statusCode));
+    }
+
+    /**
+     * Returns the delay before a given retry.
+     *
+     * @param retry     The retry, starting at {@code 1}.
+     * @param random    A random value from {@code 0.0} to {@code 1.0}.
+     * @return The delay in milliseconds.
+     */
+    public long getDelay(int retry, float random) {
+        final long delay = Math.min(maximumDelay, baseDelay << Math.min(retry - 1, 16));
+        return delay - (long) (delay * jitter * random);
+    }
+
+    //endregion
+
+
+    @Override
+    public String toString() {
+        return "RetryPolicy{" +
+                "rules=" + rules +
+                ", maximumRetries=" + maximumRetries +
+                ", baseDelay=" + baseDelay +
+                ", maximumDelay=" + maximumDelay +
+                ", jitter=" + jitter +
+                ", budget=" + budget +
+                ", budgetWindow=" + budgetWindow +
+                '}';
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.util.Operation;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action0;
+
+/**
+ * An {@link OperationTimeout} whose duration is derived from how quickly a device has
+ * previously completed an operation. Each time the timeout is scheduled, its duration
+ * is recalculated from the device's {@link LatencyHistory}, bounded by a minimum of
+ * {@link #MINIMUM_DURATION_MS} and a given maximum. The maximum is used until enough
+ * latencies have been recorded.
+ * <p>
+ * The time between scheduling and unscheduling the timeout is recorded as a latency
+ * once the operation is reported to have succeeded by {@link #recordSuccess()}, so
+ * that fast failures do not shrink the deadline. Expirations are not recorded: they
+ * only show that an operation took at least as long as the deadline, and recording
+ * the deadline would ratchet it up with every expiration.
+ */
+/*package*/ final class AdaptiveOperationTimeout implements OperationTimeout {
+    /**
+     * The shortest duration an adaptive timeout will use.
+     */
+    /*package*/ static final long MINIMUM_DURATION_MS = 1000;
+
+    private final @NonNull String address;
+    private final @NonNull Operation operation;
+    private final @NonNull LatencyHistory history;
+    private final long maximumDurationMs;
+    private final @NonNull LoggerFacade logger;
+
+    private @Nullable Action0 action;
+    private @Nullable Scheduler scheduler;
+    private @Nullable Subscription subscription;
+    private long durationMs;
+    private long scheduledAt;
+    private long latencyMs = -1L;
+
+    /*package*/ AdaptiveOperationTimeout(@NonNull String address,
+                                         @NonNull Operation operation,
+                                         @NonNull LatencyHistory history,
+                                         long maximumDuration,
+                                         @NonNull TimeUnit timeUnit,
+                                         @NonNull LoggerFacade logger) {
+        this.address = address;
+        this.operation = operation;
+        this.history = history;
+        this.maximumDurationMs = timeUnit.toMillis(maximumDuration);
+        this.logger = logger;
+        this.durationMs = maximumDurationMs;
+    }
+
+    /*package*/ long getDurationMs() {
+        return durationMs;
+    }
+
+    @Override
+    public void schedule() {
+        if (action == null || scheduler == null) {
+            throw new IllegalStateException("Cannot schedule a time out that has no action");
+        }
+
+        if (subscription != null) {
+            cancel();
+        }
+
+        final long deadline = history.getDeadline(address, operation);
+        if (deadline < 0L) {
+            this.durationMs = maximumDurationMs;
+        } else {
+            this.durationMs = Math.min(maximumDurationMs, Math.max(MINIMUM_DURATION_MS, deadline));
+        }
+
+        logger.info(LOG_TAG, "Scheduling adaptive time out '" + operation + "' for " + durationMs + "ms");
+
+        this.scheduledAt = SystemClock.elapsedRealtime();
+        this.latencyMs = -1L;
+        this.subscription = scheduler.createWorker().schedule(new Action0() {
+            @Override
+            public void call() {
+                if (subscription == null) {
+                    return;
+                }
+
+                AdaptiveOperationTimeout.this.subscription = null;
+
+                action.call();
+            }
+        }, durationMs, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void unschedule() {
+        if (subscription != null) {
+            this.latencyMs = SystemClock.elapsedRealtime() - scheduledAt;
+            cancel();
+        }
+    }
+
+    /**
+     * Records the latency of the operation the timeout was last unscheduled for.
+     * Called by the stack after the operation succeeds.
+     */
+    /*package*/ void recordSuccess() {
+        if (latencyMs >= 0L) {
+            history.record(address, operation, latencyMs);
+            this.latencyMs = -1L;
+        }
+    }
+
+    /**
+     * Records the latency of a successful operation if its timeout is adaptive.
+     */
+    /*package*/ static void recordSuccess(@NonNull OperationTimeout timeout) {
+        if (timeout instanceof AdaptiveOperationTimeout) {
+            ((AdaptiveOperationTimeout) timeout).recordSuccess();
+        }
+    }
+
+    @Override
+    public void reschedule() {
+        cancel();
+        schedule();
+    }
+
+    private void cancel() {
+        if (subscription != null) {
+            subscription.unsubscribe();
+            this.subscription = null;
+        }
+    }
+
+    @Override
+    public void setTimeoutAction(@NonNull Action0 action, @NonNull Scheduler scheduler) {
+        this.action = action;
+        this.scheduler = scheduler;
+    }
+
+
+    @Override
+    public String toString() {
+        return "AdaptiveOperationTimeout{" +
+                "address='" + address + '\'' +
+                ", operation=" + operation +
+                ", durationMs=" + durationMs +
+                ", maximumDurationMs=" + maximumDurationMs +
+                ", subscription=" + subscription +
+                '}';
+    }
+}
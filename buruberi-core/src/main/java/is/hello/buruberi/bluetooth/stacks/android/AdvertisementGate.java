@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.support.annotation.NonNull;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+
+/**
+ * Drops advertisements before they are parsed, based on how recently an
+ * advertisement from the same address was processed, and on the signal
+ * strength of peripherals that have not been seen before.
+ * <p>
+ * The signal strength threshold only applies to first sightings. Once a peripheral
+ * has been accepted, its weaker advertisements are still processed, so that its
+ * signal strength is not biased upwards by the samples that are dropped.
+ * <p>
+ * Not thread safe. Expected to only be accessed from a scanner's callback thread.
+ *
+ * @see PeripheralCriteria#minimumRssi
+ * @see PeripheralCriteria#processingInterval
+ */
+/*package*/ final class AdvertisementGate {
+    /**
+     * The number of tracked addresses above which stale entries are purged.
+     */
+    private static final int PURGE_THRESHOLD = 256;
+
+    private final int minimumRssi;
+    private final long processingInterval;
+    private final Map<String, Long> lastProcessed = new HashMap<>();
+    private int nextPurgeSize = PURGE_THRESHOLD;
+
+    /*package*/ AdvertisementGate(@NonNull PeripheralCriteria peripheralCriteria) {
+        this.minimumRssi = peripheralCriteria.minimumRssi;
+        this.processingInterval = peripheralCriteria.processingInterval;
+    }
+
+    /**
+     * Returns whether or not an advertisement should be processed.
+     */
+    /*package*/ boolean admit(@NonNull String address, long now) {
+        if (processingInterval <= 0) {
+            return true;
+        }
+
+        final Long processedAt = lastProcessed.get(address);
+        if (processedAt != null && (now - processedAt) < processingInterval) {
+            return false;
+        }
+
+        lastProcessed.put(address, now);
+        if (lastProcessed.size() >= nextPurgeSize) {
+            purge(now);
+        }
+        return true;
+    }
+
+    /**
+     * Returns whether or not an advertisement from a peripheral
+     * that has not been seen before is strong enough to process.
+     */
+    /*package*/ boolean admitFirstSighting(int rssi) {
+        return (rssi >= minimumRssi);
+    }
+
+    private void purge(long now) {
+        final long cutOff = now - processingInterval;
+        final Iterator<Long> iterator = lastProcessed.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() <= cutOff) {
+                iterator.remove();
+            }
+        }
+        this.nextPurgeSize = Math.max(PURGE_THRESHOLD, lastProcessed.size() * 2);
+    }
+}
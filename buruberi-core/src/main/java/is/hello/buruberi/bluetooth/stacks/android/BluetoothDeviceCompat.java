@@ -27,6 +27,7 @@ import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.util.Log;
 
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 
 import is.hello.buruberi.util.NonGuaranteed;
@@ -61,6 +62,10 @@ public final class BluetoothDeviceCompat {
 
     /**
      * Connect to GATT Server hosted by this device.
+     * <p>
+     * The transport is only applied on API level 21 (Lollipop) or later. On API
+     * levels 21 and 22, the transport is applied through a hidden method. Exceptions
+     * thrown by the hidden method are rethrown, rather than falling back.
      */
     @Nullable
     public static BluetoothGatt connectGatt(@NonNull BluetoothDevice device,
@@ -70,6 +75,25 @@ public final class BluetoothDeviceCompat {
                                             int transport) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             return device.connectGatt(context, autoConnect, callback, transport);
+        } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP &&
+                HiddenConnectGatt.METHOD != null) {
+            try {
+                return (BluetoothGatt) HiddenConnectGatt.METHOD.invoke(device, context, autoConnect,
+                                                                       callback, transport);
+            } catch (IllegalAccessException e) {
+                Log.e(LOG_TAG, "Could not invoke `connectGatt` with transport on BluetoothDevice.", e);
+                return device.connectGatt(context, autoConnect, callback);
+            } catch (InvocationTargetException e) {
+                // The connection attempt itself failed, falling back would attempt it again.
+                final Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                } else {
+                    throw new IllegalStateException(cause);
+                }
+            }
         } else {
             return device.connectGatt(context, autoConnect, callback);
         }
@@ -116,4 +140,26 @@ public final class BluetoothDeviceCompat {
 
     private BluetoothDeviceCompat() {
     }
+
+
+    /**
+     * Holds the hidden {@code connectGatt} method that accepts a transport on API levels 21 and 22.
+     * The method is looked up once, the first time a connection is made.
+     */
+    private static final class HiddenConnectGatt {
+        static final @Nullable Method METHOD = lookUp();
+
+        private static @Nullable Method lookUp() {
+            try {
+                return BluetoothDevice.class.getMethod("connectGatt",
+                                                       Context.class,
+                                                       boolean.class,
+                                                       BluetoothGattCallback.class,
+                                                       int.class);
+            } catch (NoSuchMethodException e) {
+                Log.e(LOG_TAG, "BluetoothDevice has no `connectGatt` with transport.", e);
+                return null;
+            }
+        }
+    }
 }
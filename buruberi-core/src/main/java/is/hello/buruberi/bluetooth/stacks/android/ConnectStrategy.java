@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import rx.Scheduler;
+import rx.functions.Action0;
+
+/**
+ * Decides when a connection attempt should switch between connecting directly,
+ * and waiting for the peripheral to become available.
+ * <p>
+ * Direct connections are fast when the peripheral is in range, but give up after
+ * roughly 30 seconds. Waiting for the peripheral to become available never gives up,
+ * but is slow. When {@link GattPeripheral#CONNECT_FLAG_DIRECT_FIRST} is specified,
+ * a direct connection is attempted for {@link #DIRECT_DEADLINE_MS} before falling
+ * back to waiting. When {@link GattPeripheral#CONNECT_FLAG_SCAN_WHILE_WAITING} is
+ * specified, the peripheral is scanned for while waiting, and a direct connection
+ * is attempted as soon as it is seen.
+ * <p>
+ * Must be started and stopped on the stack's scheduler.
+ */
+/*package*/ final class ConnectStrategy implements ScanRotation.Listener {
+    /**
+     * How long a direct connection is attempted before falling back.
+     */
+    /*package*/ static final long DIRECT_DEADLINE_MS = 5 * 1000;
+
+    /**
+     * How long each scan for the peripheral lasts while waiting.
+     */
+    private static final long SCAN_WINDOW_MS = ScanRotation.MINIMUM_START_INTERVAL_MS;
+
+    private final @NonNull LoggerFacade logger;
+    private final @NonNull Scheduler scheduler;
+    private final boolean directFirst;
+    private final @Nullable ScanRotation rotation;
+
+    private boolean waitingForAvailable;
+    private @Nullable Listener listener;
+    private @Nullable Scheduler.Worker worker;
+
+    /*package*/ ConnectStrategy(@NonNull NativeBluetoothStack stack,
+                                @NonNull String address,
+                                @GattPeripheral.ConnectFlags int flags) {
+        this.logger = stack.getLogger();
+        this.scheduler = stack.getScheduler();
+        this.directFirst = ((flags & GattPeripheral.CONNECT_FLAG_DIRECT_FIRST) ==
+                GattPeripheral.CONNECT_FLAG_DIRECT_FIRST);
+        this.waitingForAvailable = (!directFirst &&
+                (flags & GattPeripheral.CONNECT_FLAG_WAIT_AVAILABLE) == GattPeripheral.CONNECT_FLAG_WAIT_AVAILABLE);
+
+        if ((flags & GattPeripheral.CONNECT_FLAG_SCAN_WHILE_WAITING) == GattPeripheral.CONNECT_FLAG_SCAN_WHILE_WAITING) {
+            final PeripheralCriteria criteria = PeripheralCriteria.forAddress(address)
+                                                                  .setDuration(SCAN_WINDOW_MS);
+            this.rotation = new ScanRotation(stack, criteria, null, this);
+        } else {
+            this.rotation = null;
+        }
+    }
+
+    /**
+     * Returns whether or not the connection attempt should currently
+     * wait for the peripheral to become available.
+     */
+    /*package*/ boolean isWaitingForAvailable() {
+        return waitingForAvailable;
+    }
+
+    /*package*/ void start(@NonNull Listener listener) {
+        this.listener = listener;
+        this.worker = scheduler.createWorker();
+
+        if (waitingForAvailable) {
+            startScanning();
+        } else if (directFirst) {
+            scheduleFallback();
+        }
+    }
+
+    /*package*/ void stop() {
+        this.listener = null;
+
+        if (worker != null) {
+            worker.unsubscribe();
+            this.worker = null;
+        }
+
+        if (rotation != null) {
+            rotation.stop();
+        }
+    }
+
+    private void scheduleFallback() {
+        if (worker == null) {
+            return;
+        }
+
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                if (listener == null) {
+                    return;
+                }
+
+                logger.info(GattPeripheral.LOG_TAG, "Direct connection not established after " +
+                        DIRECT_DEADLINE_MS + "ms, waiting for peripheral to become available");
+
+                ConnectStrategy.this.waitingForAvailable = true;
+                listener.onSwitchConnectMode(true);
+                startScanning();
+            }
+        }, DIRECT_DEADLINE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void startScanning() {
+        if (rotation != null && listener != null) {
+            rotation.start();
+        }
+    }
+
+
+    //region Scanning
+
+    @Override
+    public void onWindowConcluded(@NonNull List<GattPeripheral> peripherals, long now) {
+        if (!waitingForAvailable || listener == null || peripherals.isEmpty()) {
+            return;
+        }
+
+        logger.info(GattPeripheral.LOG_TAG, "Peripheral seen while waiting, connecting directly");
+
+        if (rotation != null) {
+            rotation.stop();
+        }
+
+        this.waitingForAvailable = false;
+        listener.onSwitchConnectMode(false);
+        scheduleFallback();
+    }
+
+    @Override
+    public void onRotationError(@NonNull Throwable e) {
+        logger.warn(GattPeripheral.LOG_TAG, "Could not scan for peripheral while waiting " + e);
+    }
+
+    //endregion
+
+
+    /*package*/ interface Listener {
+        /**
+         * Called when the connection attempt should be reissued.
+         *
+         * @param autoConnect   Whether or not to wait for the peripheral to become available.
+         */
+        void onSwitchConnectMode(boolean autoConnect);
+    }
+}
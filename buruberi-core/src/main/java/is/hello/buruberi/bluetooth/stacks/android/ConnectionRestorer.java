@@ -0,0 +1,343 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.errors.ServiceDiscoveryException;
+import is.hello.buruberi.bluetooth.stacks.GattCharacteristic;
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.GattService;
+import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import rx.Observable;
+import rx.Observer;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.functions.Func1;
+import rx.subscriptions.CompositeSubscription;
+
+/**
+ * Restores the connections of peripherals connected with {@link GattPeripheral#CONNECT_FLAG_RESTORE}
+ * after the user power cycles the Bluetooth radio. Each restoration reconnects the peripheral,
+ * rediscovers its services if they had been discovered, and re-enables its notifications. If
+ * the peripheral is already connected, only the latter two steps are performed.
+ * <p>
+ * Restorations are staggered by {@link #STAGGER_MS} so that the controller is not flooded with
+ * connection attempts, and failed restorations are retried with exponential backoff starting
+ * at {@link #BACKOFF_MS}, up to {@link #MAXIMUM_ATTEMPTS} times.
+ * <p>
+ * All state is confined to the main thread.
+ */
+/*package*/ final class ConnectionRestorer implements Observer<Boolean> {
+    /*package*/ static final long STAGGER_MS = 1000;
+    /*package*/ static final long BACKOFF_MS = 2000;
+    /*package*/ static final int MAXIMUM_ATTEMPTS = 4;
+    private static final long OPERATION_TIMEOUT_S = 30;
+
+    private final @NonNull NativeBluetoothStack stack;
+    private final @NonNull LoggerFacade logger;
+    @VisibleForTesting final Map<NativeGattPeripheral, Restoration> restorations = new LinkedHashMap<>();
+
+    private boolean wasDisabled = false;
+    private @Nullable CompositeSubscription restoring;
+
+    /*package*/ ConnectionRestorer(@NonNull NativeBluetoothStack stack) {
+        this.stack = stack;
+        this.logger = stack.getLogger();
+    }
+
+
+    //region Tracking
+
+    /*package*/ void onConnected(@NonNull NativeGattPeripheral peripheral,
+                                 @GattPeripheral.ConnectFlags int flags) {
+        if ((flags & GattPeripheral.CONNECT_FLAG_RESTORE) == GattPeripheral.CONNECT_FLAG_RESTORE) {
+            final Restoration restoration = restorations.get(peripheral);
+            if (restoration != null) {
+                restoration.flags = flags;
+            } else {
+                restorations.put(peripheral, new Restoration(flags));
+            }
+        } else {
+            restorations.remove(peripheral);
+        }
+    }
+
+    /*package*/ void onDisconnected(@NonNull NativeGattPeripheral peripheral) {
+        // Connections are only restored when they were lost to the radio being turned off.
+        // The adapter reports itself as disabled as soon as it begins turning off.
+        if (stack.getAdapter().isEnabled() && restorations.remove(peripheral) != null) {
+            logger.info(GattPeripheral.LOG_TAG, "No longer restoring " + peripheral);
+        }
+    }
+
+    /*package*/ void onServicesDiscovered(@NonNull NativeGattPeripheral peripheral) {
+        final Restoration restoration = restorations.get(peripheral);
+        if (restoration != null) {
+            restoration.servicesDiscovered = true;
+        }
+    }
+
+    /*package*/ void onNotificationEnabled(@NonNull NativeGattPeripheral peripheral,
+                                           @NonNull UUID service,
+                                           @NonNull UUID characteristic,
+                                           @NonNull UUID descriptor) {
+        final Restoration restoration = restorations.get(peripheral);
+        if (restoration != null) {
+            final Notification notification = restoration.getNotification(service, characteristic);
+            if (notification != null) {
+                notification.descriptor = descriptor;
+            } else {
+                restoration.notifications.add(new Notification(service, characteristic, descriptor));
+            }
+        }
+    }
+
+    /*package*/ void onNotificationDisabled(@NonNull NativeGattPeripheral peripheral,
+                                            @NonNull UUID service,
+                                            @NonNull UUID characteristic) {
+        final Restoration restoration = restorations.get(peripheral);
+        if (restoration != null) {
+            final Notification notification = restoration.getNotification(service, characteristic);
+            if (notification != null) {
+                restoration.notifications.remove(notification);
+            }
+        }
+    }
+
+    /*package*/ void onPacketListenerDropped(@NonNull NativeGattPeripheral peripheral,
+                                             @NonNull UUID service,
+                                             @NonNull UUID characteristic,
+                                             @NonNull GattCharacteristic.PacketListener packetListener) {
+        final Restoration restoration = restorations.get(peripheral);
+        if (restoration != null) {
+            final Notification notification = restoration.getNotification(service, characteristic);
+            if (notification != null) {
+                notification.packetListener = packetListener;
+            }
+        }
+    }
+
+    //endregion
+
+
+    //region Restoring
+
+    @Override
+    public void onCompleted() {
+    }
+
+    @Override
+    public void onError(Throwable e) {
+    }
+
+    @Override
+    public void onNext(Boolean enabled) {
+        if (enabled) {
+            if (wasDisabled) {
+                this.wasDisabled = false;
+                restoreAll();
+            }
+        } else {
+            this.wasDisabled = true;
+            cancel();
+        }
+    }
+
+    private void restoreAll() {
+        if (restorations.isEmpty()) {
+            return;
+        }
+
+        logger.info(GattPeripheral.LOG_TAG, "Restoring " + restorations.size() + " connections");
+
+        final Scheduler.Worker worker = stack.getScheduler().createWorker();
+        this.restoring = new CompositeSubscription(worker);
+
+        long delay = 0L;
+        for (final Map.Entry<NativeGattPeripheral, Restoration> entry : restorations.entrySet()) {
+            delay += STAGGER_MS;
+            schedule(worker, entry.getKey(), entry.getValue(), 1, delay);
+        }
+    }
+
+    private void cancel() {
+        if (restoring != null) {
+            restoring.unsubscribe();
+            this.restoring = null;
+        }
+    }
+
+    private void schedule(final @NonNull Scheduler.Worker worker,
+                          final @NonNull NativeGattPeripheral peripheral,
+                          final @NonNull Restoration restoration,
+                          final int attempt,
+                          long delay) {
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                final CompositeSubscription restoring = ConnectionRestorer.this.restoring;
+                if (restoring == null || restorations.get(peripheral) != restoration) {
+                    return;
+                }
+
+                logger.info(GattPeripheral.LOG_TAG, "Restoring " + peripheral + " (attempt " + attempt + ")");
+
+                restoring.add(restore(peripheral, restoration).subscribe(new Subscriber<GattPeripheral>() {
+                    @Override
+                    public void onCompleted() {
+                        logger.info(GattPeripheral.LOG_TAG, "Restored " + peripheral);
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        if (attempt < MAXIMUM_ATTEMPTS) {
+                            final long backoff = BACKOFF_MS << (attempt - 1);
+                            logger.warn(GattPeripheral.LOG_TAG, "Could not restore " + peripheral +
+                                    ", retrying in " + backoff + "ms");
+                            schedule(worker, peripheral, restoration, attempt + 1, backoff);
+                        } else {
+                            logger.error(GattPeripheral.LOG_TAG, "Giving up restoring " + peripheral, e);
+                            restorations.remove(peripheral);
+                        }
+                    }
+
+                    @Override
+                    public void onNext(GattPeripheral ignored) {
+                    }
+                }));
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private @NonNull OperationTimeout createTimeout(@NonNull NativeGattPeripheral peripheral) {
+        return peripheral.createOperationTimeout("Restore", OPERATION_TIMEOUT_S, TimeUnit.SECONDS);
+    }
+
+    private Observable<GattPeripheral> restore(final @NonNull NativeGattPeripheral peripheral,
+                                               final @NonNull Restoration restoration) {
+        Observable<GattPeripheral> restore;
+        if (peripheral.getConnectionStatus() == GattPeripheral.STATUS_CONNECTED) {
+            // An earlier attempt may have reconnected before failing to rediscover
+            // services or re-enable notifications, so only those steps are repeated.
+            logger.info(GattPeripheral.LOG_TAG, "Already reconnected " + peripheral);
+            restore = Observable.<GattPeripheral>just(peripheral);
+        } else {
+            restore = peripheral.connect(restoration.flags, createTimeout(peripheral));
+        }
+        if (restoration.servicesDiscovered) {
+            restore = restore.flatMap(new Func1<GattPeripheral, Observable<GattPeripheral>>() {
+                @Override
+                public Observable<GattPeripheral> call(GattPeripheral connected) {
+                    return peripheral.discoverServices(createTimeout(peripheral))
+                                     .map(new Func1<Map<UUID, ? extends GattService>, GattPeripheral>() {
+                                         @Override
+                                         public GattPeripheral call(Map<UUID, ? extends GattService> ignored) {
+                                             return peripheral;
+                                         }
+                                     });
+                }
+            });
+        }
+
+        if (!restoration.notifications.isEmpty()) {
+            final List<Notification> notifications = new ArrayList<>(restoration.notifications);
+            restore = restore.flatMap(new Func1<GattPeripheral, Observable<GattPeripheral>>() {
+                @Override
+                public Observable<GattPeripheral> call(GattPeripheral connected) {
+                    return Observable.from(notifications)
+                                     .concatMap(new Func1<Notification, Observable<UUID>>() {
+                                         @Override
+                                         public Observable<UUID> call(Notification notification) {
+                                             return reenable(peripheral, notification);
+                                         }
+                                     })
+                                     .toList()
+                                     .map(new Func1<List<UUID>, GattPeripheral>() {
+                                         @Override
+                                         public GattPeripheral call(List<UUID> ignored) {
+                                             return peripheral;
+                                         }
+                                     });
+                }
+            });
+        }
+
+        return restore;
+    }
+
+    private Observable<UUID> reenable(@NonNull NativeGattPeripheral peripheral,
+                                      @NonNull Notification notification) {
+        final NativeGattService service = peripheral.services.get(notification.service);
+        final NativeGattCharacteristic characteristic =
+                (service != null) ? service.getCharacteristic(notification.characteristic) : null;
+        if (characteristic == null) {
+            return Observable.error(new ServiceDiscoveryException());
+        }
+
+        if (notification.packetListener != null) {
+            characteristic.setPacketListener(notification.packetListener);
+        }
+        return characteristic.enableNotification(notification.descriptor, createTimeout(peripheral));
+    }
+
+    //endregion
+
+
+    @VisibleForTesting static final class Restoration {
+        @GattPeripheral.ConnectFlags int flags;
+        boolean servicesDiscovered = false;
+        final List<Notification> notifications = new ArrayList<>();
+
+        Restoration(@GattPeripheral.ConnectFlags int flags) {
+            this.flags = flags;
+        }
+
+        @Nullable Notification getNotification(@NonNull UUID service, @NonNull UUID characteristic) {
+            for (final Notification notification : notifications) {
+                if (notification.service.equals(service) &&
+                        notification.characteristic.equals(characteristic)) {
+                    return notification;
+                }
+            }
+            return null;
+        }
+    }
+
+    @VisibleForTesting static final class Notification {
+        final UUID service;
+        final UUID characteristic;
+        UUID descriptor;
+        @Nullable GattCharacteristic.PacketListener packetListener;
+
+        Notification(@NonNull UUID service, @NonNull UUID characteristic, @NonNull UUID descriptor) {
+            this.service = service;
+            this.characteristic = characteristic;
+            this.descriptor = descriptor;
+        }
+    }
+}
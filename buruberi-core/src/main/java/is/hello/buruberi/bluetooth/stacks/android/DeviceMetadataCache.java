@@ -0,0 +1,184 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Snapshots the name, bond state, and type of Bluetooth devices the first time they
+ * are asked for, so that logging and attribute access do not repeatedly make IPC calls
+ * to the Bluetooth service. Snapshots are kept current by the stack from system broadcasts.
+ * <p>
+ * The {@link #CACHE_SIZE} most recently used entries are retained. Older entries are
+ * only forgotten once no peripheral holds them, so that every live peripheral keeps
+ * receiving updates. Thread safe.
+ */
+/*package*/ final class DeviceMetadataCache {
+    /**
+     * The number of devices to remember.
+     */
+    /*package*/ static final int CACHE_SIZE = 256;
+
+    /**
+     * Strongly retains the most recently used entries.
+     */
+    private final Map<String, Entry> recent = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return (size() > CACHE_SIZE);
+        }
+    };
+
+    /**
+     * Every entry that is still reachable, whether or not it is recent.
+     */
+    private final Map<String, EntryReference> reachable = new HashMap<>();
+    private final ReferenceQueue<Entry> collected = new ReferenceQueue<>();
+
+    /**
+     * Returns the metadata of a given device. Does not call into the Bluetooth service.
+     */
+    /*package*/ synchronized @NonNull Entry get(@NonNull BluetoothDevice device) {
+        final String address = device.getAddress();
+        Entry entry = recent.get(address);
+        if (entry != null) {
+            return entry;
+        }
+
+        purgeCollected();
+
+        final EntryReference reference = reachable.get(address);
+        entry = (reference != null) ? reference.get() : null;
+        if (entry == null) {
+            entry = new Entry(device);
+            reachable.put(address, new EntryReference(address, entry, collected));
+        }
+        recent.put(address, entry);
+        return entry;
+    }
+
+    /*package*/ void onNameChanged(@NonNull String address, @Nullable String name) {
+        final Entry entry = find(address);
+        if (entry != null) {
+            entry.onNameChanged(name);
+        }
+    }
+
+    /*package*/ void onBondStateChanged(@NonNull String address, int bondState) {
+        final Entry entry = find(address);
+        if (entry != null) {
+            entry.onBondStateChanged(bondState);
+        }
+    }
+
+    private synchronized @Nullable Entry find(@NonNull String address) {
+        final EntryReference reference = reachable.get(address);
+        return (reference != null) ? reference.get() : null;
+    }
+
+    private void purgeCollected() {
+        EntryReference reference;
+        while ((reference = (EntryReference) collected.poll()) != null) {
+            if (reachable.get(reference.address) == reference) {
+                reachable.remove(reference.address);
+            }
+        }
+    }
+
+
+    private static final class EntryReference extends WeakReference<Entry> {
+        private final String address;
+
+        EntryReference(@NonNull String address,
+                       @NonNull Entry entry,
+                       @NonNull ReferenceQueue<Entry> queue) {
+            super(entry, queue);
+            this.address = address;
+        }
+    }
+
+    /**
+     * The metadata of a single device. Each attribute is read from the
+     * device the first time it is asked for. Guarded by {@code this}.
+     */
+    /*package*/ static final class Entry {
+        private final @NonNull BluetoothDevice device;
+
+        private boolean hasName = false;
+        private @Nullable String name;
+
+        private boolean hasBondState = false;
+        private int bondState;
+
+        private boolean hasType = false;
+        private int type;
+
+        /*package*/ Entry(@NonNull BluetoothDevice device) {
+            this.device = device;
+        }
+
+        /*package*/ synchronized @Nullable String getName() {
+            if (!hasName) {
+                this.name = device.getName();
+                this.hasName = true;
+            }
+            return name;
+        }
+
+        /*package*/ synchronized int getBondState() {
+            if (!hasBondState) {
+                this.bondState = device.getBondState();
+                this.hasBondState = true;
+            }
+            return bondState;
+        }
+
+        /*package*/ synchronized int getType() {
+            if (!hasType) {
+                this.type = device.getType();
+                this.hasType = true;
+            }
+            return type;
+        }
+
+        /*package*/ synchronized void onNameChanged(@Nullable String name) {
+            this.name = name;
+            this.hasName = true;
+        }
+
+        /*package*/ synchronized void onBondStateChanged(int bondState) {
+            this.bondState = bondState;
+            this.hasBondState = true;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "Entry{" +
+                    "name='" + name + '\'' +
+                    ", bondState=" + bondState +
+                    ", type=" + type +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Limits how many GATT operations may be in flight across all of a stack's peripherals.
+ * <p>
+ * Operations only reach the arbiter once they have reached the front of their peripheral's
+ * serial queue, so each peripheral has at most one operation waiting at a time. Waiting
+ * operations are started in the order they arrived, which rotates between peripherals.
+ * <p>
+ * A limit of {@code 0}, the default, disables arbitration. Thread safe.
+ */
+/*package*/ final class GattArbiter {
+    private final @NonNull LoggerFacade logger;
+
+    /**
+     * Guarded by {@code this}.
+     */
+    @VisibleForTesting final Queue<Ticket<?>> waiting = new ArrayDeque<>();
+
+    /**
+     * Guarded by {@code this}.
+     */
+    @VisibleForTesting int inFlight = 0;
+
+    private volatile int limit = 0;
+
+    /*package*/ GattArbiter(@NonNull LoggerFacade logger) {
+        this.logger = logger;
+    }
+
+    /*package*/ void setLimit(int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit must not be negative");
+        }
+
+        this.limit = limit;
+        drain();
+    }
+
+    /**
+     * Returns an observable that will not subscribe to a given
+     * operation until it can be started within the limit.
+     */
+    /*package*/ <T> Observable<T> arbitrate(final @NonNull Observable<T> operation) {
+        return Observable.create(new Observable.OnSubscribe<T>() {
+            @Override
+            public void call(final Subscriber<? super T> subscriber) {
+                final Ticket<T> ticket = new Ticket<>(operation, subscriber);
+                final boolean acquired = acquire(ticket);
+                subscriber.add(Subscriptions.create(new Action0() {
+                    @Override
+                    public void call() {
+                        synchronized (GattArbiter.this) {
+                            if (waiting.remove(ticket)) {
+                                return;
+                            }
+                        }
+                        ticket.release();
+                    }
+                }));
+
+                if (acquired) {
+                    ticket.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns whether or not the given ticket may be started immediately.
+     * Enqueues the ticket if it may not.
+     */
+    private boolean acquire(@NonNull Ticket<?> ticket) {
+        synchronized (this) {
+            if (limit == 0 || inFlight < limit) {
+                this.inFlight++;
+                return true;
+            }
+
+            logger.debug(BluetoothStack.LOG_TAG, "Deferring GATT operation, " + inFlight + " in flight");
+            waiting.offer(ticket);
+            return false;
+        }
+    }
+
+    private void release() {
+        synchronized (this) {
+            this.inFlight--;
+        }
+        drain();
+    }
+
+    private void drain() {
+        while (true) {
+            final Ticket<?> next;
+            synchronized (this) {
+                if (waiting.isEmpty() || (limit != 0 && inFlight >= limit)) {
+                    return;
+                }
+
+                next = waiting.poll();
+                this.inFlight++;
+            }
+            next.run();
+        }
+    }
+
+
+    /**
+     * An operation that holds a place in the arbiter once started,
+     * and gives it up exactly once when it terminates or is unsubscribed.
+     */
+    @VisibleForTesting final class Ticket<T> implements Runnable {
+        private final @NonNull Observable<T> operation;
+        private final @NonNull Subscriber<? super T> subscriber;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Ticket(@NonNull Observable<T> operation,
+                       @NonNull Subscriber<? super T> subscriber) {
+            this.operation = operation;
+            this.subscriber = subscriber;
+        }
+
+        private void release() {
+            if (released.compareAndSet(false, true)) {
+                GattArbiter.this.release();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (subscriber.isUnsubscribed()) {
+                release();
+                return;
+            }
+
+            operation.unsafeSubscribe(new Subscriber<T>(subscriber) {
+                @Override
+                public void onCompleted() {
+                    release();
+                    subscriber.onCompleted();
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                    release();
+                    subscriber.onError(e);
+                }
+
+                @Override
+                public void onNext(T value) {
+                    subscriber.onNext(value);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothGatt;
+import android.content.Intent;
+import android.os.Build;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.v4.content.LocalBroadcastManager;
+
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.IdlePolicy;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+
+/**
+ * Applies the {@link IdlePolicy} of a peripheral while it is connected.
+ * <p>
+ * Operations only record the time they were performed. A single check is kept
+ * scheduled for when the connection would become idle, and is pushed back by
+ * the remainder of the idle timeout whenever it finds the connection was used.
+ * <p>
+ * Confined to the stack's scheduler.
+ */
+/*package*/ final class IdleMonitor {
+    /**
+     * How long to wait for a keep-alive read to complete.
+     */
+    private static final long KEEP_ALIVE_TIMEOUT_S = 10;
+
+    private final @NonNull NativeBluetoothStack stack;
+    private final @NonNull NativeGattPeripheral peripheral;
+    private final @NonNull LoggerFacade logger;
+
+    private @Nullable IdlePolicy policy;
+    private @Nullable Scheduler.Worker worker;
+    private long lastActivity;
+    private boolean lowered = false;
+
+    /*package*/ IdleMonitor(@NonNull NativeBluetoothStack stack,
+                            @NonNull NativeGattPeripheral peripheral) {
+        this.stack = stack;
+        this.peripheral = peripheral;
+        this.logger = stack.getLogger();
+    }
+
+    /*package*/ void setPolicy(@Nullable IdlePolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Begins applying the policy. Called when the peripheral connects.
+     */
+    /*package*/ void start() {
+        stop();
+
+        if (policy != null) {
+            this.worker = stack.getScheduler().createWorker();
+            this.lastActivity = SystemClock.elapsedRealtime();
+            scheduleCheck(policy.idleTimeout);
+        }
+    }
+
+    /**
+     * Stops applying the policy. Called when the peripheral disconnects.
+     */
+    /*package*/ void stop() {
+        if (worker != null) {
+            worker.unsubscribe();
+            this.worker = null;
+        }
+        this.lowered = false;
+    }
+
+    /**
+     * Records that an operation is being performed on the peripheral.
+     */
+    /*package*/ void onActivity() {
+        this.lastActivity = SystemClock.elapsedRealtime();
+
+        if (lowered && policy != null && worker != null) {
+            this.lowered = false;
+            requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+            report(GattPeripheral.IDLE_TRANSITION_ACTIVE);
+            scheduleCheck(policy.idleTimeout);
+        }
+    }
+
+    private void scheduleCheck(long delay) {
+        if (worker == null) {
+            return;
+        }
+
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                check();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        if (worker == null || policy == null) {
+            return;
+        }
+
+        final long idleFor = SystemClock.elapsedRealtime() - lastActivity;
+        if (idleFor < policy.idleTimeout) {
+            scheduleCheck(policy.idleTimeout - idleFor);
+            return;
+        }
+
+        switch (policy.action) {
+            case LOWER_PRIORITY: {
+                // Checks resume once the connection is used again.
+                if (requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER)) {
+                    this.lowered = true;
+                    report(policy.action.name());
+                }
+                break;
+            }
+            case KEEP_ALIVE: {
+                report(policy.action.name());
+                readKeepAlive(policy);
+                scheduleCheck(policy.idleTimeout);
+                break;
+            }
+            case DISCONNECT: {
+                report(policy.action.name());
+                stop();
+                peripheral.disconnect().subscribe(new LoggingSubscriber<GattPeripheral>("disconnect"));
+                break;
+            }
+        }
+    }
+
+    private boolean requestConnectionPriority(int priority) {
+        final BluetoothGatt gatt = peripheral.gatt;
+        if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        return requestConnectionPriorityLollipop(gatt, priority);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean requestConnectionPriorityLollipop(@NonNull BluetoothGatt gatt, int priority) {
+        return gatt.requestConnectionPriority(priority);
+    }
+
+    private void readKeepAlive(@NonNull IdlePolicy policy) {
+        final NativeGattService service = peripheral.services.get(policy.keepAliveService);
+        final NativeGattCharacteristic characteristic =
+                (service != null) ? service.getCharacteristic(policy.keepAliveCharacteristic) : null;
+        if (characteristic == null) {
+            logger.warn(GattPeripheral.LOG_TAG, "Keep alive characteristic " +
+                    policy.keepAliveCharacteristic + " not discovered, skipping read.");
+            return;
+        }
+
+        characteristic.read(peripheral.createOperationTimeout("Keep alive",
+                                                              KEEP_ALIVE_TIMEOUT_S,
+                                                              TimeUnit.SECONDS))
+                      .subscribe(new LoggingSubscriber<byte[]>("keep alive read"));
+    }
+
+    private void report(@NonNull String transition) {
+        logger.info(GattPeripheral.LOG_TAG, "Idle transition " + transition + " for " + peripheral);
+
+        final Intent transitionIntent = new Intent(GattPeripheral.ACTION_IDLE_TRANSITION)
+                .putExtra(GattPeripheral.EXTRA_NAME, peripheral.getName())
+                .putExtra(GattPeripheral.EXTRA_ADDRESS, peripheral.getAddress())
+                .putExtra(GattPeripheral.EXTRA_IDLE_TRANSITION, transition);
+        LocalBroadcastManager.getInstance(stack.applicationContext)
+                             .sendBroadcast(transitionIntent);
+    }
+
+
+    private class LoggingSubscriber<T> extends Subscriber<T> {
+        private final String operation;
+
+        LoggingSubscriber(@NonNull String operation) {
+            this.operation = operation;
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+
+        @Override
+        public void onError(Throwable e) {
+            logger.warn(GattPeripheral.LOG_TAG, "Idle " + operation + " failed", e);
+        }
+
+        @Override
+        public void onNext(T ignored) {
+        }
+    }
+}
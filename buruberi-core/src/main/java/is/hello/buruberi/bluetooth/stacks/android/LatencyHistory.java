@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.support.annotation.NonNull;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import is.hello.buruberi.util.Operation;
+
+/**
+ * Records how long each operation takes to complete for each device, so that
+ * timeouts can be derived from how quickly a device normally responds.
+ * <p>
+ * Only the {@link #SAMPLE_COUNT} most recent latencies are kept for each operation,
+ * and only the {@link #CACHE_SIZE} most recently used devices are remembered. Thread safe.
+ */
+/*package*/ final class LatencyHistory {
+    /**
+     * The number of devices to remember.
+     */
+    /*package*/ static final int CACHE_SIZE = 256;
+
+    /**
+     * The number of latencies to keep for each operation.
+     */
+    /*package*/ static final int SAMPLE_COUNT = 32;
+
+    /**
+     * The number of latencies that must be recorded before a deadline is derived.
+     */
+    /*package*/ static final int MINIMUM_SAMPLES = 5;
+
+    /**
+     * The percentile of recorded latencies deadlines are derived from.
+     */
+    /*package*/ static final float PERCENTILE = 0.95f;
+
+    /**
+     * The factor applied to the percentile latency to produce a deadline.
+     */
+    /*package*/ static final float SAFETY_FACTOR = 2f;
+
+    private final Map<String, Samples[]> devices = new LinkedHashMap<String, Samples[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Samples[]> eldest) {
+            return (size() > CACHE_SIZE);
+        }
+    };
+
+    /*package*/ synchronized void record(@NonNull String address,
+                                         @NonNull Operation operation,
+                                         long latency) {
+        Samples[] operations = devices.get(address);
+        if (operations == null) {
+            operations = new Samples[Operation.values().length];
+            devices.put(address, operations);
+        }
+
+        Samples samples = operations[operation.ordinal()];
+        if (samples == null) {
+            samples = new Samples();
+            operations[operation.ordinal()] = samples;
+        }
+
+        samples.add(latency);
+    }
+
+    /**
+     * Returns the deadline for a given operation on a given device,
+     * or {@code -1} if too few latencies have been recorded.
+     */
+    /*package*/ synchronized long getDeadline(@NonNull String address,
+                                              @NonNull Operation operation) {
+        final Samples[] operations = devices.get(address);
+        if (operations == null) {
+            return -1L;
+        }
+
+        final Samples samples = operations[operation.ordinal()];
+        if (samples == null || samples.count < MINIMUM_SAMPLES) {
+            return -1L;
+        }
+
+        return (long) Math.ceil(samples.percentile(PERCENTILE) * SAFETY_FACTOR);
+    }
+
+
+    /*package*/ static final class Samples {
+        private final long[] values = new long[SAMPLE_COUNT];
+        private int count = 0;
+        private int next = 0;
+
+        void add(long value) {
+            values[next] = value;
+            this.next = (next + 1) % SAMPLE_COUNT;
+            if (count < SAMPLE_COUNT) {
+                this.count++;
+            }
+        }
+
+        long percentile(float percentile) {
+            final long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(percentile * count) - 1;
+            return sorted[Math.max(0, index)];
+        }
+    }
+}
@@ -15,13 +15,29 @@
 */
 package is.hello.buruberi.bluetooth.stacks.android;
 
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+
 import java.util.List;
 
 import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
 import rx.Observable;
 
 /**
  * Internal to native Android stack.
  */
 interface LePeripheralScanner extends Observable.OnSubscribe<List<GattPeripheral>> {
+    /**
+     * Notified when a matching peripheral is first seen, and whenever
+     * the contents of its advertising data change afterwards.
+     * <p>
+     * Only the raw scan result is passed along, so that listeners
+     * which never need a peripheral object do not pay for one.
+     */
+    interface ChangeListener {
+        void onAdvertisementChanged(@NonNull BluetoothDevice device,
+                                    @NonNull AdvertisingData advertisingData,
+                                    int rssi);
+    }
 }
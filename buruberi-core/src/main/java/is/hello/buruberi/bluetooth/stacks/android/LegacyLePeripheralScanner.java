@@ -20,46 +20,71 @@ import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.os.Build;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.support.annotation.VisibleForTesting;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import is.hello.buruberi.bluetooth.errors.UserDisabledBuruberiException;
 import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
 import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
 import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.IdentityResolver;
 import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
 import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
 import rx.Subscriber;
 import rx.Subscription;
 import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
 
 @SuppressWarnings("deprecation")
 @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-class LegacyLePeripheralScanner implements LePeripheralScanner, BluetoothAdapter.LeScanCallback {
+class LegacyLePeripheralScanner implements LePeripheralScanner, BluetoothAdapter.LeScanCallback,
+        ScanPipeline.Listener {
     private final @NonNull NativeBluetoothStack stack;
     private final @NonNull LoggerFacade logger;
     private final @NonNull PeripheralCriteria peripheralCriteria;
-    @VisibleForTesting final @NonNull Map<String, ScannedPeripheral> results = new HashMap<>();
-    private final boolean hasAddresses;
+    @VisibleForTesting final @NonNull ScanResults results;
+    private final @NonNull AdvertisementGate gate;
+    private final int limit;
+    private final @Nullable ChangeListener changeListener;
 
     private @Nullable Subscriber<? super List<GattPeripheral>> subscriber;
     private @Nullable Subscription timeout;
+    /**
+     * Written on the stack's scheduler, read on the scan callback thread.
+     */
+    private volatile @Nullable QuietPeriodTimeout quietPeriodTimeout;
+    @VisibleForTesting volatile @Nullable ScanPipeline pipeline;
     private boolean scanning = false;
 
     LegacyLePeripheralScanner(@NonNull NativeBluetoothStack stack,
                               @NonNull PeripheralCriteria peripheralCriteria) {
+        this(stack, peripheralCriteria, peripheralCriteria.limit);
+    }
+
+    LegacyLePeripheralScanner(@NonNull NativeBluetoothStack stack,
+                              @NonNull PeripheralCriteria peripheralCriteria,
+                              int limit) {
+        this(stack, peripheralCriteria, limit, null);
+    }
+
+    LegacyLePeripheralScanner(@NonNull NativeBluetoothStack stack,
+                              @NonNull PeripheralCriteria peripheralCriteria,
+                              int limit,
+                              @Nullable ChangeListener changeListener) {
         this.stack = stack;
         this.logger = stack.getLogger();
         this.peripheralCriteria = peripheralCriteria;
-        this.hasAddresses = !peripheralCriteria.peripheralAddresses.isEmpty();
+        this.limit = limit;
+        this.changeListener = changeListener;
+        this.results = new ScanResults(peripheralCriteria);
+        this.gate = new AdvertisementGate(peripheralCriteria);
     }
 
 
@@ -70,6 +95,10 @@ class LegacyLePeripheralScanner implements LePeripheralScanner, BluetoothAdapter
 
         this.subscriber = subscriber;
 
+        if (peripheralCriteria.wantsParallelProcessing) {
+            this.pipeline = new ScanPipeline(stack, peripheralCriteria, (changeListener != null), this);
+        }
+
         this.scanning = stack.getAdapter().startLeScan(this);
         if (scanning) {
             this.timeout = stack.getScheduler()
@@ -80,7 +109,27 @@ class LegacyLePeripheralScanner implements LePeripheralScanner, BluetoothAdapter
                                         onConcludeScan();
                                     }
                                 }, peripheralCriteria.duration, TimeUnit.MILLISECONDS);
+
+            if (peripheralCriteria.quietPeriod > 0) {
+                QuietPeriodTimeout quietPeriodTimeout = new QuietPeriodTimeout(stack.getScheduler(), peripheralCriteria, new Action0() {
+                    @Override
+                    public void call() {
+                        logger.info(BluetoothStack.LOG_TAG, "No new peripherals within quiet period, concluding scan");
+                        onConcludeScan();
+                    }
+                });
+                quietPeriodTimeout.start(SystemClock.elapsedRealtime());
+                this.quietPeriodTimeout = quietPeriodTimeout;
+            }
+
+            subscriber.add(Subscriptions.create(new Action0() {
+                @Override
+                public void call() {
+                    stopScanning();
+                }
+            }));
         } else {
+            stopPipeline();
             subscriber.onError(new UserDisabledBuruberiException());
         }
     }
@@ -91,41 +140,148 @@ class LegacyLePeripheralScanner implements LePeripheralScanner, BluetoothAdapter
             Manifest.permission.BLUETOOTH_ADMIN,
     })
     public void onLeScan(BluetoothDevice device, int rssi, byte[] scanResponse) {
+        long now = SystemClock.elapsedRealtime();
         String address = device.getAddress();
-        ScannedPeripheral existingResult = results.get(address);
+        if (!gate.admit(address, now)) {
+            return;
+        }
+
+        ScanPipeline pipeline = this.pipeline;
+        if (pipeline != null) {
+            pipeline.submit(device, rssi, scanResponse, now);
+            return;
+        }
+
+        IdentityResolver identityResolver = peripheralCriteria.identityResolver;
+        String identity = identityResolver != null ? identityResolver.resolve(address, scanResponse) : address;
+
+        ScannedPeripheral existingResult = results.get(identity);
         if (existingResult != null) {
-            existingResult.rssi = rssi;
+            // A peripheral that has rotated its address must still satisfy the
+            // criteria under its new address before it replaces the old device.
+            if (!address.equals(existingResult.device.getAddress()) &&
+                    !peripheralCriteria.matches(address, AdvertisingData.parse(scanResponse))) {
+                return;
+            }
+
+            results.update(existingResult, device, rssi, now);
+            if (changeListener != null && existingResult.updateScanRecordHash(scanResponse)) {
+                onAdvertisingDataSeen(existingResult, AdvertisingData.parse(scanResponse));
+            }
+            return;
+        }
+
+        if (!gate.admitFirstSighting(rssi)) {
             return;
         }
 
         AdvertisingData advertisingData = AdvertisingData.parse(scanResponse);
-        logger.info(BluetoothStack.LOG_TAG, "Found device " + device.getName() + " - " + address + " " + advertisingData);
+        logger.info(BluetoothStack.LOG_TAG, "Found device " + address + " " + advertisingData);
 
-        if (!peripheralCriteria.matches(advertisingData)) {
+        if (!peripheralCriteria.matches(address, advertisingData)) {
             return;
         }
 
-        if (hasAddresses && !peripheralCriteria.peripheralAddresses.contains(address)) {
+        onAdvertisementAccepted(device, identity, rssi, advertisingData, now);
+    }
+
+    @Override
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    public void onAdvertisementAccepted(@NonNull BluetoothDevice device,
+                                        @NonNull String identity,
+                                        int rssi,
+                                        @NonNull AdvertisingData advertisingData,
+                                        long seenAt) {
+        if (!scanning) {
             return;
         }
 
-        results.put(address, new ScannedPeripheral(device, advertisingData, rssi));
+        ScannedPeripheral existingResult = results.get(identity);
+        if (existingResult != null) {
+            results.update(existingResult, device, rssi, seenAt);
+            if (changeListener != null) {
+                onAdvertisingDataSeen(existingResult, advertisingData);
+            }
+            return;
+        }
+
+        ScannedPeripheral scannedPeripheral = new ScannedPeripheral(device, advertisingData, rssi, seenAt);
+        if (!results.add(identity, scannedPeripheral)) {
+            return;
+        }
+
+        if (changeListener != null) {
+            changeListener.onAdvertisementChanged(scannedPeripheral.device,
+                                                  scannedPeripheral.advertisingData,
+                                                  scannedPeripheral.rssi);
+        }
+
+        QuietPeriodTimeout quietPeriodTimeout = this.quietPeriodTimeout;
+        if (quietPeriodTimeout != null) {
+            quietPeriodTimeout.onNewMatch(seenAt);
+        }
 
-        if (results.size() >= peripheralCriteria.limit) {
+        if (results.size() >= limit) {
             logger.info(BluetoothStack.LOG_TAG, "Discovery limit reached, concluding scan");
             onConcludeScan();
         }
     }
 
+    private void onAdvertisingDataSeen(@NonNull ScannedPeripheral scannedPeripheral,
+                                       @NonNull AdvertisingData advertisingData) {
+        if (changeListener != null && !scannedPeripheral.advertisingData.equals(advertisingData)) {
+            scannedPeripheral.advertisingData = advertisingData;
+            changeListener.onAdvertisementChanged(scannedPeripheral.device,
+                                                  scannedPeripheral.advertisingData,
+                                                  scannedPeripheral.rssi);
+        }
+    }
+
     @RequiresPermission(allOf = {
             Manifest.permission.BLUETOOTH,
             Manifest.permission.BLUETOOTH_ADMIN,
     })
     public void onConcludeScan() {
-        if (!scanning) {
+        if (!stopScanning()) {
             return;
         }
 
+        List<GattPeripheral> peripherals = new ArrayList<>();
+
+        if (stack.getAdapter().getState() == BluetoothAdapter.STATE_ON) {
+            results.evictStale(SystemClock.elapsedRealtime());
+            for (ScannedPeripheral scannedPeripheral : results.toSortedList()) {
+                NativeGattPeripheral peripheral = scannedPeripheral.createPeripheral(stack);
+                peripherals.add(peripheral);
+            }
+        }
+
+        logger.info(BluetoothStack.LOG_TAG, "Completed Scan " + peripherals);
+
+        if (subscriber != null) {
+            subscriber.onNext(peripherals);
+            subscriber.onCompleted();
+        } else {
+            logger.warn(BluetoothStack.LOG_TAG, "LegacyLePeripheralScanner invoked without a subscriber, ignoring.");
+        }
+    }
+
+    /**
+     * Stops the platform scan and any pending timeouts without reporting results.
+     * Returns whether or not a scan was in progress.
+     */
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    private boolean stopScanning() {
+        if (!scanning) {
+            return false;
+        }
+
         this.scanning = false;
 
         // Low energy scanning on Android <=4.4.4 is broken when
@@ -139,27 +295,27 @@ class LegacyLePeripheralScanner implements LePeripheralScanner, BluetoothAdapter
             logger.warn(BluetoothStack.LOG_TAG, "Could not stop le scan due to internal stack error.", e);
         }
 
+        stopPipeline();
+
         if (timeout != null) {
             timeout.unsubscribe();
             this.timeout = null;
         }
 
-        List<GattPeripheral> peripherals = new ArrayList<>();
-
-        if (stack.getAdapter().getState() == BluetoothAdapter.STATE_ON) {
-            for (ScannedPeripheral scannedPeripheral : results.values()) {
-                NativeGattPeripheral peripheral = scannedPeripheral.createPeripheral(stack);
-                peripherals.add(peripheral);
-            }
+        QuietPeriodTimeout quietPeriodTimeout = this.quietPeriodTimeout;
+        if (quietPeriodTimeout != null) {
+            this.quietPeriodTimeout = null;
+            quietPeriodTimeout.stop();
         }
 
-        logger.info(BluetoothStack.LOG_TAG, "Completed Scan " + peripherals);
+        return true;
+    }
 
-        if (subscriber != null) {
-            subscriber.onNext(peripherals);
-            subscriber.onCompleted();
-        } else {
-            logger.warn(BluetoothStack.LOG_TAG, "LegacyLePeripheralScanner invoked without a subscriber, ignoring.");
+    private void stopPipeline() {
+        ScanPipeline pipeline = this.pipeline;
+        if (pipeline != null) {
+            this.pipeline = null;
+            pipeline.shutdown();
         }
     }
 }
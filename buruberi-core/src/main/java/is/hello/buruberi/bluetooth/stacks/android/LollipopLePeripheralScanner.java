@@ -24,15 +24,14 @@ import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.os.Build;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.support.annotation.VisibleForTesting;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import is.hello.buruberi.bluetooth.errors.LowEnergyScanException;
@@ -40,32 +39,58 @@ import is.hello.buruberi.bluetooth.errors.UserDisabledBuruberiException;
 import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
 import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
 import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.IdentityResolver;
 import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
 import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
 import rx.Subscriber;
 import rx.Subscription;
 import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
 
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-class LollipopLePeripheralScanner extends ScanCallback implements LePeripheralScanner {
+class LollipopLePeripheralScanner extends ScanCallback implements LePeripheralScanner,
+        ScanPipeline.Listener {
     private final @NonNull NativeBluetoothStack stack;
     private final @NonNull LoggerFacade logger;
     private final @NonNull PeripheralCriteria peripheralCriteria;
     private final @NonNull BluetoothAdapter adapter;
     private final @Nullable BluetoothLeScanner scanner;
-    @VisibleForTesting final @NonNull Map<String, ScannedPeripheral> results = new HashMap<>();
-    private final boolean hasAddresses;
+    @VisibleForTesting final @NonNull ScanResults results;
+    private final @NonNull AdvertisementGate gate;
+    private final int limit;
+    private final @Nullable ChangeListener changeListener;
 
     private @Nullable Subscriber<? super List<GattPeripheral>> subscriber;
     private @Nullable Subscription timeout;
+    /**
+     * Written on the stack's scheduler, read on the scan callback thread.
+     */
+    private volatile @Nullable QuietPeriodTimeout quietPeriodTimeout;
+    @VisibleForTesting volatile @Nullable ScanPipeline pipeline;
     private boolean scanning = false;
 
     LollipopLePeripheralScanner(@NonNull NativeBluetoothStack stack,
                                 @NonNull PeripheralCriteria peripheralCriteria) {
+        this(stack, peripheralCriteria, peripheralCriteria.limit);
+    }
+
+    LollipopLePeripheralScanner(@NonNull NativeBluetoothStack stack,
+                                @NonNull PeripheralCriteria peripheralCriteria,
+                                int limit) {
+        this(stack, peripheralCriteria, limit, null);
+    }
+
+    LollipopLePeripheralScanner(@NonNull NativeBluetoothStack stack,
+                                @NonNull PeripheralCriteria peripheralCriteria,
+                                int limit,
+                                @Nullable ChangeListener changeListener) {
         this.stack = stack;
         this.logger = stack.getLogger();
         this.peripheralCriteria = peripheralCriteria;
-        this.hasAddresses = !peripheralCriteria.peripheralAddresses.isEmpty();
+        this.limit = limit;
+        this.changeListener = changeListener;
+        this.results = new ScanResults(peripheralCriteria);
+        this.gate = new AdvertisementGate(peripheralCriteria);
         this.adapter = stack.getAdapter();
         this.scanner = adapter.getBluetoothLeScanner();
     }
@@ -81,6 +106,10 @@ class LollipopLePeripheralScanner extends ScanCallback implements LePeripheralSc
         if (scanner != null) {
             this.scanning = true;
 
+            if (peripheralCriteria.wantsParallelProcessing) {
+                this.pipeline = new ScanPipeline(stack, peripheralCriteria, (changeListener != null), this);
+            }
+
             // Guards against the checking the power state of the BluetoothAdapter,
             // then the power state changing between that check and the following
             // call to startScan.
@@ -90,6 +119,7 @@ class LollipopLePeripheralScanner extends ScanCallback implements LePeripheralSc
                 scanner.startScan(null, builder.build(), this);
             } catch (IllegalStateException e) {
                 this.scanning = false;
+                stopPipeline();
                 subscriber.onError(new UserDisabledBuruberiException(e));
 
                 return;
@@ -103,6 +133,25 @@ class LollipopLePeripheralScanner extends ScanCallback implements LePeripheralSc
                                         onConcludeScan();
                                     }
                                 }, peripheralCriteria.duration, TimeUnit.MILLISECONDS);
+
+            if (peripheralCriteria.quietPeriod > 0) {
+                QuietPeriodTimeout quietPeriodTimeout = new QuietPeriodTimeout(stack.getScheduler(), peripheralCriteria, new Action0() {
+                    @Override
+                    public void call() {
+                        logger.info(BluetoothStack.LOG_TAG, "No new peripherals within quiet period, concluding scan");
+                        onConcludeScan();
+                    }
+                });
+                quietPeriodTimeout.start(SystemClock.elapsedRealtime());
+                this.quietPeriodTimeout = quietPeriodTimeout;
+            }
+
+            subscriber.add(Subscriptions.create(new Action0() {
+                @Override
+                public void call() {
+                    stopScanning();
+                }
+            }));
         } else {
             subscriber.onError(new UserDisabledBuruberiException());
         }
@@ -132,42 +181,123 @@ class LollipopLePeripheralScanner extends ScanCallback implements LePeripheralSc
         }
 
         BluetoothDevice device = result.getDevice();
+        long now = SystemClock.elapsedRealtime();
         String address = device.getAddress();
-        ScannedPeripheral existingResult = results.get(address);
-        if (existingResult != null) {
-            existingResult.rssi = result.getRssi();
+        if (!gate.admit(address, now)) {
             return;
         }
 
         byte[] scanResponse = result.getScanRecord().getBytes();
+        ScanPipeline pipeline = this.pipeline;
+        if (pipeline != null) {
+            pipeline.submit(device, result.getRssi(), scanResponse, now);
+            return;
+        }
+
+        IdentityResolver identityResolver = peripheralCriteria.identityResolver;
+        String identity = identityResolver != null ? identityResolver.resolve(address, scanResponse) : address;
+
+        ScannedPeripheral existingResult = results.get(identity);
+        if (existingResult != null) {
+            // A peripheral that has rotated its address must still satisfy the
+            // criteria under its new address before it replaces the old device.
+            if (!address.equals(existingResult.device.getAddress()) &&
+                    !peripheralCriteria.matches(address, AdvertisingData.parse(scanResponse))) {
+                return;
+            }
+
+            results.update(existingResult, device, result.getRssi(), now);
+            if (changeListener != null && existingResult.updateScanRecordHash(scanResponse)) {
+                onAdvertisingDataSeen(existingResult, AdvertisingData.parse(scanResponse));
+            }
+            return;
+        }
+
+        if (!gate.admitFirstSighting(result.getRssi())) {
+            return;
+        }
+
         AdvertisingData advertisingData = AdvertisingData.parse(scanResponse);
-        logger.info(BluetoothStack.LOG_TAG, "Found device " + device.getName() + " - " + address + " " + advertisingData);
+        logger.info(BluetoothStack.LOG_TAG, "Found device " + address + " " + advertisingData);
+
+        if (!peripheralCriteria.matches(address, advertisingData)) {
+            return;
+        }
+
+        onAdvertisementAccepted(device, identity, result.getRssi(), advertisingData, now);
+    }
+
+    @Override
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    public void onAdvertisementAccepted(@NonNull BluetoothDevice device,
+                                        @NonNull String identity,
+                                        int rssi,
+                                        @NonNull AdvertisingData advertisingData,
+                                        long seenAt) {
+        if (!scanning) {
+            return;
+        }
 
-        if (!peripheralCriteria.matches(advertisingData)) {
+        ScannedPeripheral existingResult = results.get(identity);
+        if (existingResult != null) {
+            results.update(existingResult, device, rssi, seenAt);
+            if (changeListener != null) {
+                onAdvertisingDataSeen(existingResult, advertisingData);
+            }
             return;
         }
 
-        if (hasAddresses && !peripheralCriteria.peripheralAddresses.contains(address)) {
+        ScannedPeripheral scannedPeripheral = new ScannedPeripheral(device, advertisingData, rssi, seenAt);
+        if (!results.add(identity, scannedPeripheral)) {
             return;
         }
 
-        results.put(address, new ScannedPeripheral(device, advertisingData, result.getRssi()));
+        if (changeListener != null) {
+            changeListener.onAdvertisementChanged(scannedPeripheral.device,
+                                                  scannedPeripheral.advertisingData,
+                                                  scannedPeripheral.rssi);
+        }
 
-        if (results.size() >= peripheralCriteria.limit) {
+        QuietPeriodTimeout quietPeriodTimeout = this.quietPeriodTimeout;
+        if (quietPeriodTimeout != null) {
+            quietPeriodTimeout.onNewMatch(seenAt);
+        }
+
+        if (results.size() >= limit) {
             logger.info(BluetoothStack.LOG_TAG, "Discovery limit reached, concluding scan");
             onConcludeScan();
         }
     }
 
+    private void onAdvertisingDataSeen(@NonNull ScannedPeripheral scannedPeripheral,
+                                       @NonNull AdvertisingData advertisingData) {
+        if (changeListener != null && !scannedPeripheral.advertisingData.equals(advertisingData)) {
+            scannedPeripheral.advertisingData = advertisingData;
+            changeListener.onAdvertisementChanged(scannedPeripheral.device,
+                                                  scannedPeripheral.advertisingData,
+                                                  scannedPeripheral.rssi);
+        }
+    }
+
     @Override
     public void onScanFailed(int errorCode) {
         this.scanning = false;
+        stopPipeline();
 
         if (timeout != null) {
             timeout.unsubscribe();
             this.timeout = null;
         }
 
+        QuietPeriodTimeout quietPeriodTimeout = this.quietPeriodTimeout;
+        if (quietPeriodTimeout != null) {
+            this.quietPeriodTimeout = null;
+            quietPeriodTimeout.stop();
+        }
+
         LowEnergyScanException error = new LowEnergyScanException(errorCode);
         if (subscriber != null) {
             subscriber.onError(error);
@@ -181,22 +311,54 @@ class LollipopLePeripheralScanner extends ScanCallback implements LePeripheralSc
             Manifest.permission.BLUETOOTH_ADMIN,
     })
     public void onConcludeScan() {
+        if (!stopScanning()) {
+            return;
+        }
+
+        List<GattPeripheral> peripherals = new ArrayList<>();
+
+        if (adapter.getState() == BluetoothAdapter.STATE_ON) {
+            results.evictStale(SystemClock.elapsedRealtime());
+            for (ScannedPeripheral scannedPeripheral : results.toSortedList()) {
+                NativeGattPeripheral peripheral = scannedPeripheral.createPeripheral(stack);
+                peripherals.add(peripheral);
+            }
+        }
+
+        logger.info(BluetoothStack.LOG_TAG, "Completed Scan " + peripherals);
+
+        if (subscriber != null) {
+            subscriber.onNext(peripherals);
+            subscriber.onCompleted();
+        } else {
+            logger.warn(BluetoothStack.LOG_TAG, "LePeripheralScanner invoked without a subscriber, ignoring.");
+        }
+    }
+
+    /**
+     * Stops the platform scan and any pending timeouts without reporting results.
+     * Returns whether or not a scan was in progress.
+     */
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    private boolean stopScanning() {
         if (scanner == null) {
             throw new IllegalStateException("scanner is missing");
         }
 
         if (!scanning) {
-            return;
+            return false;
         }
 
         this.scanning = false;
-
-        boolean bluetoothOn = (adapter.getState() == BluetoothAdapter.STATE_ON);
+        stopPipeline();
 
         // The BluetoothLeScanner#stopScan(ScanCallback) method requires
         // that its associated BluetoothAdapter be in the on state to stop
         // the scan (how does this make sense?)
-        if (bluetoothOn) {
+        if (adapter.getState() == BluetoothAdapter.STATE_ON) {
             // State could conceivably change between getState and stopScan calls.
             try {
                 scanner.stopScan(this);
@@ -210,22 +372,20 @@ class LollipopLePeripheralScanner extends ScanCallback implements LePeripheralSc
             this.timeout = null;
         }
 
-        List<GattPeripheral> peripherals = new ArrayList<>();
-
-        if (bluetoothOn) {
-            for (ScannedPeripheral scannedPeripheral : results.values()) {
-                NativeGattPeripheral peripheral = scannedPeripheral.createPeripheral(stack);
-                peripherals.add(peripheral);
-            }
+        QuietPeriodTimeout quietPeriodTimeout = this.quietPeriodTimeout;
+        if (quietPeriodTimeout != null) {
+            this.quietPeriodTimeout = null;
+            quietPeriodTimeout.stop();
         }
 
-        logger.info(BluetoothStack.LOG_TAG, "Completed Scan " + peripherals);
+        return true;
+    }
 
-        if (subscriber != null) {
-            subscriber.onNext(peripherals);
-            subscriber.onCompleted();
-        } else {
-            logger.warn(BluetoothStack.LOG_TAG, "LePeripheralScanner invoked without a subscriber, ignoring.");
+    private void stopPipeline() {
+        ScanPipeline pipeline = this.pipeline;
+        if (pipeline != null) {
+            this.pipeline = null;
+            pipeline.shutdown();
         }
     }
 }
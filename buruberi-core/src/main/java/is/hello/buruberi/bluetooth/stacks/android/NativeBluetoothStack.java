@@ -26,6 +26,7 @@ import android.content.IntentFilter;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
@@ -35,17 +36,26 @@ import android.support.v4.content.LocalBroadcastManager;
 import java.util.List;
 
 import is.hello.buruberi.bluetooth.errors.ChangePowerStateException;
+import is.hello.buruberi.bluetooth.errors.PeripheralNotFoundException;
 import is.hello.buruberi.bluetooth.errors.UserDisabledBuruberiException;
 import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
 import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
 import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingDecoderRegistry;
 import is.hello.buruberi.bluetooth.stacks.util.ErrorListener;
 import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
 import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import is.hello.buruberi.bluetooth.stacks.util.PresenceEvent;
+import is.hello.buruberi.bluetooth.stacks.util.TelemetrySample;
 import is.hello.buruberi.util.Rx;
 import rx.Observable;
 import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action1;
+import rx.functions.Func0;
 import rx.functions.Func1;
+import rx.observers.SerializedSubscriber;
 import rx.subjects.ReplaySubject;
 
 public class NativeBluetoothStack implements BluetoothStack {
@@ -62,6 +72,12 @@ public class NativeBluetoothStack implements BluetoothStack {
     private final @Nullable BluetoothAdapter adapter;
 
     private final @NonNull ReplaySubject<Boolean> enabled = ReplaySubject.createWithSize(1);
+    private final @NonNull RecentPeripheralCache recentPeripherals = new RecentPeripheralCache();
+    private final @NonNull DeviceMetadataCache deviceMetadata = new DeviceMetadataCache();
+    private final @NonNull ConnectionRestorer connectionRestorer;
+    private final @NonNull LatencyHistory latencyHistory = new LatencyHistory();
+    private final @NonNull GattArbiter arbiter;
+    private final @NonNull ScanMultiplexer scanMultiplexer;
 
     @RequiresPermission(Manifest.permission.BLUETOOTH)
     public NativeBluetoothStack(@NonNull Context applicationContext,
@@ -70,6 +86,9 @@ public class NativeBluetoothStack implements BluetoothStack {
         this.applicationContext = applicationContext;
         this.errorListener = errorListener;
         this.logger = logger;
+        this.connectionRestorer = new ConnectionRestorer(this);
+        this.arbiter = new GattArbiter(logger);
+        this.scanMultiplexer = new ScanMultiplexer(this);
 
         this.bluetoothManager = (BluetoothManager) applicationContext.getSystemService(Context.BLUETOOTH_SERVICE);
         this.adapter = bluetoothManager.getAdapter();
@@ -83,6 +102,7 @@ public class NativeBluetoothStack implements BluetoothStack {
                         enabled.onNext(true);
                     } else if (newState == BluetoothAdapter.STATE_OFF ||
                             newState == BluetoothAdapter.ERROR) {
+                        recentPeripherals.clear();
                         enabled.onNext(false);
                     }
                 }
@@ -90,6 +110,31 @@ public class NativeBluetoothStack implements BluetoothStack {
             applicationContext.registerReceiver(powerStateReceiver,
                                                 new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
             enabled.onNext(adapter.isEnabled());
+            enabled.subscribe(connectionRestorer);
+
+            final BroadcastReceiver metadataReceiver = new BroadcastReceiver() {
+                @Override
+                public void onReceive(Context context, Intent intent) {
+                    final BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                    if (device == null) {
+                        return;
+                    }
+
+                    if (BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(intent.getAction())) {
+                        final int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE,
+                                                                 BluetoothDevice.ERROR);
+                        if (bondState != BluetoothDevice.ERROR) {
+                            deviceMetadata.onBondStateChanged(device.getAddress(), bondState);
+                        }
+                    } else {
+                        final String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+                        deviceMetadata.onNameChanged(device.getAddress(), name);
+                    }
+                }
+            };
+            final IntentFilter metadataFilter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+            metadataFilter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
+            applicationContext.registerReceiver(metadataReceiver, metadataFilter);
 
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
                 final BroadcastReceiver pairingReceiver = new BroadcastReceiver() {
@@ -123,14 +168,26 @@ public class NativeBluetoothStack implements BluetoothStack {
 
 
     @VisibleForTesting
-    LePeripheralScanner createLeScanner(@NonNull PeripheralCriteria peripheralCriteria) {
+    LePeripheralScanner createLeScanner(@NonNull PeripheralCriteria peripheralCriteria,
+                                        int limit,
+                                        @Nullable LePeripheralScanner.ChangeListener changeListener) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-            return new LollipopLePeripheralScanner(this, peripheralCriteria);
+            return new LollipopLePeripheralScanner(this, peripheralCriteria, limit, changeListener);
         } else {
-            return new LegacyLePeripheralScanner(this, peripheralCriteria);
+            return new LegacyLePeripheralScanner(this, peripheralCriteria, limit, changeListener);
         }
     }
 
+    @VisibleForTesting
+    LePeripheralScanner createLeScanner(@NonNull PeripheralCriteria peripheralCriteria, int limit) {
+        return createLeScanner(peripheralCriteria, limit, null);
+    }
+
+    @VisibleForTesting
+    LePeripheralScanner createLeScanner(@NonNull PeripheralCriteria peripheralCriteria) {
+        return createLeScanner(peripheralCriteria, peripheralCriteria.limit);
+    }
+
     @NonNull
     @Override
     @RequiresPermission(allOf = {
@@ -138,6 +195,41 @@ public class NativeBluetoothStack implements BluetoothStack {
             Manifest.permission.BLUETOOTH_ADMIN,
     })
     public Observable<List<GattPeripheral>> discoverPeripherals(final @NonNull PeripheralCriteria peripheralCriteria) {
+        final Observable<List<GattPeripheral>> scan =
+                discoverPeripherals(peripheralCriteria, peripheralCriteria.limit)
+                        .doOnNext(new Action1<List<GattPeripheral>>() {
+                            @Override
+                            public void call(List<GattPeripheral> peripherals) {
+                                recentPeripherals.record(peripherals, SystemClock.elapsedRealtime());
+                            }
+                        });
+        if (peripheralCriteria.cacheTtl <= 0 || adapter == null || !adapter.isEnabled()) {
+            return scan;
+        }
+
+        return Observable.defer(new Func0<Observable<List<GattPeripheral>>>() {
+            @Override
+            public Observable<List<GattPeripheral>> call() {
+                final List<GattPeripheral> cached =
+                        recentPeripherals.match(NativeBluetoothStack.this,
+                                                peripheralCriteria,
+                                                SystemClock.elapsedRealtime());
+                if (cached.isEmpty()) {
+                    return scan;
+                }
+
+                logger.info(LOG_TAG, "Reporting " + cached.size() + " recently seen peripherals before scanning");
+                return scan.startWith(cached);
+            }
+        });
+    }
+
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    private Observable<List<GattPeripheral>> discoverPeripherals(final @NonNull PeripheralCriteria peripheralCriteria,
+                                                                 final int limit) {
         if (adapter != null && adapter.isEnabled()) {
             if (peripheralCriteria.wantsHighPowerPreScan) {
                 final Observable<List<BluetoothDevice>> devices =
@@ -146,12 +238,126 @@ public class NativeBluetoothStack implements BluetoothStack {
                     @Override
                     public Observable<? extends List<GattPeripheral>> call(List<BluetoothDevice> ignoredDevices) {
                         logger.info(LOG_TAG, "High power pre-scan completed.");
-                        return newConfiguredObservable(createLeScanner(peripheralCriteria));
+                        return newConfiguredObservable(createLeScanner(peripheralCriteria, limit));
                     }
                 });
             } else {
-                return newConfiguredObservable(createLeScanner(peripheralCriteria));
+                return newConfiguredObservable(createLeScanner(peripheralCriteria, limit));
+            }
+        } else {
+            return Observable.error(new UserDisabledBuruberiException());
+        }
+    }
+
+    @NonNull
+    @Override
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    public Observable<GattPeripheral> scanAndConnect(@NonNull PeripheralCriteria peripheralCriteria,
+                                                     final @GattPeripheral.ConnectFlags int flags,
+                                                     final @NonNull OperationTimeout timeout) {
+        // A limit of one concludes the scan from within the scan callback that
+        // delivers the first match, so the connection attempt is started from
+        // that same callback rather than after the scan's full duration.
+        return discoverPeripherals(peripheralCriteria, 1).flatMap(new Func1<List<GattPeripheral>, Observable<GattPeripheral>>() {
+            @Override
+            public Observable<GattPeripheral> call(List<GattPeripheral> peripherals) {
+                if (peripherals.isEmpty()) {
+                    return Observable.error(new PeripheralNotFoundException());
+                }
+
+                final GattPeripheral peripheral = peripherals.get(0);
+                logger.info(LOG_TAG, "Found " + peripheral + ", connecting immediately");
+                return peripheral.connect(flags, timeout);
+            }
+        });
+    }
+
+    @NonNull
+    @Override
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    public Observable<GattPeripheral> observeAdvertisements(final @NonNull PeripheralCriteria peripheralCriteria) {
+        if (adapter == null || !adapter.isEnabled()) {
+            return Observable.error(new UserDisabledBuruberiException());
+        }
+
+        if (ScanMultiplexer.canShare(peripheralCriteria)) {
+            return newConfiguredObservable(scanMultiplexer.observe(peripheralCriteria));
+        }
+
+        return newConfiguredObservable(new Observable.OnSubscribe<GattPeripheral>() {
+            @Override
+            public void call(final Subscriber<? super GattPeripheral> downstream) {
+                // Changes are reported from the scan callback thread, while the
+                // scan itself concludes on the stack's scheduler.
+                final Subscriber<GattPeripheral> subscriber = new SerializedSubscriber<>(downstream);
+                final LePeripheralScanner.ChangeListener changeListener = new LePeripheralScanner.ChangeListener() {
+                    @Override
+                    public void onAdvertisementChanged(@NonNull BluetoothDevice device,
+                                                       @NonNull AdvertisingData advertisingData,
+                                                       int rssi) {
+                        if (!subscriber.isUnsubscribed()) {
+                            subscriber.onNext(new NativeGattPeripheral(NativeBluetoothStack.this, device,
+                                                                       rssi, advertisingData));
+                        }
+                    }
+                };
+                final LePeripheralScanner scanner = createLeScanner(peripheralCriteria,
+                                                                    peripheralCriteria.limit,
+                                                                    changeListener);
+                scanner.call(new Subscriber<List<GattPeripheral>>(subscriber) {
+                    @Override
+                    public void onCompleted() {
+                        subscriber.onCompleted();
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        subscriber.onError(e);
+                    }
+
+                    @Override
+                    public void onNext(List<GattPeripheral> ignored) {
+                        // Every peripheral has already been delivered.
+                    }
+                });
             }
+        });
+    }
+
+    @NonNull
+    @Override
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    public Observable<PresenceEvent> monitorPresence(@NonNull PeripheralCriteria peripheralCriteria) {
+        final PresenceSession session = new PresenceSession(this, peripheralCriteria);
+        if (adapter != null && adapter.isEnabled()) {
+            return newConfiguredObservable(session);
+        } else {
+            return Observable.error(new UserDisabledBuruberiException());
+        }
+    }
+
+    @NonNull
+    @Override
+    @RequiresPermission(allOf = {
+            Manifest.permission.BLUETOOTH,
+            Manifest.permission.BLUETOOTH_ADMIN,
+    })
+    public Observable<List<TelemetrySample>> ingestTelemetry(@NonNull PeripheralCriteria peripheralCriteria,
+                                                             @NonNull AdvertisingDecoderRegistry decoders,
+                                                             long batchInterval) {
+        final TelemetryIngestion ingestion = new TelemetryIngestion(this, peripheralCriteria,
+                                                                    decoders, batchInterval);
+        if (adapter != null && adapter.isEnabled()) {
+            return newConfiguredObservable(ingestion);
         } else {
             return Observable.error(new UserDisabledBuruberiException());
         }
@@ -170,6 +376,11 @@ public class NativeBluetoothStack implements BluetoothStack {
                          .doOnError(errorListener);
     }
 
+    @Override
+    public void setMaximumConcurrentOperations(int maximumConcurrentOperations) {
+        arbiter.setLimit(maximumConcurrentOperations);
+    }
+
     @Override
     @RequiresPermission(Manifest.permission.BLUETOOTH)
     public Observable<Boolean> enabled() {
@@ -285,6 +496,26 @@ public class NativeBluetoothStack implements BluetoothStack {
         return logger;
     }
 
+    /*package*/ @NonNull ConnectionRestorer getConnectionRestorer() {
+        return connectionRestorer;
+    }
+
+    /*package*/ @NonNull LatencyHistory getLatencyHistory() {
+        return latencyHistory;
+    }
+
+    /*package*/ @NonNull GattArbiter getArbiter() {
+        return arbiter;
+    }
+
+    /**
+     * Returns the cached name, bond state, and type of a given device.
+     * Each is only read from the Bluetooth service the first time it is used.
+     */
+    /*package*/ @NonNull DeviceMetadataCache.Entry getDeviceMetadata(@NonNull BluetoothDevice device) {
+        return deviceMetadata.get(device);
+    }
+
 
     @Nullable
     @Override
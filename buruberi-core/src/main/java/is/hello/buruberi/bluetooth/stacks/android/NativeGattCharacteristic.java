@@ -103,7 +103,7 @@ class NativeGattCharacteristic implements GattCharacteristic {
     @Override
     @NonNull
     public Observable<byte[]> read(@NonNull final OperationTimeout timeout) {
-        return peripheral.createObservable(new ConnectedOnSubscribe<byte[]>(peripheral) {
+        return peripheral.createObservable(Operation.READ, new ConnectedOnSubscribe<byte[]>(peripheral) {
             @Override
             public void onSubscribe(@NonNull BluetoothGatt gatt,
                                     @NonNull final Subscriber<? super byte[]> subscriber) {
@@ -122,6 +122,8 @@ class NativeGattCharacteristic implements GattCharacteristic {
                         timeout.unschedule();
 
                         if (status == BluetoothGatt.GATT_SUCCESS) {
+                            AdaptiveOperationTimeout.recordSuccess(timeout);
+
                             final byte[] value = characteristic.getValue();
                             subscriber.onNext(value);
                             subscriber.onCompleted();
@@ -154,7 +156,7 @@ class NativeGattCharacteristic implements GattCharacteristic {
     @Override
     public Observable<UUID> enableNotification(@NonNull final UUID descriptor,
                                                @NonNull final OperationTimeout timeout) {
-        return peripheral.createObservable(new ConnectedOnSubscribe<UUID>(peripheral) {
+        return peripheral.createObservable(Operation.ENABLE_NOTIFICATION, new ConnectedOnSubscribe<UUID>(peripheral) {
             @Override
             public void onSubscribe(@NonNull BluetoothGatt gatt,
                                     @NonNull final Subscriber<? super UUID> subscriber) {
@@ -179,6 +181,9 @@ class NativeGattCharacteristic implements GattCharacteristic {
                             timeout.unschedule();
 
                             if (status == BluetoothGatt.GATT_SUCCESS) {
+                                AdaptiveOperationTimeout.recordSuccess(timeout);
+                                peripheral.onNotificationEnabled(service.getUuid(), getUuid(),
+                                                                 descriptor.getUuid());
                                 subscriber.onNext(getUuid());
                                 subscriber.onCompleted();
                             } else {
@@ -218,7 +223,7 @@ class NativeGattCharacteristic implements GattCharacteristic {
     @Override
     public Observable<UUID> disableNotification(@NonNull final UUID descriptor,
                                                 @NonNull final OperationTimeout timeout) {
-        return peripheral.createObservable(new ConnectedOnSubscribe<UUID>(peripheral) {
+        return peripheral.createObservable(Operation.DISABLE_NOTIFICATION, new ConnectedOnSubscribe<UUID>(peripheral) {
             @Override
             public void onSubscribe(@NonNull BluetoothGatt gatt,
                                     @NonNull final Subscriber<? super UUID> subscriber) {
@@ -242,6 +247,8 @@ class NativeGattCharacteristic implements GattCharacteristic {
 
                         if (status == BluetoothGatt.GATT_SUCCESS) {
                             if (gatt.setCharacteristicNotification(wrappedCharacteristic, false)) {
+                                AdaptiveOperationTimeout.recordSuccess(timeout);
+                                peripheral.onNotificationDisabled(service.getUuid(), getUuid());
                                 subscriber.onNext(getUuid());
                                 subscriber.onCompleted();
                             } else {
@@ -287,7 +294,7 @@ class NativeGattCharacteristic implements GattCharacteristic {
                                                                          " greater than " + PACKET_LENGTH));
         }
 
-        return peripheral.createObservable(new Observable.OnSubscribe<Void>() {
+        return peripheral.createObservable(Operation.WRITE_COMMAND, new Observable.OnSubscribe<Void>() {
             @Override
             public void call(final Subscriber<? super Void> subscriber) {
                 if (peripheral.getConnectionStatus() != GattPeripheral.STATUS_CONNECTED ||
@@ -314,6 +321,8 @@ class NativeGattCharacteristic implements GattCharacteristic {
                             subscriber.onError(new GattException(status,
                                                                  Operation.WRITE_COMMAND));
                         } else {
+                            AdaptiveOperationTimeout.recordSuccess(timeout);
+
                             subscriber.onNext(null);
                             subscriber.onCompleted();
                         }
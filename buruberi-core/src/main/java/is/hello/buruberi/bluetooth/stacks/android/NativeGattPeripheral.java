@@ -38,6 +38,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import is.hello.buruberi.bluetooth.errors.BondException;
 import is.hello.buruberi.bluetooth.errors.ConnectionStateException;
@@ -46,9 +47,12 @@ import is.hello.buruberi.bluetooth.errors.LostConnectionException;
 import is.hello.buruberi.bluetooth.errors.OperationTimeoutException;
 import is.hello.buruberi.bluetooth.errors.ServiceDiscoveryException;
 import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.GattCharacteristic;
 import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
 import is.hello.buruberi.bluetooth.stacks.GattService;
+import is.hello.buruberi.bluetooth.stacks.IdlePolicy;
 import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
+import is.hello.buruberi.bluetooth.stacks.RetryPolicy;
 import is.hello.buruberi.bluetooth.stacks.android.GattDispatcher.ServicesDiscoveredListener;
 import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
 import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
@@ -71,19 +75,38 @@ public class NativeGattPeripheral implements GattPeripheral,
      */
     private static final int SERVICES_DELAY_S = 5;
 
+    /**
+     * Indicates that the connection status of the peripheral has not
+     * been tracked, and must be queried from the Bluetooth service.
+     */
+    private static final int STATUS_UNKNOWN = -1;
+
     private final @NonNull NativeBluetoothStack stack;
     private final @NonNull LoggerFacade logger;
     private final SerialQueue serialQueue;
 
     /*package*/ final @NonNull BluetoothDevice bluetoothDevice;
+    private final @NonNull DeviceMetadataCache.Entry metadata;
     private final int scannedRssi;
     private final @NonNull AdvertisingData advertisingData;
 
+    /**
+     * The signal strength of the peripheral smoothed over the scan that vended it,
+     * and when that scan last saw the peripheral. The time is {@code 0} for
+     * peripherals that were not vended by a scan.
+     */
+    /*package*/ float scanSmoothedRssi;
+    /*package*/ long scanLastSeen = 0;
+
     /*package*/ final GattDispatcher gattDispatcher;
     private final DisconnectForwarder disconnectForwarder;
+    private final IdleMonitor idleMonitor;
+    private final OperationRetrier retrier;
+    private final ConnectionRestorer connectionRestorer;
     private final List<Runnable> disconnectListeners = new ArrayList<>();
 
     /*package*/ @Nullable BluetoothGatt gatt;
+    private final AtomicInteger connectionStatus = new AtomicInteger(STATUS_UNKNOWN);
     @VisibleForTesting @NonNull Map<UUID, NativeGattService> services = Collections.emptyMap();
     private @Nullable BroadcastReceiver bluetoothStateReceiver;
 
@@ -96,12 +119,17 @@ public class NativeGattPeripheral implements GattPeripheral,
         this.serialQueue = new SerialQueue();
 
         this.bluetoothDevice = bluetoothDevice;
+        this.metadata = stack.getDeviceMetadata(bluetoothDevice);
         this.scannedRssi = scannedRssi;
+        this.scanSmoothedRssi = scannedRssi;
         this.advertisingData = advertisingData;
 
         this.gattDispatcher = new GattDispatcher(logger, this);
         this.disconnectForwarder = new DisconnectForwarder();
         gattDispatcher.addConnectionListener(disconnectForwarder);
+        this.idleMonitor = new IdleMonitor(stack, this);
+        this.retrier = new OperationRetrier(stack);
+        this.connectionRestorer = stack.getConnectionRestorer();
     }
 
 
@@ -115,6 +143,15 @@ public class NativeGattPeripheral implements GattPeripheral,
         return new SchedulerOperationTimeout(name, duration, timeUnit, logger);
     }
 
+    @NonNull
+    @Override
+    public OperationTimeout createAdaptiveOperationTimeout(@NonNull Operation operation,
+                                                           long maximumDuration,
+                                                           @NonNull TimeUnit timeUnit) {
+        return new AdaptiveOperationTimeout(getAddress(), operation, stack.getLatencyHistory(),
+                                            maximumDuration, timeUnit, logger);
+    }
+
     @Override
     public int getScanTimeRssi() {
         return scannedRssi;
@@ -127,7 +164,7 @@ public class NativeGattPeripheral implements GattPeripheral,
 
     @Override
     public String getName() {
-        return bluetoothDevice.getName();
+        return metadata.getName();
     }
 
     @NonNull
@@ -202,6 +239,9 @@ public class NativeGattPeripheral implements GattPeripheral,
 
                 this.gatt = null;
                 this.services = Collections.emptyMap();
+                connectionStatus.set(STATUS_DISCONNECTED);
+                idleMonitor.stop();
+                connectionRestorer.onDisconnected(this);
 
                 stopObservingBluetoothState();
             }
@@ -227,9 +267,20 @@ public class NativeGattPeripheral implements GattPeripheral,
         this.bluetoothStateReceiver = new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
-                logger.info(LOG_TAG, "User disabled bluetooth radio, abandoning connection");
+                if (gatt == null) {
+                    return;
+                }
+
+                final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE,
+                                                     BluetoothAdapter.ERROR);
+                if (state == BluetoothAdapter.STATE_ON) {
+                    // The radio may have been cycled without a connection state
+                    // callback being delivered, so the tracked status is stale.
+                    reconcileConnectionStatus();
+                } else if (!stack.getAdapter().isEnabled()) {
+                    logger.info(LOG_TAG, "User disabled bluetooth radio, abandoning connection");
 
-                if (!stack.getAdapter().isEnabled() && gatt != null) {
+                    connectionStatus.set(STATUS_DISCONNECTED);
                     gatt.disconnect();
                 }
             }
@@ -250,7 +301,7 @@ public class NativeGattPeripheral implements GattPeripheral,
     @RequiresPermission(Manifest.permission.BLUETOOTH)
     public Observable<GattPeripheral> connect(@ConnectFlags final int flags,
                                               @NonNull final OperationTimeout timeout) {
-        return createObservable(new Observable.OnSubscribe<GattPeripheral>() {
+        return createObservable(Operation.CONNECT, new Observable.OnSubscribe<GattPeripheral>() {
             @Override
             public void call(final Subscriber<? super GattPeripheral> subscriber) {
                 if (getConnectionStatus() == STATUS_CONNECTED) {
@@ -265,7 +316,7 @@ public class NativeGattPeripheral implements GattPeripheral,
                     return;
                 }
 
-                final boolean autoConnect = ((flags & CONNECT_FLAG_WAIT_AVAILABLE) == CONNECT_FLAG_WAIT_AVAILABLE);
+                final ConnectStrategy strategy = new ConnectStrategy(stack, getAddress(), flags);
                 final int transport = getTransportFromConnectFlags(flags);
 
                 final GattDispatcher.ConnectionListener listener = new GattDispatcher.ConnectionListener() {
@@ -274,10 +325,14 @@ public class NativeGattPeripheral implements GattPeripheral,
                     @Override
                     boolean onConnected(@NonNull final BluetoothGatt gatt, int status) {
                         timeout.unschedule();
+                        AdaptiveOperationTimeout.recordSuccess(timeout);
+                        strategy.stop();
 
                         logger.info(LOG_TAG, "Connected " + NativeGattPeripheral.this.toString());
 
                         startObservingBluetoothState();
+                        idleMonitor.start();
+                        connectionRestorer.onConnected(NativeGattPeripheral.this, flags);
 
                         disconnectForwarder.setEnabled(true);
                         subscriber.onNext(NativeGattPeripheral.this);
@@ -306,13 +361,15 @@ public class NativeGattPeripheral implements GattPeripheral,
                             NativeGattPeripheral.this.gatt =
                                     BluetoothDeviceCompat.connectGatt(bluetoothDevice,
                                                                       stack.applicationContext,
-                                                                      autoConnect,
+                                                                      strategy.isWaitingForAvailable(),
                                                                       gattDispatcher,
                                                                       transport);
                             if (NativeGattPeripheral.this.gatt != null) {
+                                connectionStatus.set(STATUS_CONNECTING);
                                 timeout.reschedule();
                             } else {
                                 timeout.unschedule();
+                                strategy.stop();
 
                                 disconnectForwarder.setEnabled(true);
                                 subscriber.onError(new GattException(GattException.GATT_INTERNAL_ERROR,
@@ -322,6 +379,7 @@ public class NativeGattPeripheral implements GattPeripheral,
                             return true;
                         } else {
                             timeout.unschedule();
+                            strategy.stop();
 
                             logger.error(LOG_TAG,
                                          "Could not connect. " + GattException.statusToString(status),
@@ -340,10 +398,14 @@ public class NativeGattPeripheral implements GattPeripheral,
                     @Override
                     public void call() {
                         timeout.unschedule();
+                        strategy.stop();
 
                         gattDispatcher.removeConnectionListener(listener);
                         stopObservingBluetoothState();
 
+                        // The attempt may still be pending, or have silently failed.
+                        connectionStatus.set(STATUS_UNKNOWN);
+
                         disconnectForwarder.setEnabled(true);
                         subscriber.onError(new OperationTimeoutException(Operation.CONNECT));
                     }
@@ -351,32 +413,63 @@ public class NativeGattPeripheral implements GattPeripheral,
 
                 logger.info(LOG_TAG, "Connecting " + NativeGattPeripheral.this.toString());
 
-                if (gatt != null) {
-                    if (gatt.connect()) {
-                        disconnectForwarder.setEnabled(false);
-                        timeout.schedule();
-                    } else {
-                        gattDispatcher.removeConnectionListener(listener);
+                if (gatt != null && !strategy.isWaitingForAvailable()) {
+                    // Reissuing the attempt of an existing client always waits for
+                    // the peripheral to become available, so a direct connection
+                    // needs a new client. Closing the stale client cancels any
+                    // attempt it still has pending.
+                    gatt.close();
+                    NativeGattPeripheral.this.gatt = null;
+                }
 
-                        subscriber.onError(new GattException(GattException.GATT_INTERNAL_ERROR,
-                                                             Operation.CONNECT));
-                    }
+                final boolean attemptStarted;
+                if (gatt != null) {
+                    attemptStarted = gatt.connect();
                 } else {
                     NativeGattPeripheral.this.gatt =
                             BluetoothDeviceCompat.connectGatt(bluetoothDevice,
                                                               stack.applicationContext,
-                                                              autoConnect,
+                                                              strategy.isWaitingForAvailable(),
                                                               gattDispatcher,
                                                               transport);
-                    if (gatt != null) {
-                        disconnectForwarder.setEnabled(false);
-                        timeout.schedule();
-                    } else {
-                        gattDispatcher.removeConnectionListener(listener);
+                    attemptStarted = (gatt != null);
+                }
 
-                        subscriber.onError(new GattException(GattException.GATT_INTERNAL_ERROR,
-                                                             Operation.CONNECT));
-                    }
+                if (attemptStarted) {
+                    connectionStatus.set(STATUS_CONNECTING);
+                    disconnectForwarder.setEnabled(false);
+                    timeout.schedule();
+
+                    strategy.start(new ConnectStrategy.Listener() {
+                        @Override
+                        public void onSwitchConnectMode(boolean autoConnect) {
+                            // Closing the pending client cancels its connection attempt
+                            // without delivering a disconnect callback.
+                            if (gatt != null) {
+                                gatt.close();
+                            }
+                            NativeGattPeripheral.this.gatt =
+                                    BluetoothDeviceCompat.connectGatt(bluetoothDevice,
+                                                                      stack.applicationContext,
+                                                                      autoConnect,
+                                                                      gattDispatcher,
+                                                                      transport);
+                            if (gatt == null) {
+                                timeout.unschedule();
+                                strategy.stop();
+
+                                gattDispatcher.removeConnectionListener(listener);
+                                disconnectForwarder.setEnabled(true);
+                                subscriber.onError(new GattException(GattException.GATT_INTERNAL_ERROR,
+                                                                     Operation.CONNECT));
+                            }
+                        }
+                    });
+                } else {
+                    gattDispatcher.removeConnectionListener(listener);
+
+                    subscriber.onError(new GattException(GattException.GATT_INTERNAL_ERROR,
+                                                         Operation.CONNECT));
                 }
             }
         });
@@ -389,13 +482,13 @@ public class NativeGattPeripheral implements GattPeripheral,
         return createObservable(new Observable.OnSubscribe<GattPeripheral>() {
             @Override
             public void call(final Subscriber<? super GattPeripheral> subscriber) {
-                final int connectionStatus = getConnectionStatus();
-                if (connectionStatus == STATUS_DISCONNECTED ||
-                        connectionStatus == STATUS_DISCONNECTING || gatt == null) {
+                final int status = getConnectionStatus();
+                if (status == STATUS_DISCONNECTED ||
+                        status == STATUS_DISCONNECTING || gatt == null) {
                     subscriber.onNext(NativeGattPeripheral.this);
                     subscriber.onCompleted();
                     return;
-                } else if (connectionStatus == STATUS_CONNECTING) {
+                } else if (status == STATUS_CONNECTING) {
                     subscriber.onError(new ConnectionStateException("Peripheral is connecting"));
                     return;
                 }
@@ -427,22 +520,60 @@ public class NativeGattPeripheral implements GattPeripheral,
 
                 logger.info(LOG_TAG, "Disconnecting " + NativeGattPeripheral.this.toString());
 
+                connectionStatus.set(STATUS_DISCONNECTING);
                 gatt.disconnect();
             }
         });
     }
 
+    /**
+     * Returns the connection status of the peripheral. The status is tracked from
+     * connection state callbacks, and the Bluetooth service is only queried when the
+     * status is unknown, such as after a connection attempt times out.
+     */
     @Override
     @RequiresPermission(Manifest.permission.BLUETOOTH)
     public @ConnectivityStatus int getConnectionStatus() {
-        if (gatt != null) {
-            final @ConnectivityStatus int status =
-                    stack.bluetoothManager.getConnectionState(bluetoothDevice,
-                                                              BluetoothProfile.GATT);
-            return status;
-        } else {
+        if (gatt == null) {
             return STATUS_DISCONNECTED;
         }
+
+        @SuppressWarnings("ResourceType")
+        final @ConnectivityStatus int status = connectionStatus.get();
+        if (status == STATUS_UNKNOWN) {
+            return queryConnectionStatus();
+        } else {
+            return status;
+        }
+    }
+
+    /**
+     * Queries the Bluetooth service for the connection status of the peripheral,
+     * and replaces the tracked status with the result. Involves an IPC call.
+     */
+    @RequiresPermission(Manifest.permission.BLUETOOTH)
+    /*package*/ @ConnectivityStatus int reconcileConnectionStatus() {
+        final @ConnectivityStatus int status = queryConnectionStatus();
+        connectionStatus.set(status);
+        return status;
+    }
+
+    @Override
+    public void setIdlePolicy(@Nullable IdlePolicy idlePolicy) {
+        idleMonitor.setPolicy(idlePolicy);
+    }
+
+    @Override
+    public void setRetryPolicy(@Nullable RetryPolicy retryPolicy) {
+        retrier.setPolicy(retryPolicy);
+    }
+
+    @RequiresPermission(Manifest.permission.BLUETOOTH)
+    private @ConnectivityStatus int queryConnectionStatus() {
+        final @ConnectivityStatus int status =
+                stack.bluetoothManager.getConnectionState(bluetoothDevice,
+                                                          BluetoothProfile.GATT);
+        return status;
     }
 
     //endregion
@@ -450,8 +581,54 @@ public class NativeGattPeripheral implements GattPeripheral,
 
     //region Internal
 
-    /*package*/ <T> Observable<T> createObservable(@NonNull Observable.OnSubscribe<T> onSubscribe) {
-        return Rx.serialize(stack.newConfiguredObservable(onSubscribe), serialQueue);
+    /*package*/ void onNotificationEnabled(@NonNull UUID service,
+                                           @NonNull UUID characteristic,
+                                           @NonNull UUID descriptor) {
+        connectionRestorer.onNotificationEnabled(this, service, characteristic, descriptor);
+    }
+
+    /*package*/ void onNotificationDisabled(@NonNull UUID service,
+                                            @NonNull UUID characteristic) {
+        connectionRestorer.onNotificationDisabled(this, service, characteristic);
+    }
+
+    /*package*/ void onPacketListenerDropped(@NonNull UUID service,
+                                             @NonNull UUID characteristic,
+                                             @NonNull GattCharacteristic.PacketListener packetListener) {
+        connectionRestorer.onPacketListenerDropped(this, service, characteristic, packetListener);
+    }
+
+    private <T> Observable<T> createTrackedObservable(final @NonNull Observable.OnSubscribe<T> onSubscribe) {
+        final Observable.OnSubscribe<T> trackedOnSubscribe = new Observable.OnSubscribe<T>() {
+            @Override
+            public void call(Subscriber<? super T> subscriber) {
+                idleMonitor.onActivity();
+                onSubscribe.call(subscriber);
+            }
+        };
+        return stack.newConfiguredObservable(trackedOnSubscribe);
+    }
+
+    /*package*/ <T> Observable<T> createObservable(final @NonNull Observable.OnSubscribe<T> onSubscribe) {
+        return Rx.serialize(createTrackedObservable(onSubscribe), serialQueue);
+    }
+
+    /**
+     * Creates an observable for an operation that is retried according to the peripheral's
+     * retry policy. Retries are performed without giving up the operation's place in the
+     * serial queue, so no other operation can be performed between attempts.
+     * <p>
+     * Each attempt other than a connection attempt must also be admitted by the stack's
+     * arbiter, which only sees an operation once it has reached the front of the serial
+     * queue. The arbiter is not held between attempts.
+     */
+    /*package*/ <T> Observable<T> createObservable(final @NonNull Operation operation,
+                                                   final @NonNull Observable.OnSubscribe<T> onSubscribe) {
+        Observable<T> attempt = createTrackedObservable(onSubscribe);
+        if (operation != Operation.CONNECT) {
+            attempt = stack.getArbiter().arbitrate(attempt);
+        }
+        return Rx.serialize(retrier.apply(operation, attempt), serialQueue);
     }
 
     /*package*/ <T> void setupTimeout(@NonNull final Operation operation,
@@ -635,6 +812,7 @@ public class NativeGattPeripheral implements GattPeripheral,
                         if (state == BluetoothDevice.BOND_NONE) {
                             logger.info(LOG_TAG, "Removing bond succeeded.");
                             timeout.unschedule();
+                            AdaptiveOperationTimeout.recordSuccess(timeout);
 
                             subscriber.onNext(NativeGattPeripheral.this);
                             subscriber.onCompleted();
@@ -712,9 +890,11 @@ public class NativeGattPeripheral implements GattPeripheral,
                         removeDisconnectListener(onDisconnect);
 
                         if (status == BluetoothGatt.GATT_SUCCESS) {
+                            AdaptiveOperationTimeout.recordSuccess(timeout);
                             NativeGattPeripheral.this.services =
                                     NativeGattService.wrap(gatt.getServices(),
                                                            NativeGattPeripheral.this);
+                            connectionRestorer.onServicesDiscovered(NativeGattPeripheral.this);
                             subscriber.onNext(services);
                             subscriber.onCompleted();
 
@@ -745,7 +925,7 @@ public class NativeGattPeripheral implements GattPeripheral,
         };
 
         // See <https://code.google.com/p/android/issues/detail?id=58381>
-        return createObservable(onSubscribe).delay(SERVICES_DELAY_S,
+        return createObservable(Operation.DISCOVER_SERVICES, onSubscribe).delay(SERVICES_DELAY_S,
                                                    TimeUnit.SECONDS,
                                                    stack.getScheduler());
     }
@@ -793,7 +973,7 @@ public class NativeGattPeripheral implements GattPeripheral,
                 "name=" + getName() +
                 ", address=" + getAddress() +
                 ", connectionStatus=" + getConnectionStatus() +
-                ", bondStatus=" + getBondStatus() +
+                ", bondStatus=" + metadata.getBondState() +
                 ", scannedRssi=" + getScanTimeRssi() +
                 '}';
     }
@@ -818,26 +998,30 @@ public class NativeGattPeripheral implements GattPeripheral,
             }
         }
 
+        // This listener is registered first and never removed, so it tracks the
+        // connection status before any other listener observes a state change.
+
         @Override
         /*package*/ boolean onConnected(@NonNull BluetoothGatt gatt, int status) {
-            // Do nothing, prevent this listener from being removed.
+            connectionStatus.set(STATUS_CONNECTED);
             return true;
         }
 
         @Override
         /*package*/ boolean onConnecting(@NonNull BluetoothGatt gatt, int status) {
-            // Do nothing, prevent this listener from being removed.
+            connectionStatus.set(STATUS_CONNECTING);
             return true;
         }
 
         @Override
         /*package*/ boolean onDisconnecting(@NonNull BluetoothGatt gatt, int status) {
-            // Do nothing, prevent this listener from being removed.
+            connectionStatus.set(STATUS_DISCONNECTING);
             return true;
         }
 
         @Override
         /*package*/ boolean onDisconnected(@NonNull BluetoothGatt gatt, int status) {
+            connectionStatus.set(STATUS_DISCONNECTED);
             broadcast();
             return true;
         }
@@ -845,7 +1029,10 @@ public class NativeGattPeripheral implements GattPeripheral,
         @Override
         /*package*/ boolean onError(@NonNull BluetoothGatt gatt, int status, int state) {
             if (state == STATUS_DISCONNECTED) {
+                connectionStatus.set(STATUS_DISCONNECTED);
                 broadcast();
+            } else {
+                connectionStatus.set(STATUS_UNKNOWN);
             }
             return true;
         }
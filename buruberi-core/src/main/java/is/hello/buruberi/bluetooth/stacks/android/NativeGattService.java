@@ -110,6 +110,7 @@ public class NativeGattService implements GattService {
             final GattCharacteristic.PacketListener listener = characteristic.packetListener;
             if (listener != null) {
                 listener.onPeripheralDisconnected();
+                peripheral.onPacketListenerDropped(getUuid(), characteristic.getUuid(), listener);
                 characteristic.packetListener = null;
             }
         }
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.RetryPolicy;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.util.Operation;
+import rx.Observable;
+import rx.functions.Func1;
+
+/**
+ * Applies a peripheral's {@link RetryPolicy} to its operations,
+ * and tracks the retries counted against the policy's budget.
+ * <p>
+ * The policy is read each time an operation fails, so
+ * changes apply to operations that are already in progress.
+ */
+/*package*/ final class OperationRetrier {
+    private final @NonNull NativeBluetoothStack stack;
+    private final @NonNull LoggerFacade logger;
+    private final Random random = new Random();
+
+    /**
+     * When each retry within the current budget window was performed.
+     * Guarded by {@code this}.
+     */
+    private final ArrayDeque<Long> retryTimes = new ArrayDeque<>();
+
+    private volatile @Nullable RetryPolicy policy;
+
+    /*package*/ OperationRetrier(@NonNull NativeBluetoothStack stack) {
+        this.stack = stack;
+        this.logger = stack.getLogger();
+    }
+
+    /*package*/ void setPolicy(@Nullable RetryPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Returns a given operation's observable, resubscribed
+     * to whenever the retry policy allows it to be retried.
+     */
+    /*package*/ <T> Observable<T> apply(final @NonNull Operation operation,
+                                        @NonNull Observable<T> source) {
+        return source.retryWhen(new Func1<Observable<? extends Throwable>, Observable<?>>() {
+            @Override
+            public Observable<?> call(Observable<? extends Throwable> errors) {
+                return errors.flatMap(new Func1<Throwable, Observable<?>>() {
+                    int retries = 0;
+
+                    @Override
+                    public Observable<?> call(Throwable e) {
+                        final RetryPolicy policy = OperationRetrier.this.policy;
+                        if (policy == null || retries >= policy.maximumRetries ||
+                                !policy.isRetryable(operation, e) || !consumeBudget(policy)) {
+                            return Observable.error(e);
+                        }
+
+                        this.retries++;
+                        final long delay = policy.getDelay(retries, random.nextFloat());
+                        logger.warn(GattPeripheral.LOG_TAG, "Retrying " + operation + " after " +
+                                e.getMessage() + " in " + delay + "ms (retry " + retries + ")");
+                        return Observable.timer(delay, TimeUnit.MILLISECONDS, stack.getScheduler());
+                    }
+                });
+            }
+        });
+    }
+
+    private synchronized boolean consumeBudget(@NonNull RetryPolicy policy) {
+        final long now = SystemClock.elapsedRealtime();
+        while (!retryTimes.isEmpty() && (now - retryTimes.peekFirst()) >= policy.budgetWindow) {
+            retryTimes.removeFirst();
+        }
+
+        if (retryTimes.size() >= policy.budget) {
+            logger.warn(GattPeripheral.LOG_TAG, "Retry budget exhausted");
+            return false;
+        }
+
+        retryTimes.addLast(now);
+        return true;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import is.hello.buruberi.bluetooth.stacks.util.PresenceEvent;
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Monitors the presence of peripherals over a long period of time using a
+ * {@link ScanRotation}. The signal strength and last seen time of each
+ * peripheral are carried across scan windows.
+ * <p>
+ * All state is confined to the stack's scheduler.
+ */
+/*package*/ final class PresenceSession implements Observable.OnSubscribe<PresenceEvent>, ScanRotation.Listener {
+    /**
+     * The weight given to each window's RSSI when updating a peripheral's smoothed RSSI.
+     */
+    private static final float RSSI_SMOOTHING_FACTOR = 0.5f;
+
+    private final @NonNull LoggerFacade logger;
+    private final @NonNull PeripheralCriteria peripheralCriteria;
+    private final @NonNull ScanRotation rotation;
+    @VisibleForTesting final Map<String, Presence> presences = new HashMap<>();
+
+    private @Nullable Subscriber<? super PresenceEvent> subscriber;
+
+    /*package*/ PresenceSession(@NonNull NativeBluetoothStack stack,
+                                @NonNull PeripheralCriteria peripheralCriteria) {
+        this.logger = stack.getLogger();
+        this.peripheralCriteria = peripheralCriteria;
+        this.rotation = new ScanRotation(stack, peripheralCriteria, null, this);
+    }
+
+    @Override
+    public void call(Subscriber<? super PresenceEvent> subscriber) {
+        this.subscriber = subscriber;
+        subscriber.add(Subscriptions.create(new Action0() {
+            @Override
+            public void call() {
+                rotation.stop();
+            }
+        }));
+
+        rotation.start();
+    }
+
+    @Override
+    public void onRotationError(@NonNull Throwable e) {
+        if (subscriber != null) {
+            subscriber.onError(e);
+        }
+    }
+
+
+    //region Presence
+
+    @Override
+    public void onWindowConcluded(@NonNull List<GattPeripheral> peripherals, long now) {
+        for (final GattPeripheral peripheral : peripherals) {
+            final String address = peripheral.getAddress();
+            Presence presence = presences.get(address);
+            final long seenAt = getLastSeen(peripheral, now);
+            if (presence == null) {
+                presence = new Presence(peripheral, seenAt);
+                presences.put(address, presence);
+            } else {
+                presence.update(peripheral, seenAt);
+            }
+
+            if (!presence.present && presence.smoothedRssi >= peripheralCriteria.enterRssi) {
+                presence.present = true;
+                emit(PresenceEvent.Type.ENTERED, presence);
+            } else if (presence.present && presence.smoothedRssi < peripheralCriteria.exitRssi) {
+                presence.present = false;
+                emit(PresenceEvent.Type.EXITED, presence);
+            }
+        }
+
+        final Iterator<Presence> iterator = presences.values().iterator();
+        while (iterator.hasNext()) {
+            final Presence presence = iterator.next();
+            if ((now - presence.lastSeen) < peripheralCriteria.exitTimeout) {
+                continue;
+            }
+
+            if (presence.present) {
+                presence.present = false;
+                emit(PresenceEvent.Type.EXITED, presence);
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns when the window last saw a peripheral, falling back to
+     * the end of the window for peripherals not vended by a scan.
+     */
+    private static long getLastSeen(@NonNull GattPeripheral peripheral, long windowEnd) {
+        if (peripheral instanceof NativeGattPeripheral) {
+            final long lastSeen = ((NativeGattPeripheral) peripheral).scanLastSeen;
+            if (lastSeen > 0) {
+                return lastSeen;
+            }
+        }
+        return windowEnd;
+    }
+
+    /**
+     * Returns the signal strength of a peripheral smoothed over a window.
+     */
+    private static float getWindowRssi(@NonNull GattPeripheral peripheral) {
+        if (peripheral instanceof NativeGattPeripheral) {
+            return ((NativeGattPeripheral) peripheral).scanSmoothedRssi;
+        }
+        return peripheral.getScanTimeRssi();
+    }
+
+    private void emit(@NonNull PresenceEvent.Type type, @NonNull Presence presence) {
+        final PresenceEvent event = new PresenceEvent(type,
+                                                      presence.peripheral,
+                                                      presence.smoothedRssi,
+                                                      presence.lastSeen);
+        logger.info(BluetoothStack.LOG_TAG, "Presence changed " + event);
+        if (subscriber != null && !subscriber.isUnsubscribed()) {
+            subscriber.onNext(event);
+        }
+    }
+
+    @VisibleForTesting static final class Presence {
+        GattPeripheral peripheral;
+        float smoothedRssi;
+        long lastSeen;
+        boolean present = false;
+
+        Presence(@NonNull GattPeripheral peripheral, long seenAt) {
+            this.peripheral = peripheral;
+            this.smoothedRssi = getWindowRssi(peripheral);
+            this.lastSeen = seenAt;
+        }
+
+        void update(@NonNull GattPeripheral peripheral, long seenAt) {
+            this.peripheral = peripheral;
+            this.smoothedRssi += RSSI_SMOOTHING_FACTOR * (getWindowRssi(peripheral) - smoothedRssi);
+            this.lastSeen = seenAt;
+        }
+    }
+
+    //endregion
+}
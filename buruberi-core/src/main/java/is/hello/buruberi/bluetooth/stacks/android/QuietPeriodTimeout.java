@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import rx.Scheduler;
+import rx.Subscription;
+import rx.functions.Action0;
+
+/**
+ * Concludes a scan once new matching peripherals stop appearing.
+ * <p>
+ * The timeout is pushed back every time a new peripheral is matched, and fires
+ * once {@link PeripheralCriteria#quietPeriod} passes without a new match, but
+ * never before {@link PeripheralCriteria#minimumDuration} has elapsed. The
+ * scanner's regular timeout continues to bound the scan's maximum duration.
+ * <p>
+ * New matches may be reported from any thread. The timeout itself is only
+ * ever rescheduled on the scheduler it was created with.
+ */
+/*package*/ final class QuietPeriodTimeout {
+    private final @NonNull Scheduler.Worker worker;
+    private final @NonNull Action0 onQuiet;
+    private final long quietPeriod;
+    private final long minimumDuration;
+
+    /**
+     * Confined to the scheduler.
+     */
+    private long startedAt;
+    private @Nullable Subscription subscription;
+
+    /*package*/ QuietPeriodTimeout(@NonNull Scheduler scheduler,
+                                   @NonNull PeripheralCriteria peripheralCriteria,
+                                   @NonNull Action0 onQuiet) {
+        this.worker = scheduler.createWorker();
+        this.onQuiet = onQuiet;
+        this.quietPeriod = peripheralCriteria.quietPeriod;
+        this.minimumDuration = peripheralCriteria.minimumDuration;
+    }
+
+    /**
+     * Must be called on the scheduler.
+     */
+    /*package*/ void start(long now) {
+        this.startedAt = now;
+        schedule(Math.max(quietPeriod, minimumDuration));
+    }
+
+    /*package*/ void onNewMatch(final long now) {
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                if (subscription == null) {
+                    return;
+                }
+
+                final long remainingMinimum = minimumDuration - (now - startedAt);
+                schedule(Math.max(quietPeriod, remainingMinimum));
+            }
+        });
+    }
+
+    /**
+     * Cancels the timeout, and any pending reschedules. May be called from any thread.
+     */
+    /*package*/ void stop() {
+        worker.unsubscribe();
+    }
+
+    private void schedule(long delay) {
+        if (subscription != null) {
+            subscription.unsubscribe();
+        }
+        this.subscription = worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                if (subscription == null) {
+                    return;
+                }
+
+                QuietPeriodTimeout.this.subscription = null;
+                onQuiet.call();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
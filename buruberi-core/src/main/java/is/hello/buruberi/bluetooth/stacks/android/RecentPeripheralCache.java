@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.support.annotation.NonNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+
+/**
+ * Remembers the peripherals found by recent scans, so that a new scan with
+ * {@link PeripheralCriteria#cacheTtl} set can report them immediately.
+ * <p>
+ * Bounded to the {@link #MAXIMUM_ENTRIES} most recently seen peripherals.
+ * Thread safe.
+ */
+/*package*/ final class RecentPeripheralCache {
+    /*package*/ static final int MAXIMUM_ENTRIES = 128;
+
+    /**
+     * Orders peripherals from strongest to weakest signal at the time they were seen.
+     */
+    private static final Comparator<ScannedPeripheral> STRONGEST_FIRST = new Comparator<ScannedPeripheral>() {
+        @Override
+        public int compare(ScannedPeripheral lhs, ScannedPeripheral rhs) {
+            return (lhs.rssi > rhs.rssi) ? -1 : ((lhs.rssi < rhs.rssi) ? 1 : 0);
+        }
+    };
+
+    private final Map<String, ScannedPeripheral> entries =
+            new LinkedHashMap<String, ScannedPeripheral>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ScannedPeripheral> eldest) {
+                    return (size() > MAXIMUM_ENTRIES);
+                }
+            };
+
+    /**
+     * Records the results of a completed scan. Each peripheral is recorded as seen when
+     * the scan last saw it; {@code concludedAt} is used for peripherals without a sighting.
+     */
+    /*package*/ synchronized void record(@NonNull List<GattPeripheral> peripherals, long concludedAt) {
+        for (final GattPeripheral peripheral : peripherals) {
+            if (!(peripheral instanceof NativeGattPeripheral)) {
+                continue;
+            }
+
+            final NativeGattPeripheral nativePeripheral = (NativeGattPeripheral) peripheral;
+            final long lastSeen = (nativePeripheral.scanLastSeen != 0)
+                    ? nativePeripheral.scanLastSeen
+                    : concludedAt;
+            entries.put(nativePeripheral.getAddress(),
+                        new ScannedPeripheral(nativePeripheral.bluetoothDevice,
+                                              nativePeripheral.getAdvertisingData(),
+                                              nativePeripheral.getScanTimeRssi(),
+                                              lastSeen));
+        }
+    }
+
+    /**
+     * Returns the recorded peripherals that match a given set of criteria, and that were
+     * seen within its {@link PeripheralCriteria#cacheTtl}. The matches are ordered from
+     * strongest to weakest signal, and limited to the criteria's {@link PeripheralCriteria#limit}.
+     * <p>
+     * Cached peripherals are not matched adaptively, so that they do not skew
+     * the rejection statistics the criteria gathers from live advertisements.
+     */
+    /*package*/ @NonNull List<GattPeripheral> match(@NonNull NativeBluetoothStack stack,
+                                                    @NonNull PeripheralCriteria peripheralCriteria,
+                                                    long now) {
+        final List<ScannedPeripheral> matches = new ArrayList<>();
+        synchronized (this) {
+            final long cutOff = now - peripheralCriteria.cacheTtl;
+            for (final Map.Entry<String, ScannedPeripheral> entry : entries.entrySet()) {
+                final ScannedPeripheral scannedPeripheral = entry.getValue();
+                if (scannedPeripheral.lastSeen >= cutOff &&
+                        scannedPeripheral.rssi >= peripheralCriteria.minimumRssi &&
+                        peripheralCriteria.matchesAddress(entry.getKey()) &&
+                        peripheralCriteria.matches(scannedPeripheral.advertisingData)) {
+                    matches.add(scannedPeripheral);
+                }
+            }
+        }
+
+        Collections.sort(matches, STRONGEST_FIRST);
+
+        final int count = Math.min(matches.size(), peripheralCriteria.limit);
+        final List<GattPeripheral> peripherals = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            peripherals.add(matches.get(i).createPeripheral(stack));
+        }
+        return peripherals;
+    }
+
+    /*package*/ synchronized void clear() {
+        entries.clear();
+    }
+}
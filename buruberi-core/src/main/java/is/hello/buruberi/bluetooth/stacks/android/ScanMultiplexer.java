@@ -0,0 +1,322 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteriaIndex;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.observers.SerializedSubscriber;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Fans a single unfiltered platform scan out to many concurrent advertisement
+ * observers, so that each observer does not start a platform scan of its own.
+ * <p>
+ * The shared scan is a {@link ScanRotation} that starts with the first observer,
+ * and stops once the last observer goes away. Each advertisement is matched
+ * against every observer's criteria at once through a {@link PeripheralCriteriaIndex}.
+ * Observers that join a running scan are sent the latest advertisement of each
+ * peripheral seen in the current window.
+ * <p>
+ * Only criteria that are evaluated per advertisement can be shared,
+ * see {@link #canShare(PeripheralCriteria)}.
+ */
+/*package*/ final class ScanMultiplexer implements LePeripheralScanner.ChangeListener, ScanRotation.Listener {
+    private final @NonNull NativeBluetoothStack stack;
+    private final @NonNull LoggerFacade logger;
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private final PeripheralCriteriaIndex<Observer> index = new PeripheralCriteriaIndex<>();
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private final Set<Observer> observers = new HashSet<>();
+
+    /**
+     * The latest advertisement of each peripheral seen in the current window.
+     * Guarded by {@code this}.
+     */
+    private final Map<String, Advertisement> latest = new HashMap<>();
+
+    /**
+     * Only accessed on the stack's scheduler.
+     */
+    private @Nullable ScanRotation rotation;
+
+    /*package*/ ScanMultiplexer(@NonNull NativeBluetoothStack stack) {
+        this.stack = stack;
+        this.logger = stack.getLogger();
+    }
+
+    /**
+     * Returns whether or not a given set of criteria can be satisfied by the shared scan.
+     * Criteria that resolve identities, conclude early, or otherwise depend on the results
+     * of the scan as a whole require a scan of their own.
+     */
+    /*package*/ static boolean canShare(@NonNull PeripheralCriteria peripheralCriteria) {
+        return (peripheralCriteria.identityResolver == null &&
+                peripheralCriteria.quietPeriod == 0 &&
+                peripheralCriteria.minimumDuration == 0 &&
+                !peripheralCriteria.wantsHighPowerPreScan &&
+                peripheralCriteria.evictionTimeout == 0 &&
+                peripheralCriteria.maximumResults == Integer.MAX_VALUE &&
+                peripheralCriteria.processingInterval == 0);
+    }
+
+    /**
+     * Creates an observer that emits peripherals matching a given set of criteria.
+     * Must be subscribed to on the stack's scheduler.
+     */
+    /*package*/ Observable.OnSubscribe<GattPeripheral> observe(final @NonNull PeripheralCriteria peripheralCriteria) {
+        return new Observable.OnSubscribe<GattPeripheral>() {
+            @Override
+            public void call(Subscriber<? super GattPeripheral> subscriber) {
+                register(new Observer(peripheralCriteria, subscriber));
+            }
+        };
+    }
+
+
+    //region Observers
+
+    private void register(final @NonNull Observer observer) {
+        final Scheduler.Worker worker = stack.getScheduler().createWorker();
+        observer.subscriber.add(Subscriptions.create(new Action0() {
+            @Override
+            public void call() {
+                unregister(observer);
+            }
+        }));
+        observer.subscriber.add(worker);
+
+        synchronized (this) {
+            observers.add(observer);
+            index.add(observer, observer.peripheralCriteria);
+
+            for (final Advertisement advertisement : latest.values()) {
+                final String address = advertisement.device.getAddress();
+                if (observer.peripheralCriteria.matches(address, advertisement.advertisingData)) {
+                    observer.offer(advertisement);
+                }
+            }
+        }
+
+        if (observer.subscriber.isUnsubscribed()) {
+            return;
+        }
+
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                observer.complete();
+            }
+        }, observer.peripheralCriteria.duration, TimeUnit.MILLISECONDS);
+
+        if (rotation == null) {
+            logger.info(BluetoothStack.LOG_TAG, "Starting shared advertisement scan");
+
+            final PeripheralCriteria sharedCriteria = new PeripheralCriteria();
+            this.rotation = new ScanRotation(stack, sharedCriteria, this, this);
+            rotation.start();
+        }
+    }
+
+    private void unregister(@NonNull Observer observer) {
+        synchronized (this) {
+            if (!observers.remove(observer)) {
+                return;
+            }
+
+            index.remove(observer);
+        }
+
+        // Observers may be unsubscribed from any thread.
+        final Scheduler.Worker worker = stack.getScheduler().createWorker();
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                try {
+                    stopIfIdle();
+                } finally {
+                    worker.unsubscribe();
+                }
+            }
+        });
+    }
+
+    private void stopIfIdle() {
+        synchronized (this) {
+            if (!observers.isEmpty()) {
+                return;
+            }
+
+            latest.clear();
+        }
+
+        if (rotation != null) {
+            logger.info(BluetoothStack.LOG_TAG, "Stopping shared advertisement scan");
+
+            rotation.stop();
+            this.rotation = null;
+        }
+    }
+
+    //endregion
+
+
+    //region Dispatch
+
+    @Override
+    public synchronized void onAdvertisementChanged(@NonNull BluetoothDevice device,
+                                                    @NonNull AdvertisingData advertisingData,
+                                                    int rssi) {
+        final Advertisement advertisement = new Advertisement(device, advertisingData, rssi);
+        final String address = device.getAddress();
+        latest.put(address, advertisement);
+
+        for (final Observer observer : index.match(address, advertisingData)) {
+            observer.offer(advertisement);
+        }
+    }
+
+    @Override
+    public void onWindowConcluded(@NonNull List<GattPeripheral> peripherals, long now) {
+        // Forget peripherals that have gone away, so that late
+        // observers are only sent peripherals that are in range.
+        final Set<String> addresses = new HashSet<>(peripherals.size());
+        for (final GattPeripheral peripheral : peripherals) {
+            addresses.add(peripheral.getAddress());
+        }
+        synchronized (this) {
+            latest.keySet().retainAll(addresses);
+        }
+    }
+
+    @Override
+    public void onRotationError(@NonNull Throwable e) {
+        final List<Observer> failed;
+        synchronized (this) {
+            failed = new ArrayList<>(observers);
+            for (final Observer observer : failed) {
+                index.remove(observer);
+            }
+            observers.clear();
+            latest.clear();
+        }
+
+        if (rotation != null) {
+            rotation.stop();
+            this.rotation = null;
+        }
+
+        for (final Observer observer : failed) {
+            observer.subscriber.onError(e);
+        }
+    }
+
+    //endregion
+
+
+    private static final class Advertisement {
+        final @NonNull BluetoothDevice device;
+        final @NonNull AdvertisingData advertisingData;
+        final int rssi;
+
+        Advertisement(@NonNull BluetoothDevice device,
+                      @NonNull AdvertisingData advertisingData,
+                      int rssi) {
+            this.device = device;
+            this.advertisingData = advertisingData;
+            this.rssi = rssi;
+        }
+    }
+
+    private final class Observer {
+        final @NonNull PeripheralCriteria peripheralCriteria;
+        final @NonNull Subscriber<? super GattPeripheral> subscriber;
+
+        /**
+         * The content hash of the last advertisement emitted for each address,
+         * used to avoid emitting the same advertisement again in a later window.
+         * Guarded by the multiplexer.
+         */
+        final Map<String, Long> lastEmitted = new HashMap<>();
+
+        Observer(@NonNull PeripheralCriteria peripheralCriteria,
+                 @NonNull Subscriber<? super GattPeripheral> subscriber) {
+            this.peripheralCriteria = peripheralCriteria;
+
+            // Advertisements are dispatched from the scan callback thread,
+            // while the observer is completed on the stack's scheduler.
+            this.subscriber = new SerializedSubscriber<>(subscriber);
+        }
+
+        void offer(@NonNull Advertisement advertisement) {
+            if (subscriber.isUnsubscribed()) {
+                return;
+            }
+
+            final String address = advertisement.device.getAddress();
+            final long contentHash = advertisement.advertisingData.getContentHash();
+            final Long lastHash = lastEmitted.get(address);
+            if (lastHash == null) {
+                if (advertisement.rssi < peripheralCriteria.minimumRssi ||
+                        lastEmitted.size() >= peripheralCriteria.limit) {
+                    return;
+                }
+            } else if (lastHash == contentHash) {
+                return;
+            }
+            lastEmitted.put(address, contentHash);
+
+            subscriber.onNext(new NativeGattPeripheral(stack, advertisement.device,
+                                                       advertisement.rssi,
+                                                       advertisement.advertisingData));
+
+            if (lastHash == null && lastEmitted.size() >= peripheralCriteria.limit) {
+                logger.info(BluetoothStack.LOG_TAG, "Discovery limit reached, concluding observation");
+                complete();
+            }
+        }
+
+        void complete() {
+            subscriber.onCompleted();
+            unregister(this);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.IdentityResolver;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import rx.Scheduler;
+import rx.functions.Action0;
+
+/**
+ * Moves identity resolution, advertising data parsing, and criteria
+ * evaluation off of the callback thread of a low energy scanner, and
+ * onto a small pool of worker threads.
+ * <p>
+ * Each address is always processed by the same worker thread, so the
+ * advertisements of a single address are delivered in the order they
+ * were received. The peripherals accepted so far are tracked by their
+ * resolved identity in a map shared by all worker threads, so a peripheral
+ * that rotates its address is not treated as a first sighting by the
+ * worker thread its new address lands on. Advertisements that do not satisfy the criteria are
+ * dropped on the worker thread; only accepted advertisements are
+ * delivered to the listener, on the stack's scheduler. When detecting
+ * changes, the advertising data delivered for a peripheral is replaced
+ * whenever the contents of its raw advertisement change.
+ *
+ * @see PeripheralCriteria#wantsParallelProcessing
+ */
+/*package*/ final class ScanPipeline {
+    private static final int MAXIMUM_LANES = 4;
+
+    private final @NonNull LoggerFacade logger;
+    private final @NonNull PeripheralCriteria peripheralCriteria;
+    private final boolean detectsChanges;
+    private final @NonNull Listener listener;
+    private final @NonNull Scheduler.Worker deliveryWorker;
+    private final @NonNull Lane[] lanes;
+    private final Map<String, Sighting> sightings = new HashMap<>();
+    private volatile boolean shutdown = false;
+
+    /*package*/ ScanPipeline(@NonNull NativeBluetoothStack stack,
+                             @NonNull PeripheralCriteria peripheralCriteria,
+                             boolean detectsChanges,
+                             @NonNull Listener listener) {
+        this(stack, peripheralCriteria, detectsChanges, listener,
+             Math.max(1, Math.min(MAXIMUM_LANES, Runtime.getRuntime().availableProcessors())));
+    }
+
+    @VisibleForTesting
+    /*package*/ ScanPipeline(@NonNull NativeBluetoothStack stack,
+                             @NonNull PeripheralCriteria peripheralCriteria,
+                             boolean detectsChanges,
+                             @NonNull Listener listener,
+                             int laneCount) {
+        this.logger = stack.getLogger();
+        this.peripheralCriteria = peripheralCriteria;
+        this.detectsChanges = detectsChanges;
+        this.listener = listener;
+        this.deliveryWorker = stack.getScheduler().createWorker();
+
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane(i);
+        }
+    }
+
+
+    //region Processing
+
+    /**
+     * Hands a raw advertisement off to the worker thread responsible for its address.
+     * Does nothing once the pipeline has been shut down.
+     */
+    /*package*/ void submit(@NonNull final BluetoothDevice device,
+                            final int rssi,
+                            @NonNull final byte[] scanRecord,
+                            final long seenAt) {
+        if (shutdown) {
+            return;
+        }
+
+        final Lane lane = lanes[(device.getAddress().hashCode() & Integer.MAX_VALUE) % lanes.length];
+        try {
+            lane.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    lane.process(device, rssi, scanRecord, seenAt);
+                }
+            });
+        } catch (RejectedExecutionException ignored) {
+            // The scan concluded between the callback being
+            // dispatched and the advertisement being submitted.
+        }
+    }
+
+    /**
+     * Stops all worker threads, and cancels any pending deliveries.
+     */
+    /*package*/ void shutdown() {
+        this.shutdown = true;
+        for (final Lane lane : lanes) {
+            lane.executor.shutdownNow();
+        }
+        deliveryWorker.unsubscribe();
+    }
+
+    /**
+     * Blocks until every advertisement submitted so far has been processed.
+     */
+    @VisibleForTesting
+    /*package*/ void awaitIdle() throws InterruptedException, ExecutionException {
+        for (final Lane lane : lanes) {
+            final Future<?> barrier = lane.executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            });
+            barrier.get();
+        }
+    }
+
+    //endregion
+
+
+    /**
+     * The most recently accepted address and advertising data of a peripheral identity.
+     * Guarded by the {@link #sightings} map, which is shared by every lane.
+     */
+    private static final class Sighting {
+        String address;
+        AdvertisingData advertisingData;
+        long scanRecordHash;
+
+        Sighting(@NonNull String address,
+                 @NonNull AdvertisingData advertisingData,
+                 long scanRecordHash) {
+            this.address = address;
+            this.advertisingData = advertisingData;
+            this.scanRecordHash = scanRecordHash;
+        }
+    }
+
+    /**
+     * A single worker thread. Lanes hold no state of their own, so a peripheral
+     * that rotates onto an address owned by another lane is still recognized.
+     */
+    private final class Lane {
+        private final ExecutorService executor;
+
+        Lane(final int index) {
+            this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull final Runnable runnable) {
+                    final Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "ScanPipeline#" + index);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        void process(@NonNull final BluetoothDevice device,
+                     final int rssi,
+                     @NonNull byte[] scanRecord,
+                     final long seenAt) {
+            final String address = device.getAddress();
+            final IdentityResolver identityResolver = peripheralCriteria.identityResolver;
+            final String identity = identityResolver != null
+                    ? identityResolver.resolve(address, scanRecord)
+                    : address;
+
+            final Sighting sighting;
+            synchronized (sightings) {
+                sighting = sightings.get(identity);
+            }
+
+            AdvertisingData advertisingData;
+            if (sighting == null) {
+                if (rssi < peripheralCriteria.minimumRssi) {
+                    return;
+                }
+
+                advertisingData = AdvertisingData.parse(scanRecord);
+                logger.info(BluetoothStack.LOG_TAG, "Found device " + address + " " + advertisingData);
+
+                if (!peripheralCriteria.matches(address, advertisingData)) {
+                    return;
+                }
+
+                final long hash = detectsChanges ? AdvertisingData.hashScanRecord(scanRecord) : 0L;
+                synchronized (sightings) {
+                    if (!sightings.containsKey(identity)) {
+                        sightings.put(identity, new Sighting(address, advertisingData, hash));
+                    }
+                }
+            } else {
+                final String acceptedAddress;
+                synchronized (sightings) {
+                    acceptedAddress = sighting.address;
+                    advertisingData = sighting.advertisingData;
+                }
+
+                AdvertisingData rotatedData = null;
+                if (!address.equals(acceptedAddress)) {
+                    // A peripheral that has rotated its address must still satisfy the
+                    // criteria under its new address before it replaces the old device.
+                    rotatedData = AdvertisingData.parse(scanRecord);
+                    if (!peripheralCriteria.matches(address, rotatedData)) {
+                        return;
+                    }
+
+                    synchronized (sightings) {
+                        sighting.address = address;
+                    }
+                }
+
+                if (detectsChanges) {
+                    final long hash = AdvertisingData.hashScanRecord(scanRecord);
+                    final boolean recordChanged;
+                    synchronized (sightings) {
+                        recordChanged = (sighting.scanRecordHash != hash);
+                        sighting.scanRecordHash = hash;
+                    }
+                    if (recordChanged) {
+                        final AdvertisingData changedData = rotatedData != null
+                                ? rotatedData
+                                : AdvertisingData.parse(scanRecord);
+                        if (!changedData.equals(advertisingData)) {
+                            synchronized (sightings) {
+                                sighting.advertisingData = changedData;
+                            }
+                            advertisingData = changedData;
+                        }
+                    }
+                }
+            }
+
+            final AdvertisingData acceptedData = advertisingData;
+            deliveryWorker.schedule(new Action0() {
+                @Override
+                public void call() {
+                    listener.onAdvertisementAccepted(device, identity, rssi, acceptedData, seenAt);
+                }
+            });
+        }
+    }
+
+    /*package*/ interface Listener {
+        /**
+         * Called on the stack's scheduler when an advertisement satisfies the scan criteria.
+         */
+        void onAdvertisementAccepted(@NonNull BluetoothDevice device,
+                                     @NonNull String identity,
+                                     int rssi,
+                                     @NonNull AdvertisingData advertisingData,
+                                     long seenAt);
+    }
+}
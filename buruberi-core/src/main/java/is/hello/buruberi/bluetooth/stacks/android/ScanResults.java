@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+
+/**
+ * The peripherals collected by a low energy scanner, keyed by address.
+ * <p>
+ * When the criteria specifies {@link PeripheralCriteria#maximumResults},
+ * the results are bounded by a ranking ordered by smoothed RSSI, so the
+ * weakest retained peripheral can be found, displaced, or re-ranked after
+ * a new sighting in logarithmic time. When the criteria specifies
+ * {@link PeripheralCriteria#evictionTimeout}, peripherals that have not
+ * been seen recently are dropped as new peripherals arrive, which takes
+ * time linear in the number of retained peripherals.
+ * <p>
+ * Not thread safe. Expected to only be accessed from a scanner's callback thread.
+ */
+/*package*/ final class ScanResults {
+    /**
+     * Orders peripherals from weakest to strongest smoothed signal.
+     */
+    private static final Comparator<ScannedPeripheral> WEAKEST_FIRST = new Comparator<ScannedPeripheral>() {
+        @Override
+        public int compare(ScannedPeripheral lhs, ScannedPeripheral rhs) {
+            return Float.compare(lhs.smoothedRssi, rhs.smoothedRssi);
+        }
+    };
+
+    /**
+     * Orders peripherals from weakest to strongest smoothed signal,
+     * breaking ties by the order they were added in.
+     */
+    private static final Comparator<ScannedPeripheral> RANKING = new Comparator<ScannedPeripheral>() {
+        @Override
+        public int compare(ScannedPeripheral lhs, ScannedPeripheral rhs) {
+            final int bySignal = WEAKEST_FIRST.compare(lhs, rhs);
+            if (bySignal != 0) {
+                return bySignal;
+            }
+            return (lhs.resultSequence < rhs.resultSequence) ? -1 :
+                    (lhs.resultSequence == rhs.resultSequence ? 0 : 1);
+        }
+    };
+
+    private final Map<String, ScannedPeripheral> peripherals = new HashMap<>();
+    private final int capacity;
+    private final long evictionTimeout;
+    private final @Nullable TreeSet<ScannedPeripheral> ranking;
+    private long nextSequence = 0;
+
+    /*package*/ ScanResults(@NonNull PeripheralCriteria criteria) {
+        this.capacity = Math.max(1, criteria.maximumResults);
+        this.evictionTimeout = criteria.evictionTimeout;
+        if (capacity != Integer.MAX_VALUE) {
+            this.ranking = new TreeSet<>(RANKING);
+        } else {
+            this.ranking = null;
+        }
+    }
+
+
+    //region Accessing
+
+    /*package*/ @Nullable ScannedPeripheral get(@NonNull String address) {
+        return peripherals.get(address);
+    }
+
+    /*package*/ Set<String> keySet() {
+        return peripherals.keySet();
+    }
+
+    /*package*/ int size() {
+        return peripherals.size();
+    }
+
+    /**
+     * Returns the retained peripherals, ordered from strongest to weakest smoothed signal.
+     */
+    /*package*/ List<ScannedPeripheral> toSortedList() {
+        final List<ScannedPeripheral> sorted = new ArrayList<>(peripherals.values());
+        Collections.sort(sorted, Collections.reverseOrder(WEAKEST_FIRST));
+        return sorted;
+    }
+
+    //endregion
+
+
+    //region Updating
+
+    /**
+     * Attempts to add a newly matched peripheral to the results.
+     *
+     * @return true if the peripheral was retained; false if it was weaker than all retained peripherals.
+     */
+    /*package*/ boolean add(@NonNull String address, @NonNull ScannedPeripheral peripheral) {
+        evictStale(peripheral.lastSeen);
+
+        if (ranking != null && ranking.size() >= capacity) {
+            final ScannedPeripheral weakest = ranking.first();
+            if (WEAKEST_FIRST.compare(peripheral, weakest) <= 0) {
+                return false;
+            }
+
+            ranking.pollFirst();
+            peripherals.remove(weakest.resultKey);
+        }
+
+        peripheral.resultKey = address;
+        peripheral.resultSequence = nextSequence++;
+        peripherals.put(address, peripheral);
+        if (ranking != null) {
+            ranking.add(peripheral);
+        }
+        return true;
+    }
+
+    /**
+     * Records a new sighting of a peripheral already contained in the results.
+     */
+    /*package*/ void update(@NonNull ScannedPeripheral peripheral,
+                            @NonNull BluetoothDevice device,
+                            int rssi,
+                            long seenAt) {
+        if (ranking != null) {
+            // TreeSet does not observe changes to its elements' ordering.
+            ranking.remove(peripheral);
+            peripheral.update(device, rssi, seenAt);
+            ranking.add(peripheral);
+        } else {
+            peripheral.update(device, rssi, seenAt);
+        }
+    }
+
+    /**
+     * Removes all peripherals that have not been seen since the eviction timeout.
+     */
+    /*package*/ void evictStale(long now) {
+        if (evictionTimeout <= 0) {
+            return;
+        }
+
+        final long cutOff = now - evictionTimeout;
+        final Iterator<ScannedPeripheral> iterator = peripherals.values().iterator();
+        while (iterator.hasNext()) {
+            final ScannedPeripheral peripheral = iterator.next();
+            if (peripheral.lastSeen < cutOff) {
+                iterator.remove();
+                if (ranking != null) {
+                    ranking.remove(peripheral);
+                }
+            }
+        }
+    }
+
+    //endregion
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.functions.Action0;
+
+/**
+ * Scans for a long period of time by running a succession of scan
+ * windows, each lasting {@link PeripheralCriteria#duration}.
+ * <p>
+ * Android throttles applications that start scans too frequently, and downgrades
+ * scans that run for too long, so windows are never started closer together than
+ * {@link #MINIMUM_START_INTERVAL_MS}, and may not last longer than
+ * {@link #MAXIMUM_WINDOW_MS}.
+ * <p>
+ * Must be started and stopped on the stack's scheduler.
+ */
+/*package*/ final class ScanRotation {
+    /**
+     * The platform allows 5 scans to be started in any 30 second period.
+     */
+    /*package*/ static final long MINIMUM_START_INTERVAL_MS = 6 * 1000;
+
+    /**
+     * The platform downgrades scans that run longer than 30 minutes to opportunistic.
+     */
+    /*package*/ static final long MAXIMUM_WINDOW_MS = 25 * 60 * 1000;
+
+    private final @NonNull NativeBluetoothStack stack;
+    private final @NonNull LoggerFacade logger;
+    private final @NonNull PeripheralCriteria peripheralCriteria;
+    private final @Nullable LePeripheralScanner.ChangeListener changeListener;
+    private final @NonNull Listener listener;
+
+    private @Nullable Scheduler.Worker worker;
+    private @Nullable Subscription window;
+    private long lastWindowStart;
+
+    /**
+     * @throws IllegalArgumentException if the criteria's duration exceeds {@link #MAXIMUM_WINDOW_MS}.
+     */
+    /*package*/ ScanRotation(@NonNull NativeBluetoothStack stack,
+                             @NonNull PeripheralCriteria peripheralCriteria,
+                             @Nullable LePeripheralScanner.ChangeListener changeListener,
+                             @NonNull Listener listener) {
+        if (peripheralCriteria.duration > MAXIMUM_WINDOW_MS) {
+            throw new IllegalArgumentException("Criteria duration " + peripheralCriteria.duration +
+                                                       " exceeds maximum window " + MAXIMUM_WINDOW_MS);
+        }
+
+        this.stack = stack;
+        this.logger = stack.getLogger();
+        this.peripheralCriteria = peripheralCriteria;
+        this.changeListener = changeListener;
+        this.listener = listener;
+    }
+
+    /*package*/ void start() {
+        this.worker = stack.getScheduler().createWorker();
+        startWindow();
+    }
+
+    /*package*/ void stop() {
+        if (worker != null) {
+            worker.unsubscribe();
+            this.worker = null;
+        }
+
+        if (window != null) {
+            window.unsubscribe();
+            this.window = null;
+        }
+    }
+
+    private void startWindow() {
+        if (worker == null) {
+            return;
+        }
+
+        logger.info(BluetoothStack.LOG_TAG, "Starting scan window");
+
+        this.lastWindowStart = SystemClock.elapsedRealtime();
+        final LePeripheralScanner scanner = stack.createLeScanner(peripheralCriteria,
+                                                                  Integer.MAX_VALUE,
+                                                                  changeListener);
+        this.window = stack.newConfiguredObservable(scanner)
+                           .subscribe(new Subscriber<List<GattPeripheral>>() {
+                               @Override
+                               public void onCompleted() {
+                                   scheduleNextWindow();
+                               }
+
+                               @Override
+                               public void onError(Throwable e) {
+                                   listener.onRotationError(e);
+                               }
+
+                               @Override
+                               public void onNext(List<GattPeripheral> peripherals) {
+                                   listener.onWindowConcluded(peripherals, SystemClock.elapsedRealtime());
+                               }
+                           });
+    }
+
+    private void scheduleNextWindow() {
+        if (worker == null) {
+            return;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        final long delay = Math.max(0L, (lastWindowStart + MINIMUM_START_INTERVAL_MS) - now);
+        worker.schedule(new Action0() {
+            @Override
+            public void call() {
+                startWindow();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+
+    /*package*/ interface Listener {
+        /**
+         * Called on the stack's scheduler with the results of each window.
+         */
+        void onWindowConcluded(@NonNull List<GattPeripheral> peripherals, long now);
+
+        /**
+         * Called on the stack's scheduler if a window could not be run.
+         * No further windows are started.
+         */
+        void onRotationError(@NonNull Throwable e);
+    }
+}
@@ -21,21 +21,69 @@ import android.support.annotation.NonNull;
 import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
 
 /*package*/ class ScannedPeripheral {
-    /*package*/ final BluetoothDevice device;
-    /*package*/ final AdvertisingData advertisingData;
+    /**
+     * The weight given to each new RSSI sample when updating {@link #smoothedRssi}.
+     */
+    private static final float RSSI_SMOOTHING_FACTOR = 0.25f;
+
+    /*package*/ BluetoothDevice device;
+    /*package*/ AdvertisingData advertisingData;
     /*package*/ int rssi;
+    /*package*/ float smoothedRssi;
+    /*package*/ long lastSeen;
+    /*package*/ long scanRecordHash;
+    /*package*/ boolean hasScanRecordHash = false;
+
+    /**
+     * The key and insertion order of the peripheral in its {@link ScanResults}.
+     */
+    /*package*/ String resultKey;
+    /*package*/ long resultSequence;
 
     /*package*/ ScannedPeripheral(@NonNull BluetoothDevice device,
                                   @NonNull AdvertisingData advertisingData,
-                                  int rssi) {
+                                  int rssi,
+                                  long lastSeen) {
         this.device = device;
         this.advertisingData = advertisingData;
         this.rssi = rssi;
+        this.smoothedRssi = rssi;
+        this.lastSeen = lastSeen;
+    }
+
+
+    /**
+     * Records a new sighting of the peripheral, folding the
+     * new RSSI into an exponential moving average. The device
+     * may differ from the original when the peripheral has
+     * rotated its address.
+     */
+    /*package*/ void update(@NonNull BluetoothDevice device, int rssi, long seenAt) {
+        this.device = device;
+        this.rssi = rssi;
+        this.smoothedRssi += RSSI_SMOOTHING_FACTOR * (rssi - smoothedRssi);
+        this.lastSeen = seenAt;
+    }
+
+
+    /**
+     * Records the hash of the peripheral's latest raw advertising data, and
+     * returns whether or not it differs from the previously recorded hash.
+     */
+    /*package*/ boolean updateScanRecordHash(@NonNull byte[] scanRecord) {
+        final long hash = AdvertisingData.hashScanRecord(scanRecord);
+        final boolean changed = (!hasScanRecordHash || hash != scanRecordHash);
+        this.scanRecordHash = hash;
+        this.hasScanRecordHash = true;
+        return changed;
     }
 
 
     /*package*/ NativeGattPeripheral createPeripheral(@NonNull NativeBluetoothStack stack) {
-        return new NativeGattPeripheral(stack, device, rssi, advertisingData);
+        final NativeGattPeripheral peripheral = new NativeGattPeripheral(stack, device, rssi, advertisingData);
+        peripheral.scanSmoothedRssi = smoothedRssi;
+        peripheral.scanLastSeen = lastSeen;
+        return peripheral;
     }
 
 
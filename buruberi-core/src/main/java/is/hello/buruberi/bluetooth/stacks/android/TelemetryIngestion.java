@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingDecoder;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingDecoderRegistry;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import is.hello.buruberi.bluetooth.stacks.util.TelemetrySample;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+import rx.subscriptions.Subscriptions;
+
+/**
+ * Continuously scans for peripherals, decoding telemetry from their advertising
+ * data whenever it changes, and delivering the decoded samples in batches.
+ * <p>
+ * Advertisements are decoded on the thread scan results are delivered on,
+ * batches are delivered on the stack's scheduler.
+ */
+/*package*/ final class TelemetryIngestion implements Observable.OnSubscribe<List<TelemetrySample>>,
+        ScanRotation.Listener, LePeripheralScanner.ChangeListener {
+    private final @NonNull NativeBluetoothStack stack;
+    private final @NonNull AdvertisingDecoderRegistry decoders;
+    private final long batchInterval;
+    private final @NonNull ScanRotation rotation;
+
+    /**
+     * The content hash of the last advertisement decoded for each address,
+     * used to avoid decoding the same advertisement again in a later window.
+     * Guarded by {@code this}.
+     */
+    private final Map<String, Long> lastDecoded = new HashMap<>();
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private List<TelemetrySample> pending = new ArrayList<>();
+
+    private @Nullable Subscriber<? super List<TelemetrySample>> subscriber;
+
+    /*package*/ TelemetryIngestion(@NonNull NativeBluetoothStack stack,
+                                   @NonNull PeripheralCriteria peripheralCriteria,
+                                   @NonNull AdvertisingDecoderRegistry decoders,
+                                   long batchInterval) {
+        if (batchInterval <= 0) {
+            throw new IllegalArgumentException("batchInterval must be greater than 0");
+        }
+
+        this.stack = stack;
+        this.decoders = decoders;
+        this.batchInterval = batchInterval;
+        this.rotation = new ScanRotation(stack, peripheralCriteria, this, this);
+    }
+
+    @Override
+    public void call(Subscriber<? super List<TelemetrySample>> subscriber) {
+        this.subscriber = subscriber;
+
+        final Scheduler.Worker worker = stack.getScheduler().createWorker();
+        subscriber.add(worker);
+        subscriber.add(Subscriptions.create(new Action0() {
+            @Override
+            public void call() {
+                rotation.stop();
+            }
+        }));
+
+        worker.schedulePeriodically(new Action0() {
+            @Override
+            public void call() {
+                flush();
+            }
+        }, batchInterval, batchInterval, TimeUnit.MILLISECONDS);
+        rotation.start();
+    }
+
+
+    //region Decoding
+
+    @Override
+    public void onAdvertisementChanged(@NonNull BluetoothDevice device,
+                                       @NonNull AdvertisingData advertisingData,
+                                       int rssi) {
+        final String address = device.getAddress();
+        final long contentHash = advertisingData.getContentHash();
+        synchronized (this) {
+            final Long lastHash = lastDecoded.put(address, contentHash);
+            if (lastHash != null && lastHash == contentHash) {
+                return;
+            }
+        }
+
+        final AdvertisingDecoderRegistry.Results results = decoders.decode(advertisingData);
+        if (results.isEmpty()) {
+            return;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        final List<TelemetrySample> samples = new ArrayList<>();
+        for (final AdvertisingDecoder<?> decoder : results.getDecoders()) {
+            final Object value = results.get(decoder);
+            if (value != null) {
+                samples.add(new TelemetrySample(address, decoder, value, rssi, now));
+            }
+        }
+
+        synchronized (this) {
+            pending.addAll(samples);
+        }
+    }
+
+    @VisibleForTesting void flush() {
+        final List<TelemetrySample> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+
+            batch = pending;
+            this.pending = new ArrayList<>(batch.size());
+        }
+
+        if (subscriber != null && !subscriber.isUnsubscribed()) {
+            subscriber.onNext(batch);
+        }
+    }
+
+    //endregion
+
+
+    //region Rotation
+
+    @Override
+    public void onWindowConcluded(@NonNull List<GattPeripheral> peripherals, long now) {
+        // Forget peripherals that have gone away, so that
+        // the map stays proportional to those in range.
+        final Set<String> addresses = new HashSet<>(peripherals.size());
+        for (final GattPeripheral peripheral : peripherals) {
+            addresses.add(peripheral.getAddress());
+        }
+        synchronized (this) {
+            lastDecoded.keySet().retainAll(addresses);
+        }
+    }
+
+    @Override
+    public void onRotationError(@NonNull Throwable e) {
+        if (subscriber != null) {
+            subscriber.onError(e);
+        }
+    }
+
+    //endregion
+}
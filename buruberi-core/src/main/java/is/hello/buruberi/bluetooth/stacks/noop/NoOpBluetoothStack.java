@@ -26,10 +26,15 @@ import java.util.List;
 
 import is.hello.buruberi.bluetooth.Buruberi;
 import is.hello.buruberi.bluetooth.errors.ChangePowerStateException;
+import is.hello.buruberi.bluetooth.errors.PeripheralNotFoundException;
 import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
 import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingDecoderRegistry;
 import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
 import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import is.hello.buruberi.bluetooth.stacks.util.PresenceEvent;
+import is.hello.buruberi.bluetooth.stacks.util.TelemetrySample;
 import is.hello.buruberi.util.Rx;
 import rx.Observable;
 import rx.Scheduler;
@@ -57,6 +62,34 @@ public class NoOpBluetoothStack implements BluetoothStack {
         return Observable.just(Collections.<GattPeripheral>emptyList());
     }
 
+    @NonNull
+    @Override
+    public Observable<GattPeripheral> scanAndConnect(@NonNull PeripheralCriteria peripheralCriteria,
+                                                     @GattPeripheral.ConnectFlags int flags,
+                                                     @NonNull OperationTimeout timeout) {
+        return Observable.error(new PeripheralNotFoundException());
+    }
+
+    @NonNull
+    @Override
+    public Observable<GattPeripheral> observeAdvertisements(@NonNull PeripheralCriteria peripheralCriteria) {
+        return Observable.empty();
+    }
+
+    @NonNull
+    @Override
+    public Observable<PresenceEvent> monitorPresence(@NonNull PeripheralCriteria peripheralCriteria) {
+        return Observable.never();
+    }
+
+    @NonNull
+    @Override
+    public Observable<List<TelemetrySample>> ingestTelemetry(@NonNull PeripheralCriteria peripheralCriteria,
+                                                             @NonNull AdvertisingDecoderRegistry decoders,
+                                                             long batchInterval) {
+        return Observable.never();
+    }
+
     @NonNull
     @Override
     public Scheduler getScheduler() {
@@ -69,6 +102,11 @@ public class NoOpBluetoothStack implements BluetoothStack {
                          .subscribeOn(getScheduler());
     }
 
+    @Override
+    public void setMaximumConcurrentOperations(int maximumConcurrentOperations) {
+        // Do nothing.
+    }
+
     @Override
     public Observable<Boolean> enabled() {
         return Observable.just(false);
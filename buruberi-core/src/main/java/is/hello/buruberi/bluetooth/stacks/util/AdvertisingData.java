@@ -27,6 +27,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.UUID;
 
 import rx.functions.Func1;
 
@@ -34,11 +35,17 @@ import rx.functions.Func1;
  * Parses a raw BLE advertising data blob into a multi-map collection for querying
  * by predicates contained in a {@link PeripheralCriteria} instance.
  * <p>
- * {@code AdvertisingData} does not implement the identity methods {@link #equals(Object)}
- * and {@link #hashCode()}, and as such is not suitable for use with Java collections.
+ * {@code AdvertisingData} implements content-based identity methods. A 64-bit hash of
+ * the contained records is calculated upon creation, so comparing two advertising data
+ * objects with different contents is a single {@code long} comparison.
  */
 public final class AdvertisingData implements Parcelable {
+    /*package*/ static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    /*package*/ static final long FNV_PRIME = 0x100000001b3L;
+
     private final SparseArray<List<byte[]>> records;
+    private final long contentHash;
+    private volatile @Nullable List<UUID> serviceUuids;
 
     //region Parceling
 
@@ -74,7 +81,7 @@ public final class AdvertisingData implements Parcelable {
      * Parses a given byte array into an advertising data object.
      */
     public static @NonNull AdvertisingData parse(@NonNull byte[] rawData) {
-        final AdvertisingData parsedResponses = new AdvertisingData(new SparseArray<List<byte[]>>());
+        final SparseArray<List<byte[]>> records = new SparseArray<>();
         int index = 0;
         while (index < rawData.length) {
             final byte dataLength = rawData[index++];
@@ -82,25 +89,51 @@ public final class AdvertisingData implements Parcelable {
                 break;
             }
 
-            final int dataType = rawData[index];
+            final int dataType = rawData[index] & 0xFF;
             if (dataType == 0) {
                 break;
             }
 
             final byte[] payload = Arrays.copyOfRange(rawData, index + 1, index + dataLength);
-            parsedResponses.addRecord(dataType, payload);
+            addRecord(records, dataType, payload);
 
             index += dataLength;
         }
-        return parsedResponses;
+        return new AdvertisingData(records);
+    }
+
+    /**
+     * Calculates a 64-bit hash of the significant portion of a raw advertising
+     * data blob, without parsing it. Intended for cheaply detecting changes in
+     * the advertisements of a peripheral.
+     */
+    public static long hashScanRecord(@NonNull byte[] rawData) {
+        // 64-bit FNV-1a
+        long hash = FNV_OFFSET_BASIS;
+        int index = 0;
+        while (index < rawData.length) {
+            final int dataLength = rawData[index] & 0xFF;
+            if (dataLength == 0) {
+                break;
+            }
+
+            final int end = Math.min(rawData.length, index + dataLength + 1);
+            for (; index < end; index++) {
+                hash = (hash ^ (rawData[index] & 0xFF)) * FNV_PRIME;
+            }
+        }
+        return hash;
     }
 
     private AdvertisingData(@NonNull SparseArray<List<byte[]>> records) {
         this.records = records;
+        this.contentHash = calculateContentHash(records);
     }
 
-    private void addRecord(int type, @NonNull byte[] contents) {
-        List<byte[]> typeItems = getRecordsForType(type);
+    private static void addRecord(@NonNull SparseArray<List<byte[]>> records,
+                                  int type,
+                                  @NonNull byte[] contents) {
+        List<byte[]> typeItems = records.get(type);
         if (typeItems == null) {
             typeItems = new ArrayList<>(1);
             records.put(type, typeItems);
@@ -109,6 +142,21 @@ public final class AdvertisingData implements Parcelable {
         typeItems.add(contents);
     }
 
+    private static long calculateContentHash(@NonNull SparseArray<List<byte[]>> records) {
+        // 64-bit FNV-1a over the records in type order
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0, count = records.size(); i < count; i++) {
+            hash = (hash ^ records.keyAt(i)) * FNV_PRIME;
+            for (final byte[] record : records.valueAt(i)) {
+                hash = (hash ^ record.length) * FNV_PRIME;
+                for (final byte b : record) {
+                    hash = (hash ^ (b & 0xFF)) * FNV_PRIME;
+                }
+            }
+        }
+        return hash;
+    }
+
     //endregion
 
 
@@ -141,6 +189,18 @@ public final class AdvertisingData implements Parcelable {
         return records.get(type);
     }
 
+    /*package*/ int getRecordTypeCount() {
+        return records.size();
+    }
+
+    /*package*/ int getRecordTypeAt(int index) {
+        return records.keyAt(index);
+    }
+
+    /*package*/ @NonNull List<byte[]> getRecordsAt(int index) {
+        return records.valueAt(index);
+    }
+
     /**
      * Returns whether or not any records in the advertising
      * data of a given type match a given predicate functor.
@@ -163,8 +223,192 @@ public final class AdvertisingData implements Parcelable {
     //endregion
 
 
+    //region Services
+
+    /**
+     * Returns whether or not the advertising data lists a given service UUID in any of
+     * its complete or incomplete service UUID list records. Does not allocate.
+     */
+    public boolean advertisesService(@NonNull ShortUuid uuid) {
+        return advertisesBaseService(uuid.value);
+    }
+
+    /**
+     * Returns whether or not the advertising data lists a given service UUID in any of
+     * its complete or incomplete service UUID list records. UUIDs derived from the
+     * Bluetooth base UUID are matched against records of every size. Does not allocate.
+     */
+    public boolean advertisesService(@NonNull UUID uuid) {
+        final long mostSignificantBits = uuid.getMostSignificantBits();
+        final long leastSignificantBits = uuid.getLeastSignificantBits();
+        final long baseValue = ShortUuid.baseValueOf(mostSignificantBits, leastSignificantBits);
+        if (baseValue >= 0 && advertisesBaseService(baseValue)) {
+            return true;
+        }
+
+        return (containsUuid128(records.get(TYPE_LIST_OF_128_BIT_SERVICE_CLASS_UUIDS),
+                                mostSignificantBits, leastSignificantBits) ||
+                containsUuid128(records.get(TYPE_INCOMPLETE_LIST_OF_128_BIT_SERVICE_CLASS_UUIDS),
+                                mostSignificantBits, leastSignificantBits));
+    }
+
+    private boolean advertisesBaseService(long value) {
+        if (value <= 0xFFFF) {
+            if (containsValue(records.get(TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS), 2, value) ||
+                    containsValue(records.get(TYPE_INCOMPLETE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS), 2, value)) {
+                return true;
+            }
+        }
+
+        if (containsValue(records.get(TYPE_LIST_OF_32_BIT_SERVICE_CLASS_UUIDS), 4, value) ||
+                containsValue(records.get(TYPE_INCOMPLETE_LIST_OF_32_BIT_SERVICE_CLASS_UUIDS), 4, value)) {
+            return true;
+        }
+
+        final long mostSignificantBits = (value << 32) | ShortUuid.BASE_UUID_MOST_SIGNIFICANT_BITS;
+        final long leastSignificantBits = ShortUuid.BASE_UUID_LEAST_SIGNIFICANT_BITS;
+        return (containsUuid128(records.get(TYPE_LIST_OF_128_BIT_SERVICE_CLASS_UUIDS),
+                                mostSignificantBits, leastSignificantBits) ||
+                containsUuid128(records.get(TYPE_INCOMPLETE_LIST_OF_128_BIT_SERVICE_CLASS_UUIDS),
+                                mostSignificantBits, leastSignificantBits));
+    }
+
+    private static boolean containsValue(@Nullable List<byte[]> lists, int width, long value) {
+        if (lists == null) {
+            return false;
+        }
+
+        for (final byte[] list : lists) {
+            for (int offset = 0; offset + width <= list.length; offset += width) {
+                if (readLittleEndian(list, offset, width) == value) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsUuid128(@Nullable List<byte[]> lists,
+                                           long mostSignificantBits,
+                                           long leastSignificantBits) {
+        if (lists == null) {
+            return false;
+        }
+
+        for (final byte[] list : lists) {
+            for (int offset = 0; offset + 16 <= list.length; offset += 16) {
+                if (readLittleEndian(list, offset, 8) == leastSignificantBits &&
+                        readLittleEndian(list, offset + 8, 8) == mostSignificantBits) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long readLittleEndian(@NonNull byte[] bytes, int offset, int width) {
+        long value = 0;
+        for (int i = width - 1; i >= 0; i--) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the service UUIDs listed in the complete and incomplete service UUID list
+     * records of the advertising data, in the order 16, 32, and 128-bit. The list is
+     * decoded the first time it is requested.
+     */
+    public @NonNull List<UUID> getServiceUuids() {
+        List<UUID> serviceUuids = this.serviceUuids;
+        if (serviceUuids == null) {
+            final List<UUID> decoded = new ArrayList<>();
+            decodeBaseUuids(decoded, TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS, 2);
+            decodeBaseUuids(decoded, TYPE_INCOMPLETE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS, 2);
+            decodeBaseUuids(decoded, TYPE_LIST_OF_32_BIT_SERVICE_CLASS_UUIDS, 4);
+            decodeBaseUuids(decoded, TYPE_INCOMPLETE_LIST_OF_32_BIT_SERVICE_CLASS_UUIDS, 4);
+            decodeUuids128(decoded, TYPE_LIST_OF_128_BIT_SERVICE_CLASS_UUIDS);
+            decodeUuids128(decoded, TYPE_INCOMPLETE_LIST_OF_128_BIT_SERVICE_CLASS_UUIDS);
+            serviceUuids = Collections.unmodifiableList(decoded);
+            this.serviceUuids = serviceUuids;
+        }
+        return serviceUuids;
+    }
+
+    private void decodeBaseUuids(@NonNull List<UUID> decoded, int type, int width) {
+        final List<byte[]> lists = records.get(type);
+        if (lists == null) {
+            return;
+        }
+
+        for (final byte[] list : lists) {
+            for (int offset = 0; offset + width <= list.length; offset += width) {
+                decoded.add(ShortUuid.toUuid(readLittleEndian(list, offset, width)));
+            }
+        }
+    }
+
+    private void decodeUuids128(@NonNull List<UUID> decoded, int type) {
+        final List<byte[]> lists = records.get(type);
+        if (lists == null) {
+            return;
+        }
+
+        for (final byte[] list : lists) {
+            for (int offset = 0; offset + 16 <= list.length; offset += 16) {
+                decoded.add(new UUID(readLittleEndian(list, offset + 8, 8),
+                                     readLittleEndian(list, offset, 8)));
+            }
+        }
+    }
+
+    //endregion
+
+
     //region Identity
 
+    /**
+     * Returns a 64-bit hash of the records contained in the advertising data.
+     */
+    public long getContentHash() {
+        return contentHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final AdvertisingData that = (AdvertisingData) o;
+        if (contentHash != that.contentHash || records.size() != that.records.size()) {
+            return false;
+        }
+
+        for (int i = 0, count = records.size(); i < count; i++) {
+            if (records.keyAt(i) != that.records.keyAt(i)) {
+                return false;
+            }
+
+            final List<byte[]> ours = records.valueAt(i);
+            final List<byte[]> theirs = that.records.valueAt(i);
+            if (ours.size() != theirs.size()) {
+                return false;
+            }
+            for (int j = 0, size = ours.size(); j < size; j++) {
+                if (!Arrays.equals(ours.get(j), theirs.get(j))) {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (contentHash ^ (contentHash >>> 32));
+    }
+
     @Override
     public String toString() {
         String string = "{";
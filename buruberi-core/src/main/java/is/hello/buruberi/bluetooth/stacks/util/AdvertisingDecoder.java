@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Decodes the payload of a manufacturer specific data or service data record.
+ * <p>
+ * Decoders are handed a slice of the record as it is stored in the advertising
+ * data, and must not modify or retain the array they are given.
+ *
+ * @param <T> The type of decoded values.
+ * @see AdvertisingDecoderRegistry
+ */
+public interface AdvertisingDecoder<T> {
+    /**
+     * Decodes a value from a slice of a record.
+     *
+     * @param record    The complete record. Must not be modified.
+     * @param offset    The index of the first byte following the record's
+     *                  company identifier or service UUID.
+     * @param length    The number of bytes following the record's
+     *                  company identifier or service UUID.
+     * @return The decoded value, or {@code null} if the slice is malformed.
+     */
+    @Nullable T decode(@NonNull byte[] record, int offset, int length);
+}
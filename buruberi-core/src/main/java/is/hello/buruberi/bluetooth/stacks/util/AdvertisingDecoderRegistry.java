@@ -0,0 +1,178 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.SparseArray;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Dispatches the manufacturer specific data and 16-bit service data records of
+ * advertising data to decoders registered for their company identifier or
+ * service UUID, so that consumers do not have to pick records apart by hand.
+ * <p>
+ * Decoders are given slices of the records contained in the advertising data,
+ * without copying. The results of decoding are cached by the content hash of
+ * the advertising data, so decoding the same advertisement again is a lookup.
+ * <p>
+ * All methods are synchronized. Decoders must be registered before
+ * decoding, as registering a decoder clears the cache.
+ */
+public final class AdvertisingDecoderRegistry {
+    /**
+     * The number of decoded advertisements to remember.
+     */
+    private static final int CACHE_SIZE = 64;
+
+    private final SparseArray<AdvertisingDecoder<?>> manufacturerDecoders = new SparseArray<>();
+    private final SparseArray<AdvertisingDecoder<?>> serviceDataDecoders = new SparseArray<>();
+    private final Map<Long, Results> cache = new LinkedHashMap<Long, Results>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Results> eldest) {
+            return (size() > CACHE_SIZE);
+        }
+    };
+
+
+    //region Registration
+
+    /**
+     * Registers a decoder for manufacturer specific data records that
+     * begin with a given little-endian 16-bit company identifier.
+     */
+    public synchronized AdvertisingDecoderRegistry registerManufacturerDecoder(int companyIdentifier,
+                                                                               @NonNull AdvertisingDecoder<?> decoder) {
+        manufacturerDecoders.put(companyIdentifier & 0xFFFF, decoder);
+        cache.clear();
+        return this;
+    }
+
+    /**
+     * Registers a decoder for service data records that
+     * begin with a given little-endian 16-bit service UUID.
+     */
+    public synchronized AdvertisingDecoderRegistry registerServiceDataDecoder(int uuid16,
+                                                                              @NonNull AdvertisingDecoder<?> decoder) {
+        serviceDataDecoders.put(uuid16 & 0xFFFF, decoder);
+        cache.clear();
+        return this;
+    }
+
+    //endregion
+
+
+    //region Decoding
+
+    /**
+     * Decodes every record in a given advertising data
+     * object that has a registered decoder.
+     */
+    public synchronized @NonNull Results decode(@NonNull AdvertisingData advertisingData) {
+        final Long key = advertisingData.getContentHash();
+        final Results cached = cache.get(key);
+        if (cached != null && cached.advertisingData.equals(advertisingData)) {
+            return cached;
+        }
+
+        final Results results = new Results(advertisingData);
+        decodeRecords(results, AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, manufacturerDecoders);
+        decodeRecords(results, AdvertisingData.TYPE_SERVICE_DATA, serviceDataDecoders);
+        cache.put(key, results);
+        return results;
+    }
+
+    private static void decodeRecords(@NonNull Results results,
+                                      int type,
+                                      @NonNull SparseArray<AdvertisingDecoder<?>> decoders) {
+        if (decoders.size() == 0) {
+            return;
+        }
+
+        final List<byte[]> records = results.advertisingData.getRecordsForType(type);
+        if (records == null) {
+            return;
+        }
+
+        for (final byte[] record : records) {
+            if (record.length < 2) {
+                continue;
+            }
+
+            final int key = (record[0] & 0xFF) | ((record[1] & 0xFF) << 8);
+            final AdvertisingDecoder<?> decoder = decoders.get(key);
+            if (decoder == null || results.values.containsKey(decoder)) {
+                continue;
+            }
+
+            final Object value = decoder.decode(record, 2, record.length - 2);
+            if (value != null) {
+                results.values.put(decoder, value);
+            }
+        }
+    }
+
+    //endregion
+
+
+    /**
+     * The values decoded from a single advertising data object.
+     */
+    public static final class Results {
+        private final AdvertisingData advertisingData;
+        private final Map<AdvertisingDecoder<?>, Object> values = new IdentityHashMap<>();
+
+        private Results(@NonNull AdvertisingData advertisingData) {
+            this.advertisingData = advertisingData;
+        }
+
+        /**
+         * Returns the value decoded by a given decoder from the first record it applied to,
+         * or {@code null} if the advertising data contains no record it could decode.
+         */
+        @SuppressWarnings("unchecked")
+        public @Nullable <T> T get(@NonNull AdvertisingDecoder<T> decoder) {
+            return (T) values.get(decoder);
+        }
+
+        /**
+         * Returns the decoders that produced a value.
+         */
+        public @NonNull Set<AdvertisingDecoder<?>> getDecoders() {
+            return Collections.unmodifiableSet(values.keySet());
+        }
+
+        /**
+         * Returns whether or not no values were decoded.
+         */
+        public boolean isEmpty() {
+            return values.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "Results{" +
+                    "values=" + values.values() +
+                    '}';
+        }
+    }
+}
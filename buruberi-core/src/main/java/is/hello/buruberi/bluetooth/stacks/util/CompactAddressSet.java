@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.support.annotation.NonNull;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * An immutable set of peripheral addresses optimized for very large allow-lists.
+ * <p>
+ * Addresses are stored as a sorted array of 48-bit values, fronted by a Bloom filter
+ * so that the vast majority of non-members are rejected without a binary search.
+ * A set of 100,000 addresses occupies roughly one megabyte.
+ *
+ * @see PeripheralCriteria#setPeripheralAddressSet(CompactAddressSet)
+ */
+public final class CompactAddressSet {
+    /**
+     * The number of filter bits allocated per address. Gives a false positive rate of about 1%.
+     */
+    private static final int BITS_PER_ADDRESS = 10;
+
+    /**
+     * The number of bits set in the filter for each address.
+     */
+    private static final int HASH_COUNT = 7;
+
+    private final long[] addresses;
+    private final long[] filter;
+    private final int filterMask;
+
+
+    //region Creation
+
+    /**
+     * Reads a set of addresses from a stream containing one address per line.
+     * Blank lines, and lines beginning with {@code #}, are ignored.
+     * <p>
+     * The stream is not closed by this method.
+     *
+     * @throws IOException if the stream could not be read.
+     * @throws IllegalArgumentException if the stream contains a malformed address.
+     */
+    public static @NonNull CompactAddressSet read(@NonNull InputStream stream) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(stream, "UTF-8"));
+        long[] addresses = new long[1024];
+        int count = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+
+            if (count == addresses.length) {
+                addresses = Arrays.copyOf(addresses, count * 2);
+            }
+            addresses[count++] = parseAddress(line);
+        }
+        return new CompactAddressSet(addresses, count);
+    }
+
+    /**
+     * Reads a set of addresses from a file containing one address per line.
+     *
+     * @see #read(InputStream)
+     */
+    public static @NonNull CompactAddressSet read(@NonNull File file) throws IOException {
+        final InputStream stream = new FileInputStream(file);
+        try {
+            return read(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Creates a set containing a given collection of addresses.
+     *
+     * @throws IllegalArgumentException if the collection contains a malformed address.
+     */
+    public static @NonNull CompactAddressSet of(@NonNull Collection<String> addresses) {
+        final long[] values = new long[addresses.size()];
+        int count = 0;
+        for (final String address : addresses) {
+            values[count++] = parseAddress(address);
+        }
+        return new CompactAddressSet(values, count);
+    }
+
+    private CompactAddressSet(@NonNull long[] values, int count) {
+        final long[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || sorted[unique - 1] != sorted[i]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        this.addresses = (unique == count) ? sorted : Arrays.copyOf(sorted, unique);
+
+        final int filterBits = Integer.highestOneBit(Math.max(64, unique * BITS_PER_ADDRESS - 1) << 1);
+        this.filter = new long[filterBits / 64];
+        this.filterMask = filterBits - 1;
+        for (final long address : addresses) {
+            final long hash = mix(address);
+            final int hash1 = (int) hash;
+            final int hash2 = (int) (hash >>> 32);
+            for (int i = 0; i < HASH_COUNT; i++) {
+                final int bit = (hash1 + i * hash2) & filterMask;
+                filter[bit >>> 6] |= (1L << bit);
+            }
+        }
+    }
+
+    //endregion
+
+
+    //region Membership
+
+    /**
+     * Returns the number of unique addresses in the set.
+     */
+    public int size() {
+        return addresses.length;
+    }
+
+    /**
+     * Returns whether or not the set contains a given address
+     * of the format {@code CA:FE:BE:EF:BA:BE}.
+     * <p>
+     * Malformed addresses are never contained in the set.
+     */
+    public boolean contains(@NonNull String address) {
+        final long value = tryParseAddress(address);
+        return (value != -1L && contains(value));
+    }
+
+    /**
+     * Returns whether or not the set contains a given 48-bit address value.
+     */
+    public boolean contains(long address) {
+        final long hash = mix(address);
+        final int hash1 = (int) hash;
+        final int hash2 = (int) (hash >>> 32);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            final int bit = (hash1 + i * hash2) & filterMask;
+            if ((filter[bit >>> 6] & (1L << bit)) == 0L) {
+                return false;
+            }
+        }
+
+        return (Arrays.binarySearch(addresses, address) >= 0);
+    }
+
+    //endregion
+
+
+    //region Addresses
+
+    /**
+     * Converts an address of the format {@code CA:FE:BE:EF:BA:BE} into a 48-bit value.
+     *
+     * @throws IllegalArgumentException if the address is malformed.
+     */
+    public static long parseAddress(@NonNull String address) {
+        final long value = tryParseAddress(address);
+        if (value == -1L) {
+            throw new IllegalArgumentException("Malformed address '" + address + "'");
+        }
+        return value;
+    }
+
+    private static long tryParseAddress(@NonNull String address) {
+        if (address.length() != 17) {
+            return -1L;
+        }
+
+        long value = 0L;
+        for (int i = 0; i < 17; i++) {
+            final char c = address.charAt(i);
+            if (i % 3 == 2) {
+                if (c != ':') {
+                    return -1L;
+                }
+                continue;
+            }
+
+            final int digit = Character.digit(c, 16);
+            if (digit == -1) {
+                return -1L;
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+
+    /**
+     * The finalizer from MurmurHash3, used to spread address bits across the filter.
+     */
+    private static long mix(long value) {
+        value ^= (value >>> 33);
+        value *= 0xff51afd7ed558ccdL;
+        value ^= (value >>> 33);
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= (value >>> 33);
+        return value;
+    }
+
+    //endregion
+
+
+    @Override
+    public String toString() {
+        return "CompactAddressSet{" +
+                "size=" + addresses.length +
+                ", filterBits=" + (filterMask + 1) +
+                '}';
+    }
+}
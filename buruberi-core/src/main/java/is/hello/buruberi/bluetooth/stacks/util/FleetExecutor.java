@@ -0,0 +1,518 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import is.hello.buruberi.bluetooth.errors.PeripheralNotFoundException;
+import is.hello.buruberi.bluetooth.errors.UserDisabledBuruberiException;
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.GattService;
+import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
+import is.hello.buruberi.util.Operation;
+import rx.Observable;
+import rx.functions.Action0;
+import rx.functions.Func0;
+import rx.functions.Func1;
+import rx.observers.Subscribers;
+
+/**
+ * Runs a script of operations against many devices, such as when provisioning
+ * or collecting logs from a fleet of peripherals.
+ * <p>
+ * Devices are found with a single scan. Devices the scan misses are scanned for again,
+ * up to {@link #maximumScans} scans in total, with scans never started closer together
+ * than the platform allows. Each device that is found is then connected to, has its
+ * services discovered, has the script run against it, and is disconnected from.
+ * No more than {@link #maximumConcurrentDevices} devices are connected at a time, and a
+ * device whose attempt fails is disconnected from and retried after a delay, up to
+ * {@link #maximumAttempts} times.
+ * <p>
+ * To bound how many GATT operations are in flight across the connected devices,
+ * use {@link BluetoothStack#setMaximumConcurrentOperations(int)}. Devices that are
+ * connected to when the returned observable is unsubscribed from are disconnected from.
+ */
+public final class FleetExecutor {
+    /**
+     * The default number of devices connected to at a time. 4 devices.
+     */
+    public static final int DEFAULT_MAXIMUM_CONCURRENT_DEVICES = 4;
+
+    /**
+     * The default number of times the script is attempted per device. 3 attempts.
+     */
+    public static final int DEFAULT_MAXIMUM_ATTEMPTS = 3;
+
+    /**
+     * The default delay before the first retry of a device. 1 second.
+     */
+    public static final long DEFAULT_RETRY_DELAY = 1000;
+
+    /**
+     * The default longest duration of connecting to, and discovering
+     * the services of, a device. 30 seconds each.
+     */
+    public static final long DEFAULT_OPERATION_TIMEOUT = 30 * 1000;
+
+    /**
+     * The default number of scans for devices. 3 scans.
+     */
+    public static final int DEFAULT_MAXIMUM_SCANS = 3;
+
+    /**
+     * The platform allows 5 scans to be started in any 30 second period.
+     */
+    private static final long MINIMUM_SCAN_INTERVAL = 6 * 1000;
+
+    private final @NonNull BluetoothStack stack;
+
+    /**
+     * The number of devices connected to at a time.
+     */
+    public int maximumConcurrentDevices = DEFAULT_MAXIMUM_CONCURRENT_DEVICES;
+
+    /**
+     * The number of times the script is attempted per device.
+     */
+    public int maximumAttempts = DEFAULT_MAXIMUM_ATTEMPTS;
+
+    /**
+     * The delay before retrying a device, in milliseconds.
+     * Multiplied by the number of attempts made so far.
+     */
+    public long retryDelay = DEFAULT_RETRY_DELAY;
+
+    /**
+     * The flags to connect to devices with. Defaults to a direct LE connection,
+     * as devices have just been seen by the scan.
+     */
+    public @GattPeripheral.ConnectFlags int connectFlags = GattPeripheral.CONNECT_FLAG_TRANSPORT_LE;
+
+    /**
+     * The maximum duration of the scan for devices, in milliseconds.
+     * The scan stops early once every device has been found.
+     */
+    public long scanDuration = PeripheralCriteria.DEFAULT_DURATION_MS;
+
+    /**
+     * The longest duration of connecting to, and discovering the services of, a device,
+     * in milliseconds. Shorter timeouts are used for devices that are known to respond
+     * quickly, as described by {@link GattPeripheral#createAdaptiveOperationTimeout(Operation, long, TimeUnit)}.
+     */
+    public long operationTimeout = DEFAULT_OPERATION_TIMEOUT;
+
+    /**
+     * The number of scans made for devices before the devices
+     * that have not been found fail.
+     */
+    public int maximumScans = DEFAULT_MAXIMUM_SCANS;
+
+    public FleetExecutor(@NonNull BluetoothStack stack) {
+        this.stack = stack;
+    }
+
+
+    //region Builder
+
+    /**
+     * Sets the number of devices connected to at a time.
+     */
+    public FleetExecutor setMaximumConcurrentDevices(int maximumConcurrentDevices) {
+        if (maximumConcurrentDevices < 1) {
+            throw new IllegalArgumentException("maximumConcurrentDevices must be at least 1");
+        }
+
+        this.maximumConcurrentDevices = maximumConcurrentDevices;
+        return this;
+    }
+
+    /**
+     * Sets the number of times the script is attempted per device.
+     */
+    public FleetExecutor setMaximumAttempts(int maximumAttempts) {
+        if (maximumAttempts < 1) {
+            throw new IllegalArgumentException("maximumAttempts must be at least 1");
+        }
+
+        this.maximumAttempts = maximumAttempts;
+        return this;
+    }
+
+    /**
+     * Sets the delay before retrying a device.
+     */
+    public FleetExecutor setRetryDelay(long retryDelay) {
+        if (retryDelay < 0) {
+            throw new IllegalArgumentException("retryDelay must not be negative");
+        }
+
+        this.retryDelay = retryDelay;
+        return this;
+    }
+
+    /**
+     * Sets the flags to connect to devices with.
+     */
+    public FleetExecutor setConnectFlags(@GattPeripheral.ConnectFlags int connectFlags) {
+        this.connectFlags = connectFlags;
+        return this;
+    }
+
+    /**
+     * Sets the maximum duration of the scan for devices.
+     */
+    public FleetExecutor setScanDuration(long scanDuration) {
+        if (scanDuration < 1) {
+            throw new IllegalArgumentException("scanDuration must be at least 1");
+        }
+
+        this.scanDuration = scanDuration;
+        return this;
+    }
+
+    /**
+     * Sets the longest duration of connecting to, and discovering the services of, a device.
+     */
+    public FleetExecutor setOperationTimeout(long operationTimeout) {
+        if (operationTimeout < 1) {
+            throw new IllegalArgumentException("operationTimeout must be at least 1");
+        }
+
+        this.operationTimeout = operationTimeout;
+        return this;
+    }
+
+    /**
+     * Sets the number of scans made for devices.
+     */
+    public FleetExecutor setMaximumScans(int maximumScans) {
+        if (maximumScans < 1) {
+            throw new IllegalArgumentException("maximumScans must be at least 1");
+        }
+
+        this.maximumScans = maximumScans;
+        return this;
+    }
+
+    //endregion
+
+
+    //region Execution
+
+    /**
+     * Runs a script against each of a given set of devices.
+     * <p>
+     * Emits the progress of each device as it changes, and completes once every device
+     * has either succeeded or failed. Devices that are not found by any scan fail with a
+     * {@link PeripheralNotFoundException}. Yields {@link UserDisabledBuruberiException}
+     * if the device's Bluetooth radio is disabled.
+     *
+     * @param addresses The addresses of the devices to run the script against.
+     * @param script    The script to run against each device.
+     */
+    public @NonNull <T> Observable<FleetProgress<T>> execute(final @NonNull Collection<String> addresses,
+                                                             final @NonNull Script<T> script) {
+        return Observable.defer(new Func0<Observable<FleetProgress<T>>>() {
+            @Override
+            public Observable<FleetProgress<T>> call() {
+                final Set<String> remaining = new LinkedHashSet<>(addresses);
+                if (remaining.isEmpty()) {
+                    return Observable.empty();
+                }
+
+                final Run run = new Run(remaining.size());
+                return discover(remaining, 1)
+                        .flatMap(new Func1<Sighting, Observable<FleetProgress<T>>>() {
+                            @Override
+                            public Observable<FleetProgress<T>> call(Sighting sighting) {
+                                if (sighting.peripheral == null) {
+                                    return Observable.just(run.<T>failed(sighting.address, 0,
+                                                                         new PeripheralNotFoundException()));
+                                }
+
+                                return attempt(run, sighting.peripheral, script, 1);
+                            }
+                        }, maximumConcurrentDevices);
+            }
+        });
+    }
+
+    /**
+     * Scans for the devices that have not been found yet, removing each device that is found
+     * from {@code remaining}. Scans again for the devices that are still missing, until
+     * {@link #maximumScans} scans have been made, and then emits the devices that were not found.
+     */
+    private Observable<Sighting> discover(final @NonNull Set<String> remaining, final int scan) {
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        for (final String address : remaining) {
+            criteria.addPeripheralAddress(address);
+        }
+        criteria.setLimit(remaining.size());
+        criteria.setDuration(scanDuration);
+
+        stack.getLogger().info(BluetoothStack.LOG_TAG, "Scanning for fleet of " + remaining.size() +
+                " (scan " + scan + " of " + maximumScans + ")");
+        final long startedAt = stack.getScheduler().now();
+        return stack.discoverPeripherals(criteria)
+                    .last()
+                    .flatMap(new Func1<List<GattPeripheral>, Observable<Sighting>>() {
+                        @Override
+                        public Observable<Sighting> call(List<GattPeripheral> peripherals) {
+                            final List<Sighting> found = new ArrayList<>(peripherals.size());
+                            for (final GattPeripheral peripheral : peripherals) {
+                                if (remaining.remove(peripheral.getAddress())) {
+                                    found.add(new Sighting(peripheral.getAddress(), peripheral));
+                                }
+                            }
+
+                            if (remaining.isEmpty()) {
+                                return Observable.from(found);
+                            }
+
+                            if (scan >= maximumScans) {
+                                final List<Sighting> missing = new ArrayList<>(remaining.size());
+                                for (final String address : remaining) {
+                                    missing.add(new Sighting(address, null));
+                                }
+                                return Observable.from(missing).concatWith(Observable.from(found));
+                            }
+
+                            final long delay = Math.max(0L, (startedAt + MINIMUM_SCAN_INTERVAL) -
+                                    stack.getScheduler().now());
+                            final Observable<Sighting> rescan =
+                                    Observable.timer(delay, TimeUnit.MILLISECONDS, stack.getScheduler())
+                                              .flatMap(new Func1<Long, Observable<Sighting>>() {
+                                                  @Override
+                                                  public Observable<Sighting> call(Long ignored) {
+                                                      return discover(remaining, scan + 1);
+                                                  }
+                                              });
+                            return Observable.from(found).concatWith(rescan);
+                        }
+                    });
+    }
+
+    private <T> Observable<FleetProgress<T>> attempt(final @NonNull Run run,
+                                                     final @NonNull GattPeripheral peripheral,
+                                                     final @NonNull Script<T> script,
+                                                     final int attempt) {
+        final String address = peripheral.getAddress();
+        final Observable<FleetProgress<T>> started = Observable.defer(new Func0<Observable<FleetProgress<T>>>() {
+            @Override
+            public Observable<FleetProgress<T>> call() {
+                return Observable.just(run.<T>started(address, attempt));
+            }
+        });
+        final Observable<FleetProgress<T>> outcome =
+                Observable.defer(new Func0<Observable<T>>() {
+                    @Override
+                    public Observable<T> call() {
+                        return runScript(peripheral, script);
+                    }
+                }).map(new Func1<T, FleetProgress<T>>() {
+                    @Override
+                    public FleetProgress<T> call(T result) {
+                        return run.succeeded(address, attempt, result);
+                    }
+                }).onErrorResumeNext(new Func1<Throwable, Observable<FleetProgress<T>>>() {
+                    @Override
+                    public Observable<FleetProgress<T>> call(Throwable e) {
+                        if (attempt >= maximumAttempts || e instanceof UserDisabledBuruberiException) {
+                            stack.getLogger().warn(BluetoothStack.LOG_TAG, "Giving up on " + address, e);
+                            return Observable.just(run.<T>failed(address, attempt, e));
+                        }
+
+                        final Observable<FleetProgress<T>> retry =
+                                Observable.timer(retryDelay * attempt, TimeUnit.MILLISECONDS, stack.getScheduler())
+                                          .flatMap(new Func1<Long, Observable<FleetProgress<T>>>() {
+                                              @Override
+                                              public Observable<FleetProgress<T>> call(Long ignored) {
+                                                  return attempt(run, peripheral, script, attempt + 1);
+                                              }
+                                          });
+                        return Observable.just(run.<T>retrying(address, attempt, e)).concatWith(retry);
+                    }
+                });
+        return started.concatWith(outcome);
+    }
+
+    /**
+     * Connects to a device, discovers its services, runs the script against it, and
+     * disconnects from it. The device is disconnected from whether or not the script
+     * succeeds. Emits the last value emitted by the script, or {@code null}.
+     */
+    private <T> Observable<T> runScript(final @NonNull GattPeripheral peripheral,
+                                        final @NonNull Script<T> script) {
+        final OperationTimeout connectTimeout =
+                peripheral.createAdaptiveOperationTimeout(Operation.CONNECT, operationTimeout,
+                                                          TimeUnit.MILLISECONDS);
+        final OperationTimeout discoveryTimeout =
+                peripheral.createAdaptiveOperationTimeout(Operation.DISCOVER_SERVICES, operationTimeout,
+                                                          TimeUnit.MILLISECONDS);
+        final AtomicBoolean settled = new AtomicBoolean(false);
+        return peripheral.connect(connectFlags, connectTimeout)
+                         .flatMap(new Func1<GattPeripheral, Observable<Map<UUID, ? extends GattService>>>() {
+                             @Override
+                             public Observable<Map<UUID, ? extends GattService>> call(GattPeripheral connected) {
+                                 return connected.discoverServices(discoveryTimeout);
+                             }
+                         })
+                         .flatMap(new Func1<Map<UUID, ? extends GattService>, Observable<T>>() {
+                             @Override
+                             public Observable<T> call(Map<UUID, ? extends GattService> services) {
+                                 return script.run(peripheral);
+                             }
+                         })
+                         .lastOrDefault(null)
+                         .flatMap(new Func1<T, Observable<T>>() {
+                             @Override
+                             public Observable<T> call(T result) {
+                                 settled.set(true);
+                                 return disconnectThen(peripheral, Observable.just(result));
+                             }
+                         }, new Func1<Throwable, Observable<T>>() {
+                             @Override
+                             public Observable<T> call(Throwable e) {
+                                 settled.set(true);
+                                 return disconnectThen(peripheral, Observable.<T>error(e));
+                             }
+                         }, new Func0<Observable<T>>() {
+                             @Override
+                             public Observable<T> call() {
+                                 return Observable.empty();
+                             }
+                         })
+                         .doOnUnsubscribe(new Action0() {
+                             @Override
+                             public void call() {
+                                 // Unsubscribed from before the script settled,
+                                 // the device would otherwise stay connected.
+                                 if (!settled.get()) {
+                                     disconnectThen(peripheral, Observable.<T>empty())
+                                             .subscribe(Subscribers.<T>empty());
+                                 }
+                             }
+                         });
+    }
+
+    private static <T> Observable<T> disconnectThen(final @NonNull GattPeripheral peripheral,
+                                                    final @NonNull Observable<T> then) {
+        return peripheral.disconnect()
+                         .lastOrDefault(peripheral)
+                         .onErrorReturn(new Func1<Throwable, GattPeripheral>() {
+                             @Override
+                             public GattPeripheral call(Throwable ignored) {
+                                 return peripheral;
+                             }
+                         })
+                         .flatMap(new Func1<GattPeripheral, Observable<T>>() {
+                             @Override
+                             public Observable<T> call(GattPeripheral ignored) {
+                                 return then;
+                             }
+                         });
+    }
+
+    //endregion
+
+
+    /**
+     * A device that was found by a scan, or that was not found by any scan.
+     */
+    private static final class Sighting {
+        private final @NonNull String address;
+        private final @Nullable GattPeripheral peripheral;
+
+        private Sighting(@NonNull String address, @Nullable GattPeripheral peripheral) {
+            this.address = address;
+            this.peripheral = peripheral;
+        }
+    }
+
+    /**
+     * The aggregate state of a single call to {@link #execute(Collection, Script)}.
+     */
+    private static final class Run {
+        private final int total;
+        private final long startedAt = SystemClock.elapsedRealtime();
+        private int succeeded = 0;
+        private int failed = 0;
+        private int attempts = 0;
+
+        private Run(int total) {
+            this.total = total;
+        }
+
+        private FleetProgress.Stats snapshot() {
+            return new FleetProgress.Stats(total, succeeded, failed, attempts,
+                                           SystemClock.elapsedRealtime() - startedAt);
+        }
+
+        synchronized <T> FleetProgress<T> started(@NonNull String address, int attempt) {
+            this.attempts++;
+            return new FleetProgress<>(FleetProgress.Type.STARTED, address, attempt,
+                                       null, null, snapshot());
+        }
+
+        synchronized <T> FleetProgress<T> retrying(@NonNull String address, int attempt,
+                                                   @NonNull Throwable error) {
+            return new FleetProgress<>(FleetProgress.Type.RETRYING, address, attempt,
+                                       null, error, snapshot());
+        }
+
+        synchronized <T> FleetProgress<T> succeeded(@NonNull String address, int attempt, T result) {
+            this.succeeded++;
+            return new FleetProgress<>(FleetProgress.Type.SUCCEEDED, address, attempt,
+                                       result, null, snapshot());
+        }
+
+        synchronized <T> FleetProgress<T> failed(@NonNull String address, int attempt,
+                                                 @NonNull Throwable error) {
+            this.failed++;
+            return new FleetProgress<>(FleetProgress.Type.FAILED, address, attempt,
+                                       null, error, snapshot());
+        }
+    }
+
+    /**
+     * A sequence of operations to perform against a single connected device.
+     *
+     * @param <T> The type of result produced by the script.
+     */
+    public interface Script<T> {
+        /**
+         * Returns the operations to perform against a given device. The device
+         * is connected to and has had its services discovered beforehand, and
+         * is disconnected from once the returned observable terminates.
+         * <p>
+         * May be called more than once for a device if an attempt fails.
+         */
+        @NonNull Observable<T> run(@NonNull GattPeripheral peripheral);
+    }
+}
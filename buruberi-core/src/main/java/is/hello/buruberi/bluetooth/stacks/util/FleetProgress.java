@@ -0,0 +1,177 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Describes the progress of a single device in a bulk operation
+ * run by a {@link FleetExecutor}, along with the progress of the
+ * bulk operation as a whole.
+ *
+ * @param <T> The type of result produced by the operation's script.
+ */
+public final class FleetProgress<T> {
+    public enum Type {
+        /**
+         * An attempt to run the script against the device has begun.
+         */
+        STARTED,
+
+        /**
+         * An attempt failed with {@link #error}, and will be retried.
+         */
+        RETRYING,
+
+        /**
+         * The script completed with {@link #result}.
+         */
+        SUCCEEDED,
+
+        /**
+         * The device was not found, or every attempt failed.
+         * The last error is reported in {@link #error}.
+         */
+        FAILED,
+    }
+
+    /**
+     * The kind of progress.
+     */
+    public final @NonNull Type type;
+
+    /**
+     * The address of the device.
+     */
+    public final @NonNull String address;
+
+    /**
+     * The attempt the progress applies to, starting at {@code 1}.
+     * Devices that were not found report {@code 0}.
+     */
+    public final int attempt;
+
+    /**
+     * The last value emitted by the script, if the type is {@link Type#SUCCEEDED}.
+     */
+    public final @Nullable T result;
+
+    /**
+     * The error that ended the attempt, if the type
+     * is {@link Type#RETRYING} or {@link Type#FAILED}.
+     */
+    public final @Nullable Throwable error;
+
+    /**
+     * A snapshot of the bulk operation as a whole when the progress was reported.
+     */
+    public final @NonNull Stats stats;
+
+    public FleetProgress(@NonNull Type type,
+                         @NonNull String address,
+                         int attempt,
+                         @Nullable T result,
+                         @Nullable Throwable error,
+                         @NonNull Stats stats) {
+        this.type = type;
+        this.address = address;
+        this.attempt = attempt;
+        this.result = result;
+        this.error = error;
+        this.stats = stats;
+    }
+
+    @Override
+    public String toString() {
+        return "FleetProgress{" +
+                "type=" + type +
+                ", address='" + address + '\'' +
+                ", attempt=" + attempt +
+                ", result=" + result +
+                ", error=" + error +
+                ", stats=" + stats +
+                '}';
+    }
+
+
+    /**
+     * Aggregate counts for a bulk operation.
+     */
+    public static final class Stats {
+        /**
+         * The number of devices in the bulk operation.
+         */
+        public final int total;
+
+        /**
+         * The number of devices whose script completed.
+         */
+        public final int succeeded;
+
+        /**
+         * The number of devices that were not found, or failed every attempt.
+         */
+        public final int failed;
+
+        /**
+         * The number of attempts started across all devices.
+         */
+        public final int attempts;
+
+        /**
+         * How long the bulk operation has been running, in milliseconds.
+         */
+        public final long elapsed;
+
+        public Stats(int total, int succeeded, int failed, int attempts, long elapsed) {
+            this.total = total;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.attempts = attempts;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * Returns the number of devices that have not yet succeeded or failed.
+         */
+        public int getRemaining() {
+            return total - succeeded - failed;
+        }
+
+        /**
+         * Returns the number of devices that have succeeded or failed per minute.
+         */
+        public float getThroughput() {
+            if (elapsed <= 0) {
+                return 0f;
+            }
+
+            return (succeeded + failed) * 60f * 1000f / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats{" +
+                    "total=" + total +
+                    ", succeeded=" + succeeded +
+                    ", failed=" + failed +
+                    ", attempts=" + attempts +
+                    ", elapsed=" + elapsed +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Maps the addresses of peripherals that advertise with rotating resolvable
+ * private addresses to stable identities, so that scan bookkeeping survives
+ * address rotation.
+ * <p>
+ * Addresses are first checked against known identity resolving keys, typically
+ * obtained from bonding. A resolvable private address that no key resolves is
+ * identified by a fingerprint of its advertising data instead. Public and static
+ * addresses are already stable, and are always their own identity.
+ * <p>
+ * Fingerprinting is disabled by default, as it cannot tell apart peripherals whose
+ * fingerprinted records are identical, such as every unit of the same product. Use
+ * {@link #setFingerprintRecordTypes(int...)} to opt in with records that distinguish
+ * the peripherals of interest.
+ * <p>
+ * All methods are synchronized.
+ *
+ * @see PeripheralCriteria#setIdentityResolver(IdentityResolver)
+ */
+public final class IdentityResolver {
+    /**
+     * The prefix applied to identities derived from advertising data.
+     */
+    public static final String FINGERPRINT_PREFIX = "fingerprint:";
+
+    /**
+     * The number of address to identity mappings to remember.
+     */
+    private static final int CACHE_SIZE = 256;
+
+    private final List<Key> keys = new ArrayList<>();
+    private final Map<Long, String> cache = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+            return (size() > CACHE_SIZE);
+        }
+    };
+    private int[] fingerprintRecordTypes = {};
+
+
+    //region Configuration
+
+    /**
+     * Adds a known identity resolving key.
+     *
+     * @param identity  The identity to report for addresses resolved by the key.
+     *                  Typically the peripheral's identity address.
+     * @param irk       The 128-bit key, most significant byte first.
+     * @throws IllegalArgumentException if the key is not 16 bytes long.
+     */
+    public synchronized IdentityResolver addIdentityResolvingKey(@NonNull String identity,
+                                                                 @NonNull byte[] irk) {
+        if (irk.length != 16) {
+            throw new IllegalArgumentException("Identity resolving keys must be 16 bytes long");
+        }
+
+        keys.add(new Key(identity, irk));
+        cache.clear();
+        return this;
+    }
+
+    /**
+     * Sets the advertising data record types used to fingerprint resolvable private
+     * addresses that no known key resolves. Defaults to no types, which disables
+     * fingerprinting. The records must be unique to each peripheral of interest,
+     * such as a local name that includes a serial number; peripherals with identical
+     * records are coalesced into a single result. Records that commonly contain counters
+     * or sensor readings, such as manufacturer specific data, make poor fingerprints.
+     */
+    public synchronized IdentityResolver setFingerprintRecordTypes(@NonNull int... types) {
+        this.fingerprintRecordTypes = types.clone();
+        cache.clear();
+        return this;
+    }
+
+    //endregion
+
+
+    //region Resolution
+
+    /**
+     * Returns the stable identity of a peripheral.
+     *
+     * @param address       The address the peripheral is currently advertising under.
+     * @param scanRecord    The raw advertising data the peripheral is currently broadcasting.
+     * @return The identity of the peripheral, or {@code address} if it has no better identity.
+     */
+    public synchronized @NonNull String resolve(@NonNull String address, @NonNull byte[] scanRecord) {
+        final long rawAddress;
+        try {
+            rawAddress = CompactAddressSet.parseAddress(address);
+        } catch (IllegalArgumentException ignored) {
+            return address;
+        }
+
+        if (!isResolvablePrivateAddress(rawAddress)) {
+            return address;
+        }
+
+        final String cached = cache.get(rawAddress);
+        if (cached != null) {
+            return cached;
+        }
+
+        String identity = resolveWithKeys(rawAddress);
+        if (identity == null) {
+            identity = fingerprint(AdvertisingData.parse(scanRecord));
+        }
+        if (identity == null) {
+            identity = address;
+        }
+
+        cache.put(rawAddress, identity);
+        return identity;
+    }
+
+    private @Nullable String resolveWithKeys(long rawAddress) {
+        final int prand = (int) (rawAddress >>> 24) & 0xFFFFFF;
+        final int hash = (int) rawAddress & 0xFFFFFF;
+        for (final Key key : keys) {
+            if (key.ah(prand) == hash) {
+                return key.identity;
+            }
+        }
+
+        return null;
+    }
+
+    private @Nullable String fingerprint(@NonNull AdvertisingData advertisingData) {
+        // 64-bit FNV-1a
+        long fingerprint = AdvertisingData.FNV_OFFSET_BASIS;
+        boolean anyRecords = false;
+        for (int i = 0, count = advertisingData.getRecordTypeCount(); i < count; i++) {
+            final int type = advertisingData.getRecordTypeAt(i);
+            if (!isFingerprintRecordType(type)) {
+                continue;
+            }
+
+            fingerprint = (fingerprint ^ type) * AdvertisingData.FNV_PRIME;
+            for (final byte[] record : advertisingData.getRecordsAt(i)) {
+                fingerprint = (fingerprint ^ record.length) * AdvertisingData.FNV_PRIME;
+                for (final byte b : record) {
+                    fingerprint = (fingerprint ^ (b & 0xFF)) * AdvertisingData.FNV_PRIME;
+                }
+                anyRecords = true;
+            }
+        }
+
+        if (!anyRecords) {
+            return null;
+        }
+
+        return FINGERPRINT_PREFIX + String.format(Locale.US, "%016x", fingerprint);
+    }
+
+    private boolean isFingerprintRecordType(int type) {
+        for (final int fingerprintType : fingerprintRecordTypes) {
+            if (fingerprintType == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether or not an address has the form of a resolvable private
+     * address, which is indicated by its two most significant bits being 01.
+     */
+    @VisibleForTesting
+    static boolean isResolvablePrivateAddress(long rawAddress) {
+        return ((rawAddress >>> 46) & 0x3) == 0x1;
+    }
+
+    //endregion
+
+
+    @VisibleForTesting
+    static final class Key {
+        final String identity;
+        private final Cipher cipher;
+        private final byte[] block = new byte[16];
+
+        Key(@NonNull String identity, @NonNull byte[] irk) {
+            this.identity = identity;
+            try {
+                this.cipher = Cipher.getInstance("AES/ECB/NoPadding");
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(irk, "AES"));
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("AES is unavailable", e);
+            }
+        }
+
+        /**
+         * The random address hash function {@code ah} from the Bluetooth
+         * Core Specification, Vol 3, Part H, Section 2.2.2.
+         */
+        int ah(int prand) {
+            block[13] = (byte) (prand >>> 16);
+            block[14] = (byte) (prand >>> 8);
+            block[15] = (byte) prand;
+
+            final byte[] encrypted;
+            try {
+                encrypted = cipher.doFinal(block);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not compute address hash", e);
+            }
+
+            return ((encrypted[13] & 0xFF) << 16) |
+                    ((encrypted[14] & 0xFF) << 8) |
+                    (encrypted[15] & 0xFF);
+        }
+    }
+}
@@ -16,9 +16,11 @@
 package is.hello.buruberi.bluetooth.stacks.util;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -37,13 +39,26 @@ public final class PeripheralCriteria {
      */
     public static final int DEFAULT_DURATION_MS = 10 * 1000;
 
+    /**
+     * The number of evaluations between each reordering
+     * of tests when adaptive ordering is enabled.
+     */
+    private static final int REORDER_INTERVAL = 64;
+
     /**
      * Device addresses to match against.
      * <p>
-     * This list being empty has the effect of all addresses being acceptable.
+     * This list being empty, and {@link #peripheralAddressSet} being
+     * {@code null}, has the effect of all addresses being acceptable.
      */
     public final Set<String> peripheralAddresses = new HashSet<>();
 
+    /**
+     * A compact set of additional device addresses to match against.
+     * Intended for allow-lists too large to be held in {@link #peripheralAddresses}.
+     */
+    public @Nullable CompactAddressSet peripheralAddressSet;
+
     /**
      * A list of predicate functions that will be called to determine
      * whether or not a collection of advertising data matches this
@@ -62,12 +77,96 @@ public final class PeripheralCriteria {
      */
     public long duration = DEFAULT_DURATION_MS;
 
+    /**
+     * How long the scan may go without matching a new peripheral before it is ended.
+     * A value of {@code 0} disables quiet period detection.
+     */
+    public long quietPeriod = 0;
+
+    /**
+     * The minimum amount of time that must pass before a quiet period can end the scan.
+     */
+    public long minimumDuration = 0;
+
     /**
      * Whether or not to perform a high power scan before performing a low energy scan.
      * Required for some devices to be able to detect advertising data.
      */
     public boolean wantsHighPowerPreScan = false;
 
+    /**
+     * The maximum number of peripherals to retain while scanning. When more peripherals
+     * match than can be retained, only those with the strongest smoothed signal are kept.
+     * <p>
+     * Defaults to unbounded.
+     */
+    public int maximumResults = Integer.MAX_VALUE;
+
+    /**
+     * How long a peripheral may go without being seen before it is evicted from
+     * the results of an in-progress scan. A value of {@code 0} disables eviction.
+     */
+    public long evictionTimeout = 0;
+
+    /**
+     * Whether or not to parse and match advertising data on a pool of worker
+     * threads instead of on the scan callback thread.
+     */
+    public boolean wantsParallelProcessing = false;
+
+    /**
+     * Whether or not to reorder the address and predicate tests at
+     * runtime so that the cheapest, most selective test runs first.
+     */
+    public boolean wantsAdaptiveOrdering = false;
+
+    /**
+     * The weakest signal strength a peripheral may first be seen with to be processed.
+     * Peripherals that have already been seen are processed at any signal strength.
+     * <p>
+     * Defaults to accepting any signal strength.
+     */
+    public int minimumRssi = Integer.MIN_VALUE;
+
+    /**
+     * The minimum number of milliseconds between processed advertisements
+     * from a single address. A value of {@code 0} processes every advertisement.
+     */
+    public long processingInterval = 0;
+
+    /**
+     * The smoothed signal strength a peripheral must reach before a presence
+     * session reports that it has entered. Defaults to any signal strength.
+     */
+    public int enterRssi = Integer.MIN_VALUE;
+
+    /**
+     * The smoothed signal strength a peripheral must fall below before a presence
+     * session reports that it has exited. Defaults to any signal strength.
+     */
+    public int exitRssi = Integer.MIN_VALUE;
+
+    /**
+     * How long a peripheral may go unseen before a presence session reports
+     * that it has exited. Defaults to three times {@link #DEFAULT_DURATION_MS}.
+     */
+    public long exitTimeout = 3 * DEFAULT_DURATION_MS;
+
+    /**
+     * Resolves the addresses of scanned peripherals to stable identities.
+     * Scan results are coalesced by identity instead of by address.
+     */
+    public @Nullable IdentityResolver identityResolver;
+
+    /**
+     * How old the results of a previous scan may be, in milliseconds, to be reported
+     * before a new scan is performed. A value of {@code 0} disables reporting them.
+     */
+    public long cacheTtl = 0;
+
+    private volatile @Nullable Test[] adaptiveOrder;
+    private int evaluationsSinceReorder = 0;
+
     /**
      * Returns a configured criteria that will search for one instance of a given address.
      */
@@ -93,6 +192,19 @@ public final class PeripheralCriteria {
     }
 
 
+    /**
+     * Sets a compact set of addresses to match against when scanning,
+     * in addition to any addresses in {@link #peripheralAddresses}.
+     * <p>
+     * Like {@link #addPeripheralAddress(String)}, a non-null set changes the scanning
+     * behavior from matching any address, to just matching the addresses specified.
+     */
+    public PeripheralCriteria setPeripheralAddressSet(@Nullable CompactAddressSet peripheralAddressSet) {
+        this.peripheralAddressSet = peripheralAddressSet;
+        return this;
+    }
+
+
     /**
      * Adds a predicate functor to invoke when determining if the criteria
      * matches a given advertising data collection. All predicates must return
@@ -107,17 +219,7 @@ public final class PeripheralCriteria {
      * Adds a predicate to check that an advertising data record exactly matches a given byte payload.
      */
     public PeripheralCriteria addExactMatchPredicate(final int type, final @NonNull byte[] toMatch) {
-        return addPredicate(new Func1<AdvertisingData, Boolean>() {
-            @Override
-            public Boolean call(AdvertisingData advertisingData) {
-                return advertisingData.anyRecordMatches(type, new Func1<byte[], Boolean>() {
-                    @Override
-                    public Boolean call(byte[] match) {
-                        return Arrays.equals(match, toMatch);
-                    }
-                });
-            }
-        });
+        return addPredicate(new RecordPredicate(type, toMatch, true));
     }
 
     /**
@@ -131,17 +233,7 @@ public final class PeripheralCriteria {
      * Adds a predicate to check that an advertising data record starts with a given byte payload.
      */
     public PeripheralCriteria addStartsWithPredicate(final int type, final @NonNull byte[] prefix) {
-        return addPredicate(new Func1<AdvertisingData, Boolean>() {
-            @Override
-            public Boolean call(AdvertisingData advertisingData) {
-                return advertisingData.anyRecordMatches(type, new Func1<byte[], Boolean>() {
-                    @Override
-                    public Boolean call(byte[] match) {
-                        return Bytes.startWith(match, prefix);
-                    }
-                });
-            }
-        });
+        return addPredicate(new RecordPredicate(type, prefix, false));
     }
 
     /**
@@ -170,6 +262,29 @@ public final class PeripheralCriteria {
         return this;
     }
 
+    /**
+     * Sets how long the scan may go without matching a new peripheral before it is
+     * ended, allowing scans in quiet environments to end early. The scan will still
+     * be ended once its {@link #setDuration(long) duration} elapses.
+     * <p>
+     * Defaults to {@code 0}, which disables quiet period detection.
+     *
+     * @see #setMinimumDuration(long)
+     */
+    public PeripheralCriteria setQuietPeriod(long quietPeriod) {
+        this.quietPeriod = quietPeriod;
+        return this;
+    }
+
+    /**
+     * Sets the minimum amount of time that must pass before a
+     * {@link #setQuietPeriod(long) quiet period} can end the scan.
+     */
+    public PeripheralCriteria setMinimumDuration(long minimumDuration) {
+        this.minimumDuration = minimumDuration;
+        return this;
+    }
+
     /**
      * Sets whether or not to perform a high power scan before
      * performing a lower power discovery.
@@ -184,6 +299,121 @@ public final class PeripheralCriteria {
         return this;
     }
 
+    /**
+     * Sets the maximum number of peripherals to retain while scanning. Once the
+     * maximum is reached, a newly matched peripheral only displaces the weakest
+     * retained peripheral if its signal is stronger. Defaults to unbounded.
+     * <p>
+     * Unlike {@link #setLimit(int)}, reaching this number does not end the scan.
+     */
+    public PeripheralCriteria setMaximumResults(int maximumResults) {
+        this.maximumResults = maximumResults;
+        return this;
+    }
+
+    /**
+     * Sets how long a peripheral may go without being seen before it is
+     * evicted from the results of an in-progress scan. Defaults to never.
+     */
+    public PeripheralCriteria setEvictionTimeout(long evictionTimeout) {
+        this.evictionTimeout = evictionTimeout;
+        return this;
+    }
+
+    /**
+     * Sets whether or not to parse and match advertising data on a small pool
+     * of worker threads, instead of on the thread scan results are delivered on.
+     * Matching peripherals are still delivered in the order they were seen.
+     * <p>
+     * Intended for environments with a large number of advertising peripherals.
+     * <em>When enabled, predicates may be invoked concurrently from multiple threads.</em>
+     */
+    public PeripheralCriteria setWantsParallelProcessing(boolean wantsParallelProcessing) {
+        this.wantsParallelProcessing = wantsParallelProcessing;
+        return this;
+    }
+
+    /**
+     * Sets whether or not the criteria should track the rejection rate and cost
+     * of its address and predicate tests while scanning, and periodically reorder
+     * them so that the test most likely to cheaply reject a peripheral runs first.
+     * <p>
+     * Predicates must not depend on being evaluated in insertion order when enabled.
+     */
+    public PeripheralCriteria setWantsAdaptiveOrdering(boolean wantsAdaptiveOrdering) {
+        this.wantsAdaptiveOrdering = wantsAdaptiveOrdering;
+        return this;
+    }
+
+    /**
+     * Sets the weakest signal strength a peripheral may first be seen with to be processed.
+     * Weaker first sightings are dropped before being parsed. Later advertisements from a
+     * peripheral that has been seen are always processed, so that its signal strength keeps
+     * tracking weak samples. Defaults to any.
+     */
+    public PeripheralCriteria setMinimumRssi(int minimumRssi) {
+        this.minimumRssi = minimumRssi;
+        return this;
+    }
+
+    /**
+     * Sets the minimum number of milliseconds between processed advertisements from a
+     * single address. Advertisements that arrive sooner are dropped before being parsed,
+     * so a peripheral's signal strength is refreshed at most once per interval.
+     * Defaults to processing every advertisement.
+     */
+    public PeripheralCriteria setProcessingInterval(long processingInterval) {
+        this.processingInterval = processingInterval;
+        return this;
+    }
+
+    /**
+     * Sets the smoothed signal strengths at which a presence session reports peripherals
+     * as having entered and exited. Leaving a gap between the two values prevents
+     * peripherals near the boundary from rapidly flapping between states.
+     *
+     * @throws IllegalArgumentException if {@code exitRssi} is greater than {@code enterRssi}.
+     */
+    public PeripheralCriteria setPresenceThresholds(int enterRssi, int exitRssi) {
+        if (exitRssi > enterRssi) {
+            throw new IllegalArgumentException("exitRssi must not be greater than enterRssi");
+        }
+
+        this.enterRssi = enterRssi;
+        this.exitRssi = exitRssi;
+        return this;
+    }
+
+    /**
+     * Sets the resolver used to coalesce the scan results of peripherals that
+     * advertise with rotating resolvable private addresses. Address and predicate
+     * matching continue to use the address a peripheral is currently advertising under.
+     */
+    public PeripheralCriteria setIdentityResolver(@Nullable IdentityResolver identityResolver) {
+        this.identityResolver = identityResolver;
+        return this;
+    }
+
+    /**
+     * Sets how long a peripheral may go unseen before a presence
+     * session reports that it has exited. Defaults to 30 seconds.
+     */
+    public PeripheralCriteria setExitTimeout(long exitTimeout) {
+        this.exitTimeout = exitTimeout;
+        return this;
+    }
+
+    /**
+     * Sets how old the results of a previous scan may be, in milliseconds, to be
+     * reported immediately. When set, discovery first emits the recently seen peripherals
+     * that match the criteria, and then emits the results of a new scan as usual.
+     * Defaults to {@code 0}, which always waits for the new scan.
+     */
+    public PeripheralCriteria setCacheTtl(long cacheTtl) {
+        this.cacheTtl = cacheTtl;
+        return this;
+    }
+
     //endregion
 
     /**
@@ -199,4 +429,178 @@ public final class PeripheralCriteria {
 
         return true;
     }
+
+    /**
+     * Used by bluetooth stack implementations. Returns whether or not the criteria
+     * is satisfied by a given peripheral address and advertising data collection.
+     */
+    public boolean matches(@NonNull String address, @NonNull AdvertisingData scanResponses) {
+        if (wantsAdaptiveOrdering) {
+            return matchesAdaptively(address, scanResponses);
+        }
+
+        return (matchesAddress(address) && matches(scanResponses));
+    }
+
+    /**
+     * Used by bluetooth stack implementations. Returns whether or
+     * not the criteria is satisfied by a given peripheral address.
+     */
+    public boolean matchesAddress(@NonNull String address) {
+        final CompactAddressSet peripheralAddressSet = this.peripheralAddressSet;
+        if (peripheralAddressSet != null && peripheralAddressSet.contains(address)) {
+            return true;
+        }
+
+        if (peripheralAddresses.isEmpty()) {
+            return (peripheralAddressSet == null);
+        }
+
+        return peripheralAddresses.contains(address);
+    }
+
+
+    /**
+     * A predicate that compares the records of a single type against a byte payload.
+     * Kept distinct from free-form predicates so that it can be indexed.
+     *
+     * @see PeripheralCriteriaIndex
+     */
+    /*package*/ static final class RecordPredicate implements Func1<AdvertisingData, Boolean> {
+        /*package*/ final int type;
+        /*package*/ final @NonNull byte[] payload;
+        /*package*/ final boolean exact;
+
+        /*package*/ RecordPredicate(int type, @NonNull byte[] payload, boolean exact) {
+            this.type = type;
+            this.payload = payload;
+            this.exact = exact;
+        }
+
+        @Override
+        public Boolean call(AdvertisingData advertisingData) {
+            return advertisingData.anyRecordMatches(type, new Func1<byte[], Boolean>() {
+                @Override
+                public Boolean call(byte[] match) {
+                    if (exact) {
+                        return Arrays.equals(match, payload);
+                    } else {
+                        return Bytes.startWith(match, payload);
+                    }
+                }
+            });
+        }
+    }
+
+
+    //region Adaptive Ordering
+
+    private boolean matchesAdaptively(@NonNull String address, @NonNull AdvertisingData scanResponses) {
+        Test[] order = this.adaptiveOrder;
+        if (order == null || order.length != (predicates.size() + 1)) {
+            order = new Test[predicates.size() + 1];
+            order[0] = new Test(null);
+            for (int i = 0, size = predicates.size(); i < size; i++) {
+                order[i + 1] = new Test(predicates.get(i));
+            }
+            this.adaptiveOrder = order;
+            this.evaluationsSinceReorder = 0;
+        } else if (++evaluationsSinceReorder >= REORDER_INTERVAL) {
+            final Test[] reordered = order.clone();
+            Arrays.sort(reordered, Test.CHEAPEST_REJECTION_FIRST);
+            this.adaptiveOrder = reordered;
+            this.evaluationsSinceReorder = 0;
+            order = reordered;
+        }
+
+        for (final Test test : order) {
+            if (!test.evaluate(this, address, scanResponses)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * An address or predicate test, and the statistics gathered from evaluating it.
+     * <p>
+     * Statistics are updated without synchronization. Concurrent evaluation from
+     * multiple scanning threads may lose samples, which only affects the order
+     * tests run in, never whether or not the criteria matches.
+     */
+    private static final class Test {
+        static final Comparator<Test> CHEAPEST_REJECTION_FIRST = new Comparator<Test>() {
+            @Override
+            public int compare(Test lhs, Test rhs) {
+                return Double.compare(lhs.getCostPerRejection(), rhs.getCostPerRejection());
+            }
+        };
+
+        /**
+         * The predicate to evaluate, or {@code null} to test the peripheral address.
+         */
+        final @Nullable Func1<AdvertisingData, Boolean> predicate;
+
+        /**
+         * Evaluations that take longer than this were almost certainly interrupted by
+         * the scheduler or garbage collector, and are clamped so that a single pause
+         * does not permanently distort the test's cost.
+         */
+        static final long MAXIMUM_SAMPLE_NANOS = 50000L;
+
+        /**
+         * Only one in this many evaluations is timed. Reading the clock costs about
+         * as much as a cheap predicate, so timing every evaluation would cost more
+         * than reordering saves.
+         */
+        static final int TIMING_INTERVAL = 16;
+
+        long evaluations = 0;
+        long rejections = 0;
+        long timedEvaluations = 0;
+        long elapsedNanos = 0;
+
+        Test(@Nullable Func1<AdvertisingData, Boolean> predicate) {
+            this.predicate = predicate;
+        }
+
+        boolean evaluate(@NonNull PeripheralCriteria criteria,
+                         @NonNull String address,
+                         @NonNull AdvertisingData scanResponses) {
+            final boolean timed = (evaluations % TIMING_INTERVAL == 0);
+            final long start = timed ? System.nanoTime() : 0L;
+            final boolean passed;
+            if (predicate != null) {
+                passed = predicate.call(scanResponses);
+            } else {
+                passed = criteria.matchesAddress(address);
+            }
+            if (timed) {
+                this.elapsedNanos += Math.min(System.nanoTime() - start, MAXIMUM_SAMPLE_NANOS);
+                this.timedEvaluations++;
+            }
+            this.evaluations++;
+            if (!passed) {
+                this.rejections++;
+            }
+            return passed;
+        }
+
+        /**
+         * The expected time spent evaluating the test for each peripheral it rejects.
+         * Tests that have yet to reject anything are assumed to reject at a low rate.
+         */
+        double getCostPerRejection() {
+            if (timedEvaluations == 0) {
+                return 0.0;
+            }
+
+            final double averageCost = elapsedNanos / (double) timedEvaluations;
+            final double rejectionRate = (rejections + 1) / (double) (evaluations + 2);
+            return averageCost / rejectionRate;
+        }
+    }
+
+    //endregion
 }
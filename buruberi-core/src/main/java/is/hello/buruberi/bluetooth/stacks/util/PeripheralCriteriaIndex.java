@@ -0,0 +1,243 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.support.annotation.NonNull;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import rx.functions.Func1;
+
+/**
+ * An inverted index over the criteria of many concurrent scan subscribers.
+ * <p>
+ * Predicates added through {@link PeripheralCriteria#addExactMatchPredicate(int, byte[])}
+ * and {@link PeripheralCriteria#addStartsWithPredicate(int, byte[])} are indexed in a byte
+ * trie for each advertising data type. Because the first two bytes of a manufacturer specific
+ * data record are its company identifier, manufacturer data predicates are keyed by company
+ * identifier as a matter of course. Matching an advertisement walks each of its records through
+ * the trie once, so the cost of matching grows with the size of the advertisement rather than
+ * with the number of subscribers.
+ * <p>
+ * Free-form predicates and address allow-lists cannot be indexed, and are evaluated directly,
+ * only for subscribers whose indexed predicates have all been satisfied.
+ * <p>
+ * Criteria must not be modified after being added to an index. All methods are synchronized.
+ *
+ * @param <T> The type of subscriber identifiers.
+ */
+public final class PeripheralCriteriaIndex<T> {
+    private final SparseArray<Node<T>> roots = new SparseArray<>();
+    private final Map<T, Subscription<T>> subscriptions = new HashMap<>();
+    private final List<Subscription<T>> unindexed = new ArrayList<>();
+    private int generation = 0;
+
+
+    //region Subscriptions
+
+    /**
+     * Adds a subscriber to the index, replacing any criteria previously added for it.
+     */
+    public synchronized void add(@NonNull T subscriber, @NonNull PeripheralCriteria criteria) {
+        remove(subscriber);
+
+        final Subscription<T> subscription = new Subscription<>(subscriber, criteria);
+        for (final Func1<AdvertisingData, Boolean> predicate : criteria.predicates) {
+            if (predicate instanceof PeripheralCriteria.RecordPredicate) {
+                final PeripheralCriteria.RecordPredicate recordPredicate =
+                        (PeripheralCriteria.RecordPredicate) predicate;
+                Node<T> node = roots.get(recordPredicate.type);
+                if (node == null) {
+                    node = new Node<>();
+                    roots.put(recordPredicate.type, node);
+                }
+                for (final byte b : recordPredicate.payload) {
+                    node = node.getOrCreateChild(b & 0xFF);
+                }
+
+                final Rule<T> rule = new Rule<>(subscription);
+                if (recordPredicate.exact) {
+                    rule.owner = node.exactRules;
+                } else {
+                    rule.owner = node.prefixRules;
+                }
+                rule.owner.add(rule);
+                subscription.rules.add(rule);
+            } else {
+                subscription.unindexedPredicates.add(predicate);
+            }
+        }
+
+        if (subscription.rules.isEmpty()) {
+            unindexed.add(subscription);
+        }
+        subscriptions.put(subscriber, subscription);
+    }
+
+    /**
+     * Removes a subscriber from the index.
+     */
+    public synchronized void remove(@NonNull T subscriber) {
+        final Subscription<T> subscription = subscriptions.remove(subscriber);
+        if (subscription == null) {
+            return;
+        }
+
+        for (final Rule<T> rule : subscription.rules) {
+            rule.owner.remove(rule);
+        }
+        unindexed.remove(subscription);
+    }
+
+    /**
+     * Returns the number of subscribers in the index.
+     */
+    public synchronized int size() {
+        return subscriptions.size();
+    }
+
+    //endregion
+
+
+    //region Matching
+
+    /**
+     * Returns the subscribers whose criteria are satisfied by a given peripheral address
+     * and advertising data collection. Limits and durations are not considered.
+     */
+    public synchronized @NonNull Set<T> match(@NonNull String address,
+                                              @NonNull AdvertisingData advertisingData) {
+        final int generation = ++this.generation;
+        final Set<T> matches = new HashSet<>();
+        for (int i = 0, count = advertisingData.getRecordTypeCount(); i < count; i++) {
+            final Node<T> root = roots.get(advertisingData.getRecordTypeAt(i));
+            if (root == null) {
+                continue;
+            }
+
+            for (final byte[] record : advertisingData.getRecordsAt(i)) {
+                Node<T> node = root;
+                int depth = 0;
+                while (node != null) {
+                    satisfy(node.prefixRules, generation, address, advertisingData, matches);
+                    if (depth == record.length) {
+                        satisfy(node.exactRules, generation, address, advertisingData, matches);
+                        break;
+                    }
+
+                    node = node.children.get(record[depth] & 0xFF);
+                    depth++;
+                }
+            }
+        }
+
+        for (final Subscription<T> subscription : unindexed) {
+            if (subscription.matchesUnindexed(address, advertisingData)) {
+                matches.add(subscription.subscriber);
+            }
+        }
+
+        return matches;
+    }
+
+    private void satisfy(@NonNull List<Rule<T>> rules,
+                         int generation,
+                         @NonNull String address,
+                         @NonNull AdvertisingData advertisingData,
+                         @NonNull Set<T> matches) {
+        for (int i = 0, size = rules.size(); i < size; i++) {
+            final Rule<T> rule = rules.get(i);
+            if (rule.generation == generation) {
+                // Already satisfied by another record.
+                continue;
+            }
+            rule.generation = generation;
+
+            final Subscription<T> subscription = rule.subscription;
+            if (subscription.generation != generation) {
+                subscription.generation = generation;
+                subscription.satisfiedRules = 0;
+            }
+
+            if (++subscription.satisfiedRules == subscription.rules.size() &&
+                    subscription.matchesUnindexed(address, advertisingData)) {
+                matches.add(subscription.subscriber);
+            }
+        }
+    }
+
+    //endregion
+
+
+    private static final class Node<T> {
+        final SparseArray<Node<T>> children = new SparseArray<>(1);
+        final List<Rule<T>> prefixRules = new ArrayList<>(0);
+        final List<Rule<T>> exactRules = new ArrayList<>(0);
+
+        Node<T> getOrCreateChild(int key) {
+            Node<T> child = children.get(key);
+            if (child == null) {
+                child = new Node<>();
+                children.put(key, child);
+            }
+            return child;
+        }
+    }
+
+    private static final class Rule<T> {
+        final Subscription<T> subscription;
+        List<Rule<T>> owner;
+        int generation = 0;
+
+        Rule(@NonNull Subscription<T> subscription) {
+            this.subscription = subscription;
+        }
+    }
+
+    private static final class Subscription<T> {
+        final T subscriber;
+        final PeripheralCriteria criteria;
+        final List<Rule<T>> rules = new ArrayList<>();
+        final List<Func1<AdvertisingData, Boolean>> unindexedPredicates = new ArrayList<>();
+        int generation = 0;
+        int satisfiedRules = 0;
+
+        Subscription(@NonNull T subscriber, @NonNull PeripheralCriteria criteria) {
+            this.subscriber = subscriber;
+            this.criteria = criteria;
+        }
+
+        boolean matchesUnindexed(@NonNull String address, @NonNull AdvertisingData advertisingData) {
+            if (!criteria.matchesAddress(address)) {
+                return false;
+            }
+
+            for (int i = 0, size = unindexedPredicates.size(); i < size; i++) {
+                if (!unindexedPredicates.get(i).call(advertisingData)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
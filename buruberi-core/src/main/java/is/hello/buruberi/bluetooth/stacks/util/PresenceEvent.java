@@ -0,0 +1,82 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.support.annotation.NonNull;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+
+/**
+ * Describes a change in the presence of a peripheral, as
+ * reported by {@link BluetoothStack#monitorPresence(PeripheralCriteria)}.
+ */
+public final class PresenceEvent {
+    public enum Type {
+        /**
+         * The peripheral has been seen with a smoothed signal
+         * strength of at least {@link PeripheralCriteria#enterRssi}.
+         */
+        ENTERED,
+
+        /**
+         * The peripheral's smoothed signal strength has fallen below
+         * {@link PeripheralCriteria#exitRssi}, or it has not been seen
+         * within {@link PeripheralCriteria#exitTimeout}.
+         */
+        EXITED,
+    }
+
+    /**
+     * The kind of change.
+     */
+    public final @NonNull Type type;
+
+    /**
+     * The most recently scanned instance of the peripheral.
+     */
+    public final @NonNull GattPeripheral peripheral;
+
+    /**
+     * The signal strength of the peripheral, smoothed across scan windows.
+     */
+    public final float smoothedRssi;
+
+    /**
+     * When the peripheral was last seen, in the {@code SystemClock#elapsedRealtime()} time base.
+     */
+    public final long lastSeen;
+
+    public PresenceEvent(@NonNull Type type,
+                         @NonNull GattPeripheral peripheral,
+                         float smoothedRssi,
+                         long lastSeen) {
+        this.type = type;
+        this.peripheral = peripheral;
+        this.smoothedRssi = smoothedRssi;
+        this.lastSeen = lastSeen;
+    }
+
+    @Override
+    public String toString() {
+        return "PresenceEvent{" +
+                "type=" + type +
+                ", peripheral=" + peripheral +
+                ", smoothedRssi=" + smoothedRssi +
+                ", lastSeen=" + lastSeen +
+                '}';
+    }
+}
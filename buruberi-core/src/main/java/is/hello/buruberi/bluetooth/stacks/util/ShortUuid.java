@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * A 16-bit UUID assigned by the Bluetooth SIG, shorthand for a full
+ * UUID derived from the Bluetooth base UUID. Short UUIDs compare as
+ * plain integers, and are intended to be allocated once as constants.
+ *
+ * @see AdvertisingData#advertisesService(ShortUuid)
+ */
+public final class ShortUuid {
+    /**
+     * The most significant bits of the Bluetooth base UUID
+     * {@code 00000000-0000-1000-8000-00805F9B34FB}.
+     */
+    /*package*/ static final long BASE_UUID_MOST_SIGNIFICANT_BITS = 0x0000000000001000L;
+
+    /**
+     * The least significant bits of the Bluetooth base UUID.
+     */
+    /*package*/ static final long BASE_UUID_LEAST_SIGNIFICANT_BITS = 0x800000805F9B34FBL;
+
+    /**
+     * The 16-bit value of the UUID.
+     */
+    public final int value;
+
+    /**
+     * @throws IllegalArgumentException if {@code value} does not fit in 16 bits.
+     */
+    public ShortUuid(int value) {
+        if ((value & ~0xFFFF) != 0) {
+            throw new IllegalArgumentException("Short UUID " + value + " does not fit in 16 bits");
+        }
+
+        this.value = value;
+    }
+
+    /**
+     * Returns the short form of a full UUID, or {@code null} if it
+     * is not derived from the Bluetooth base UUID with a 16-bit value.
+     */
+    public static @Nullable ShortUuid fromUuid(@NonNull UUID uuid) {
+        final long value = baseValueOf(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        if (value < 0 || value > 0xFFFF) {
+            return null;
+        }
+
+        return new ShortUuid((int) value);
+    }
+
+    /**
+     * Returns the 32-bit value a UUID in a given bit representation was derived
+     * from the Bluetooth base UUID with, or {@code -1} if it was not derived from it.
+     */
+    /*package*/ static long baseValueOf(long mostSignificantBits, long leastSignificantBits) {
+        if (leastSignificantBits != BASE_UUID_LEAST_SIGNIFICANT_BITS ||
+                (mostSignificantBits & 0xFFFFFFFFL) != BASE_UUID_MOST_SIGNIFICANT_BITS) {
+            return -1;
+        }
+
+        return (mostSignificantBits >>> 32);
+    }
+
+    /**
+     * Returns a full UUID representing a 16 or 32-bit value from the Bluetooth base UUID.
+     */
+    /*package*/ static @NonNull UUID toUuid(long value) {
+        return new UUID((value << 32) | BASE_UUID_MOST_SIGNIFICANT_BITS,
+                        BASE_UUID_LEAST_SIGNIFICANT_BITS);
+    }
+
+    /**
+     * Returns the full UUID the short UUID represents.
+     */
+    public @NonNull UUID toUuid() {
+        return toUuid(value);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final ShortUuid that = (ShortUuid) o;
+        return (value == that.value);
+    }
+
+    @Override
+    public int hashCode() {
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.US, "%04X", value);
+    }
+}
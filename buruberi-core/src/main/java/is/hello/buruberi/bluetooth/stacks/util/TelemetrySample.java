@@ -0,0 +1,86 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * A single reading decoded from the advertising data of a peripheral.
+ *
+ * @see AdvertisingDecoderRegistry
+ */
+public final class TelemetrySample {
+    /**
+     * The address of the peripheral the sample was broadcast by.
+     */
+    public final @NonNull String address;
+
+    /**
+     * The decoder the sample was decoded with.
+     */
+    public final @NonNull AdvertisingDecoder<?> decoder;
+
+    /**
+     * The decoded sample.
+     */
+    public final @NonNull Object value;
+
+    /**
+     * The signal strength of the advertisement the sample was decoded from.
+     */
+    public final int rssi;
+
+    /**
+     * When the sample was received, in the {@code SystemClock#elapsedRealtime()} time base.
+     */
+    public final long timestamp;
+
+    public TelemetrySample(@NonNull String address,
+                           @NonNull AdvertisingDecoder<?> decoder,
+                           @NonNull Object value,
+                           int rssi,
+                           long timestamp) {
+        this.address = address;
+        this.decoder = decoder;
+        this.value = value;
+        this.rssi = rssi;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * Returns the value of the sample if it was decoded
+     * with a given decoder, or {@code null} otherwise.
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable <T> T getValue(@NonNull AdvertisingDecoder<T> decoder) {
+        if (this.decoder == decoder) {
+            return (T) value;
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TelemetrySample{" +
+                "address='" + address + '\'' +
+                ", value=" + value +
+                ", rssi=" + rssi +
+                ", timestamp=" + timestamp +
+                '}';
+    }
+}
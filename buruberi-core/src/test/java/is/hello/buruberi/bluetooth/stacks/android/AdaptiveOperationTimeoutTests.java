@@ -0,0 +1,123 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.util.Defaults;
+import is.hello.buruberi.util.Operation;
+import is.hello.buruberi.util.Rx;
+import rx.functions.Action0;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class AdaptiveOperationTimeoutTests extends BuruberiTestCase {
+    private static final String ADDRESS = "AA:BB:CC:DD:EE:FF";
+
+    private AdaptiveOperationTimeout createTimeout(LatencyHistory history, Action0 action) {
+        final AdaptiveOperationTimeout timeout = new AdaptiveOperationTimeout(ADDRESS,
+                                                                              Operation.READ,
+                                                                              history,
+                                                                              30,
+                                                                              TimeUnit.SECONDS,
+                                                                              Defaults.createLogcatFacade());
+        timeout.setTimeoutAction(action, Rx.mainThreadScheduler());
+        return timeout;
+    }
+
+    @Test
+    public void learnsFromLatencies() {
+        final AtomicBoolean called = new AtomicBoolean(false);
+        final AdaptiveOperationTimeout timeout = createTimeout(new LatencyHistory(), new Action0() {
+            @Override
+            public void call() {
+                called.set(true);
+            }
+        });
+
+        for (int i = 0; i < LatencyHistory.MINIMUM_SAMPLES; i++) {
+            timeout.schedule();
+            assertThat(timeout.getDurationMs(), is(equalTo(TimeUnit.SECONDS.toMillis(30))));
+
+            ShadowLooper.idleMainLooper(80);
+            timeout.unschedule();
+            timeout.recordSuccess();
+        }
+
+        timeout.schedule();
+        assertThat(timeout.getDurationMs(), is(equalTo(AdaptiveOperationTimeout.MINIMUM_DURATION_MS)));
+
+        ShadowLooper.idleMainLooper(AdaptiveOperationTimeout.MINIMUM_DURATION_MS);
+        assertThat(called.get(), is(true));
+    }
+
+    @Test
+    public void failuresDoNotShrinkDeadline() {
+        final LatencyHistory history = new LatencyHistory();
+        for (int i = 0; i < LatencyHistory.MINIMUM_SAMPLES; i++) {
+            history.record(ADDRESS, Operation.READ, 1000);
+        }
+
+        final AdaptiveOperationTimeout timeout = createTimeout(history, new Action0() {
+            @Override
+            public void call() {
+            }
+        });
+        for (int i = 0; i < LatencyHistory.SAMPLE_COUNT; i++) {
+            timeout.schedule();
+            assertThat(timeout.getDurationMs(), is(equalTo(2000L)));
+
+            ShadowLooper.idleMainLooper(10);
+            timeout.unschedule();
+        }
+
+        assertThat(history.getDeadline(ADDRESS, Operation.READ), is(equalTo(2000L)));
+    }
+
+    @Test
+    public void expirationsDoNotExtendDeadline() {
+        final LatencyHistory history = new LatencyHistory();
+        for (int i = 0; i < LatencyHistory.MINIMUM_SAMPLES; i++) {
+            history.record(ADDRESS, Operation.READ, 1000);
+        }
+        assertThat(history.getDeadline(ADDRESS, Operation.READ), is(equalTo(2000L)));
+        assertThat(history.getDeadline(ADDRESS, Operation.WRITE_COMMAND), is(equalTo(-1L)));
+
+        final AtomicInteger expirations = new AtomicInteger(0);
+        final AdaptiveOperationTimeout timeout = createTimeout(history, new Action0() {
+            @Override
+            public void call() {
+                expirations.incrementAndGet();
+            }
+        });
+        for (int i = 0; i < LatencyHistory.SAMPLE_COUNT; i++) {
+            timeout.schedule();
+            assertThat(timeout.getDurationMs(), is(equalTo(2000L)));
+            ShadowLooper.idleMainLooper(2000);
+        }
+
+        assertThat(expirations.get(), is(equalTo(LatencyHistory.SAMPLE_COUNT)));
+        assertThat(history.getDeadline(ADDRESS, Operation.READ), is(equalTo(2000L)));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.bluetooth.BluetoothDevice;
+
+import org.junit.Test;
+
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.testing.Testing;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class DeviceMetadataCacheTests extends BuruberiTestCase {
+    @Test
+    public void snapshotsLazily() {
+        final DeviceMetadataCache cache = new DeviceMetadataCache();
+        final BluetoothDevice device = spy(Testing.createMockDevice());
+
+        final DeviceMetadataCache.Entry entry = cache.get(device);
+        verify(device, never()).getName();
+        verify(device, never()).getBondState();
+        verify(device, never()).getType();
+
+        final String name = entry.getName();
+        assertThat(entry.getName(), is(equalTo(name)));
+        verify(device, times(1)).getName();
+        verify(device, never()).getBondState();
+
+        cache.onNameChanged(Testing.DEVICE_ADDRESS, "Sense");
+        assertThat(entry.getName(), is(equalTo("Sense")));
+        verify(device, times(1)).getName();
+    }
+
+    @Test
+    public void heldEntriesOutliveEviction() {
+        final DeviceMetadataCache cache = new DeviceMetadataCache();
+        final DeviceMetadataCache.Entry held = cache.get(Testing.createMockDevice());
+
+        for (int i = 0; i < DeviceMetadataCache.CACHE_SIZE; i++) {
+            cache.get(Testing.createMockDevice(String.format("00:00:00:00:%02X:%02X", i / 256, i % 256)));
+        }
+
+        cache.onBondStateChanged(Testing.DEVICE_ADDRESS, BluetoothDevice.BOND_BONDED);
+        assertThat(held.getBondState(), is(equalTo(BluetoothDevice.BOND_BONDED)));
+        assertThat(cache.get(Testing.createMockDevice()), is(sameInstance(held)));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import org.junit.Test;
+
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.testing.Testing;
+import is.hello.buruberi.util.Defaults;
+import rx.Subscription;
+import rx.subjects.PublishSubject;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+public class GattArbiterTests extends BuruberiTestCase {
+    @Test
+    public void unlimitedByDefault() {
+        final GattArbiter arbiter = new GattArbiter(Defaults.createLogcatFacade());
+        final PublishSubject<Integer> first = PublishSubject.create();
+        final PublishSubject<Integer> second = PublishSubject.create();
+
+        arbiter.arbitrate(first).subscribe(new Testing.Result<Integer>());
+        arbiter.arbitrate(second).subscribe(new Testing.Result<Integer>());
+
+        assertThat(first.hasObservers(), is(true));
+        assertThat(second.hasObservers(), is(true));
+    }
+
+    @Test
+    public void defersOperationsOverLimit() {
+        final GattArbiter arbiter = new GattArbiter(Defaults.createLogcatFacade());
+        arbiter.setLimit(1);
+
+        final PublishSubject<Integer> first = PublishSubject.create();
+        final PublishSubject<Integer> second = PublishSubject.create();
+        final PublishSubject<Integer> third = PublishSubject.create();
+
+        final Testing.Result<Integer> firstResult = new Testing.Result<>();
+        arbiter.arbitrate(first).subscribe(firstResult);
+        arbiter.arbitrate(second).subscribe(new Testing.Result<Integer>());
+        arbiter.arbitrate(third).subscribe(new Testing.Result<Integer>());
+
+        assertThat(first.hasObservers(), is(true));
+        assertThat(second.hasObservers(), is(false));
+        assertThat(third.hasObservers(), is(false));
+
+        first.onNext(42);
+        first.onCompleted();
+        assertThat(firstResult.getValues().size(), is(equalTo(1)));
+        assertThat(firstResult.isCompleted(), is(true));
+        assertThat(second.hasObservers(), is(true));
+        assertThat(third.hasObservers(), is(false));
+
+        second.onError(new IllegalStateException());
+        assertThat(third.hasObservers(), is(true));
+        assertThat(arbiter.inFlight, is(equalTo(1)));
+    }
+
+    @Test
+    public void unsubscribeReleases() {
+        final GattArbiter arbiter = new GattArbiter(Defaults.createLogcatFacade());
+        arbiter.setLimit(1);
+
+        final PublishSubject<Integer> first = PublishSubject.create();
+        final PublishSubject<Integer> second = PublishSubject.create();
+        final PublishSubject<Integer> third = PublishSubject.create();
+
+        final Subscription firstSubscription = arbiter.arbitrate(first).subscribe(new Testing.Result<Integer>());
+        final Subscription secondSubscription = arbiter.arbitrate(second).subscribe(new Testing.Result<Integer>());
+        arbiter.arbitrate(third).subscribe(new Testing.Result<Integer>());
+
+        secondSubscription.unsubscribe();
+        firstSubscription.unsubscribe();
+        assertThat(second.hasObservers(), is(false));
+        assertThat(third.hasObservers(), is(true));
+        assertThat(arbiter.inFlight, is(equalTo(1)));
+        assertThat(arbiter.waiting.isEmpty(), is(true));
+    }
+
+    @Test
+    public void raisingLimitStartsWaiting() {
+        final GattArbiter arbiter = new GattArbiter(Defaults.createLogcatFacade());
+        arbiter.setLimit(1);
+
+        final PublishSubject<Integer> first = PublishSubject.create();
+        final PublishSubject<Integer> second = PublishSubject.create();
+        arbiter.arbitrate(first).subscribe(new Testing.Result<Integer>());
+        arbiter.arbitrate(second).subscribe(new Testing.Result<Integer>());
+        assertThat(second.hasObservers(), is(false));
+
+        arbiter.setLimit(0);
+        assertThat(second.hasObservers(), is(true));
+    }
+}
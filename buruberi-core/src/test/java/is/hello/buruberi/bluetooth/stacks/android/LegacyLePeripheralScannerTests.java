@@ -17,15 +17,23 @@ package is.hello.buruberi.bluetooth.stacks.android;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
 import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.Bytes;
 import is.hello.buruberi.bluetooth.stacks.util.ErrorListener;
+import is.hello.buruberi.bluetooth.stacks.util.IdentityResolver;
 import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
 import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
 import is.hello.buruberi.testing.BuruberiTestCase;
@@ -36,12 +44,14 @@ import is.hello.buruberi.util.Defaults;
 import rx.Subscriber;
 import rx.observers.Subscribers;
 
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.empty;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.not;
 import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.Matchers.sameInstance;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.fail;
@@ -91,6 +101,19 @@ public class LegacyLePeripheralScannerTests extends BuruberiTestCase {
         assertThat(shadowAdapter.getLeScanCallbacks(), not(hasItem(scanner)));
     }
 
+    @Test
+    public void unsubscribingStopsScan() {
+        final ShadowBluetoothAdapterExt shadowAdapter = getShadowBluetoothAdapter();
+        final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, new PeripheralCriteria());
+
+        final Subscriber<List<GattPeripheral>> subscriber = Subscribers.empty();
+        scanner.call(subscriber);
+        assertThat(shadowAdapter.getLeScanCallbacks(), hasItem(scanner));
+
+        subscriber.unsubscribe();
+        assertThat(shadowAdapter.getLeScanCallbacks(), not(hasItem(scanner)));
+    }
+
     @Test
     public void filtersByAdvertisingData() {
         final String serviceIdentifier = "23D1BCEA5F782315DEEF1212E1FE0000";
@@ -162,6 +185,278 @@ public class LegacyLePeripheralScannerTests extends BuruberiTestCase {
         assertThat(shadowAdapter.getLeScanCallbacks(), not(hasItem(scanner)));
     }
 
+    @Test
+    public void retainsStrongestResults() {
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setMaximumResults(2);
+        final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, criteria);
+
+        final AtomicReference<List<GattPeripheral>> results = new AtomicReference<>();
+        scanner.call(new Subscriber<List<GattPeripheral>>() {
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                fail(e.getMessage());
+            }
+
+            @Override
+            public void onNext(List<GattPeripheral> gattPeripherals) {
+                results.set(gattPeripherals);
+            }
+        });
+
+        scanner.onLeScan(Testing.createMockDevice("00:00:00:00:00:01"), -80, Testing.EMPTY_SCAN_RESPONSE);
+        scanner.onLeScan(Testing.createMockDevice("00:00:00:00:00:02"), Testing.RSSI_DECENT, Testing.EMPTY_SCAN_RESPONSE);
+        scanner.onLeScan(Testing.createMockDevice("00:00:00:00:00:03"), Testing.RSSI_BETTER, Testing.EMPTY_SCAN_RESPONSE);
+        scanner.onLeScan(Testing.createMockDevice("00:00:00:00:00:04"), -90, Testing.EMPTY_SCAN_RESPONSE);
+
+        assertThat(scanner.results.keySet(), containsInAnyOrder("00:00:00:00:00:02", "00:00:00:00:00:03"));
+
+        scanner.onConcludeScan();
+
+        final List<GattPeripheral> peripherals = results.get();
+        assertThat(peripherals, is(notNullValue()));
+        assertThat(peripherals.size(), is(equalTo(2)));
+        assertThat(peripherals.get(0).getAddress(), is(equalTo("00:00:00:00:00:03")));
+        assertThat(peripherals.get(1).getAddress(), is(equalTo("00:00:00:00:00:02")));
+    }
+
+    @Test
+    public void evictsStaleResults() {
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setEvictionTimeout(1000);
+        final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, criteria);
+
+        scanner.call(Subscribers.empty());
+
+        scanner.onLeScan(Testing.createMockDevice("00:00:00:00:00:01"), Testing.RSSI_DECENT, Testing.EMPTY_SCAN_RESPONSE);
+        SystemClock.sleep(1500);
+        scanner.onLeScan(Testing.createMockDevice("00:00:00:00:00:02"), Testing.RSSI_DECENT, Testing.EMPTY_SCAN_RESPONSE);
+
+        assertThat(scanner.results.keySet(), not(hasItem("00:00:00:00:00:01")));
+        assertThat(scanner.results.keySet(), hasItem("00:00:00:00:00:02"));
+
+        scanner.onConcludeScan();
+    }
+
+    @Test
+    public void reportsAdvertisementChanges() throws Exception {
+        for (final boolean parallel : new boolean[] { false, true }) {
+            final List<AdvertisingData> changes = new ArrayList<>();
+            final PeripheralCriteria criteria = new PeripheralCriteria();
+            criteria.setWantsParallelProcessing(parallel);
+            final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, criteria, criteria.limit,
+                    new LePeripheralScanner.ChangeListener() {
+                        @Override
+                        public void onAdvertisementChanged(@NonNull BluetoothDevice device,
+                                                           @NonNull AdvertisingData advertisingData,
+                                                           int rssi) {
+                            changes.add(advertisingData);
+                        }
+                    });
+
+            scanner.call(Subscribers.empty());
+
+            final byte[] reading1 = new AdvertisingDataBuilder()
+                    .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0301")
+                    .buildRaw();
+            final byte[] reading2 = new AdvertisingDataBuilder()
+                    .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0302")
+                    .buildRaw();
+            final BluetoothDevice device = Testing.createMockDevice();
+            scanner.onLeScan(device, Testing.RSSI_DECENT, reading1);
+            scanner.onLeScan(device, Testing.RSSI_BETTER, reading1);
+            scanner.onLeScan(device, Testing.RSSI_DECENT, reading2);
+            scanner.onLeScan(device, Testing.RSSI_DECENT, reading2);
+            if (scanner.pipeline != null) {
+                scanner.pipeline.awaitIdle();
+            }
+
+            assertThat(changes, is(equalTo(Arrays.asList(AdvertisingData.parse(reading1),
+                                                         AdvertisingData.parse(reading2)))));
+
+            scanner.onConcludeScan();
+        }
+    }
+
+    @Test
+    public void processesInParallel() throws Exception {
+        final String serviceIdentifier = "23D1BCEA5F782315DEEF1212E1FE0000";
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.addExactMatchPredicate(AdvertisingData.TYPE_SERVICE_DATA_128_BIT_UUID,
+                                        serviceIdentifier);
+        criteria.setWantsParallelProcessing(true);
+        final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, criteria);
+
+        scanner.call(Subscribers.empty());
+        assertThat(scanner.pipeline, is(notNullValue()));
+
+        final byte[] matchingData = new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_SERVICE_DATA_128_BIT_UUID, serviceIdentifier)
+                .buildRaw();
+        final BluetoothDevice device = Testing.createMockDevice();
+        scanner.onLeScan(device, Testing.RSSI_DECENT, matchingData);
+        scanner.onLeScan(device, Testing.RSSI_BETTER, matchingData);
+        scanner.onLeScan(Testing.createMockDevice("BA:BE:CA:FE:BE:EF"),
+                         Testing.RSSI_BETTER, Testing.EMPTY_SCAN_RESPONSE);
+
+        //noinspection ConstantConditions
+        scanner.pipeline.awaitIdle();
+
+        assertThat(scanner.results.keySet(), hasItem(Testing.DEVICE_ADDRESS));
+        assertThat(scanner.results.keySet(), not(hasItem("BA:BE:CA:FE:BE:EF")));
+        //noinspection ConstantConditions
+        assertThat(scanner.results.get(Testing.DEVICE_ADDRESS).rssi, is(equalTo(Testing.RSSI_BETTER)));
+
+        scanner.onConcludeScan();
+        assertThat(scanner.pipeline, is(nullValue()));
+    }
+
+    @Test
+    public void pipelineIgnoresSubmissionsAfterShutdown() throws Exception {
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setWantsParallelProcessing(true);
+        final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, criteria);
+
+        scanner.call(Subscribers.empty());
+        final ScanPipeline pipeline = scanner.pipeline;
+        assertThat(pipeline, is(notNullValue()));
+
+        scanner.onConcludeScan();
+        assertThat(scanner.pipeline, is(nullValue()));
+
+        //noinspection ConstantConditions
+        pipeline.submit(Testing.createMockDevice(), Testing.RSSI_DECENT,
+                        Testing.EMPTY_SCAN_RESPONSE, SystemClock.elapsedRealtime());
+        scanner.onLeScan(Testing.createMockDevice(), Testing.RSSI_DECENT, Testing.EMPTY_SCAN_RESPONSE);
+        assertThat(scanner.results.keySet(), is(empty()));
+    }
+
+    @Test
+    public void concludesAfterQuietPeriod() {
+        final ShadowBluetoothAdapterExt shadowAdapter = getShadowBluetoothAdapter();
+        final NativeBluetoothStack stack = new NativeBluetoothStack(getContext(),
+                                                                    errorListener,
+                                                                    loggerFacade);
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setQuietPeriod(1000);
+        criteria.setMinimumDuration(2000);
+        final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, criteria);
+
+        scanner.call(Subscribers.empty());
+        scanner.onLeScan(Testing.createMockDevice("00:00:00:00:00:01"), Testing.RSSI_DECENT, Testing.EMPTY_SCAN_RESPONSE);
+
+        ShadowLooper.idleMainLooper(1500);
+        assertThat(shadowAdapter.getLeScanCallbacks(), hasItem(scanner));
+
+        scanner.onLeScan(Testing.createMockDevice("00:00:00:00:00:02"), Testing.RSSI_DECENT, Testing.EMPTY_SCAN_RESPONSE);
+
+        ShadowLooper.idleMainLooper(900);
+        assertThat(shadowAdapter.getLeScanCallbacks(), hasItem(scanner));
+
+        ShadowLooper.idleMainLooper(200);
+        assertThat(shadowAdapter.getLeScanCallbacks(), not(hasItem(scanner)));
+    }
+
+    @Test
+    public void coalescesRotatingAddresses() {
+        final IdentityResolver identityResolver = new IdentityResolver();
+        identityResolver.addIdentityResolvingKey(Testing.DEVICE_ADDRESS,
+                                                 Bytes.fromString("EC0234A357C8AD05341010A60A397D9B"));
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setIdentityResolver(identityResolver);
+        final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, criteria);
+
+        scanner.call(Subscribers.empty());
+
+        final BluetoothDevice device = Testing.createMockDevice("70:81:94:0D:FB:AA");
+        scanner.onLeScan(device, Testing.RSSI_DECENT, Testing.EMPTY_SCAN_RESPONSE);
+        assertThat(scanner.results.keySet(), hasItem(Testing.DEVICE_ADDRESS));
+
+        final BluetoothDevice stranger = Testing.createMockDevice("70:81:94:0D:FB:AB");
+        scanner.onLeScan(stranger, Testing.RSSI_BETTER, Testing.EMPTY_SCAN_RESPONSE);
+        assertThat(scanner.results.size(), is(equalTo(2)));
+
+        scanner.onConcludeScan();
+    }
+
+    @Test
+    public void rotatedAddressesMustStillMatchCriteria() {
+        final IdentityResolver identityResolver = new IdentityResolver();
+        identityResolver.setFingerprintRecordTypes(AdvertisingData.TYPE_LOCAL_NAME);
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.addPeripheralAddress("70:81:94:0D:FB:01");
+        criteria.setIdentityResolver(identityResolver);
+        final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, criteria);
+
+        scanner.call(Subscribers.empty());
+
+        final byte[] scanResponse = new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_LOCAL_NAME, "53656E7365")
+                .buildRaw();
+        final BluetoothDevice device = Testing.createMockDevice("70:81:94:0D:FB:01");
+        scanner.onLeScan(device, Testing.RSSI_DECENT, scanResponse);
+        assertThat(scanner.results.size(), is(equalTo(1)));
+        final String identity = scanner.results.keySet().iterator().next();
+
+        final BluetoothDevice impostor = Testing.createMockDevice("70:81:94:0D:FB:02");
+        scanner.onLeScan(impostor, Testing.RSSI_BETTER, scanResponse);
+        assertThat(scanner.results.size(), is(equalTo(1)));
+        //noinspection ConstantConditions
+        assertThat(scanner.results.get(identity).device, is(sameInstance(device)));
+
+        scanner.onConcludeScan();
+    }
+
+    @Test
+    public void gatesAdvertisements() {
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setMinimumRssi(Testing.RSSI_DECENT);
+        criteria.setProcessingInterval(1000);
+        final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, criteria);
+
+        scanner.call(Subscribers.empty());
+
+        scanner.onLeScan(Testing.createMockDevice("00:00:00:00:00:01"), -90, Testing.EMPTY_SCAN_RESPONSE);
+        assertThat(scanner.results.keySet(), not(hasItem("00:00:00:00:00:01")));
+
+        final BluetoothDevice device = Testing.createMockDevice();
+        scanner.onLeScan(device, Testing.RSSI_DECENT, Testing.EMPTY_SCAN_RESPONSE);
+        scanner.onLeScan(device, Testing.RSSI_BETTER, Testing.EMPTY_SCAN_RESPONSE);
+        //noinspection ConstantConditions
+        assertThat(scanner.results.get(Testing.DEVICE_ADDRESS).rssi, is(equalTo(Testing.RSSI_DECENT)));
+
+        SystemClock.sleep(1000);
+        scanner.onLeScan(device, Testing.RSSI_BETTER, Testing.EMPTY_SCAN_RESPONSE);
+        //noinspection ConstantConditions
+        assertThat(scanner.results.get(Testing.DEVICE_ADDRESS).rssi, is(equalTo(Testing.RSSI_BETTER)));
+
+        scanner.onConcludeScan();
+    }
+
+    @Test
+    public void gatesOnlyFirstSightingsBySignalStrength() {
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setMinimumRssi(Testing.RSSI_DECENT);
+        final LegacyLePeripheralScanner scanner = new LegacyLePeripheralScanner(stack, criteria);
+
+        scanner.call(Subscribers.empty());
+
+        final BluetoothDevice device = Testing.createMockDevice();
+        scanner.onLeScan(device, -90, Testing.EMPTY_SCAN_RESPONSE);
+        assertThat(scanner.results.keySet(), not(hasItem(Testing.DEVICE_ADDRESS)));
+
+        scanner.onLeScan(device, Testing.RSSI_DECENT, Testing.EMPTY_SCAN_RESPONSE);
+        scanner.onLeScan(device, -90, Testing.EMPTY_SCAN_RESPONSE);
+        //noinspection ConstantConditions
+        assertThat(scanner.results.get(Testing.DEVICE_ADDRESS).rssi, is(equalTo(-90)));
+
+        scanner.onConcludeScan();
+    }
+
     @Test
     public void suppressesResultsWhenAdapterOff() {
         final ShadowBluetoothAdapterExt shadowAdapter = getShadowBluetoothAdapter();
@@ -111,6 +111,20 @@ public class LollipopLePeripheralScannerTests extends BuruberiTestCase {
         assertThat(shadowScanner.getScanCallbacks(), not(hasItem(scanner)));
     }
 
+    @Test
+    public void unsubscribingStopsScan() {
+        final ShadowBluetoothAdapterExt shadowAdapter = getShadowBluetoothAdapter();
+        final ShadowBluetoothLeScanner shadowScanner = BuruberiShadows.shadowOf(shadowAdapter.getBluetoothLeScanner());
+        final LollipopLePeripheralScanner scanner = new LollipopLePeripheralScanner(stack, new PeripheralCriteria());
+
+        final Subscriber<List<GattPeripheral>> subscriber = Subscribers.empty();
+        scanner.call(subscriber);
+        assertThat(shadowScanner.getScanCallbacks(), hasItem(scanner));
+
+        subscriber.unsubscribe();
+        assertThat(shadowScanner.getScanCallbacks(), not(hasItem(scanner)));
+    }
+
     @Test
     public void filtersByAdvertisingData() {
         final String serviceIdentifier = "23D1BCEA5F782315DEEF1212E1FE0000";
@@ -21,22 +21,31 @@ import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Build;
 import android.os.Parcelable;
+import android.os.SystemClock;
 
 import org.junit.Test;
 import org.robolectric.annotation.Config;
 import org.robolectric.shadows.ShadowBluetoothAdapter;
 
+import java.util.Collections;
+import java.util.List;
+
 import is.hello.buruberi.bluetooth.errors.ChangePowerStateException;
+import is.hello.buruberi.bluetooth.errors.PeripheralNotFoundException;
+import is.hello.buruberi.bluetooth.errors.UserDisabledBuruberiException;
 import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
 import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
 import is.hello.buruberi.bluetooth.stacks.util.ErrorListener;
 import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
 import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
 import is.hello.buruberi.testing.BuruberiTestCase;
 import is.hello.buruberi.testing.Sync;
+import is.hello.buruberi.testing.Testing;
 import is.hello.buruberi.util.AdvertisingDataBuilder;
 import is.hello.buruberi.util.Defaults;
 import rx.Observable;
+import rx.Subscriber;
 
 import static is.hello.buruberi.bluetooth.stacks.util.AdvertisingData.TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS;
 import static is.hello.buruberi.testing.Testing.DEVICE_ADDRESS;
@@ -47,7 +56,11 @@ import static org.hamcrest.Matchers.is;
 import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.Matchers.nullValue;
 import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
 
 public class NativeBluetoothStackTests extends BuruberiTestCase {
     private final ErrorListener errorListener = Defaults.createEmptyErrorListener();
@@ -75,6 +88,110 @@ public class NativeBluetoothStackTests extends BuruberiTestCase {
         assertThat(scanner, is(instanceOf(LollipopLePeripheralScanner.class)));
     }
 
+    @Test
+    public void scanAndConnectUserDisabled() {
+        getShadowBluetoothAdapter().setEnabled(false);
+        final NativeBluetoothStack stack = new NativeBluetoothStack(getContext(),
+                                                                    errorListener,
+                                                                    loggerFacade);
+        Sync.wrap(stack.scanAndConnect(new PeripheralCriteria(),
+                                       GattPeripheral.CONNECT_FLAG_DEFAULTS,
+                                       mock(OperationTimeout.class)))
+            .assertThrows(UserDisabledBuruberiException.class);
+    }
+
+    @Test
+    public void scanAndConnectNotFound() {
+        getShadowBluetoothAdapter().setEnabled(true);
+        final NativeBluetoothStack stack = spy(new NativeBluetoothStack(getContext(),
+                                                                        errorListener,
+                                                                        loggerFacade));
+        doReturn(Testing.getNoOpScheduler()).when(stack).getScheduler();
+        doReturn(new LePeripheralScanner() {
+            @Override
+            public void call(Subscriber<? super List<GattPeripheral>> subscriber) {
+                subscriber.onNext(Collections.<GattPeripheral>emptyList());
+                subscriber.onCompleted();
+            }
+        }).when(stack).createLeScanner(any(PeripheralCriteria.class), eq(1));
+
+        Sync.wrap(stack.scanAndConnect(new PeripheralCriteria(),
+                                       GattPeripheral.CONNECT_FLAG_DEFAULTS,
+                                       mock(OperationTimeout.class)))
+            .assertThrows(PeripheralNotFoundException.class);
+    }
+
+    @Test
+    public void discoverPeripheralsReportsRecentResults() {
+        getShadowBluetoothAdapter().setEnabled(true);
+        final NativeBluetoothStack stack = spy(new NativeBluetoothStack(getContext(),
+                                                                        errorListener,
+                                                                        loggerFacade));
+        doReturn(Testing.getNoOpScheduler()).when(stack).getScheduler();
+
+        final AdvertisingData advertisingData = new AdvertisingDataBuilder()
+                .add(TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS, "E1FE")
+                .build();
+        final GattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                   createMockDevice(DEVICE_ADDRESS),
+                                                                   Testing.RSSI_DECENT,
+                                                                   advertisingData);
+        doReturn(new LePeripheralScanner() {
+            @Override
+            public void call(Subscriber<? super List<GattPeripheral>> subscriber) {
+                subscriber.onNext(Collections.singletonList(peripheral));
+                subscriber.onCompleted();
+            }
+        }).when(stack).createLeScanner(any(PeripheralCriteria.class), eq(Integer.MAX_VALUE));
+
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.addExactMatchPredicate(TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS, "E1FE");
+        assertThat(Sync.last(stack.discoverPeripherals(criteria).toList()).size(),
+                   is(equalTo(1)));
+
+        criteria.setCacheTtl(60 * 1000);
+        final List<List<GattPeripheral>> emissions =
+                Sync.last(stack.discoverPeripherals(criteria).toList());
+        assertThat(emissions.size(), is(equalTo(2)));
+        assertThat(emissions.get(0).get(0).getAddress(), is(equalTo(DEVICE_ADDRESS)));
+        assertThat(emissions.get(0).get(0).getScanTimeRssi(), is(equalTo(Testing.RSSI_DECENT)));
+
+        final PeripheralCriteria otherCriteria = new PeripheralCriteria();
+        otherCriteria.addExactMatchPredicate(TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS, "FFFF");
+        otherCriteria.setCacheTtl(60 * 1000);
+        assertThat(Sync.last(stack.discoverPeripherals(otherCriteria).toList()).size(),
+                   is(equalTo(1)));
+    }
+
+    @Test
+    public void discoverPeripheralsAgesRecentResultsBySighting() {
+        getShadowBluetoothAdapter().setEnabled(true);
+        final NativeBluetoothStack stack = spy(new NativeBluetoothStack(getContext(),
+                                                                        errorListener,
+                                                                        loggerFacade));
+        doReturn(Testing.getNoOpScheduler()).when(stack).getScheduler();
+
+        final NativeGattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                         createMockDevice(DEVICE_ADDRESS),
+                                                                         Testing.RSSI_DECENT,
+                                                                         AdvertisingData.parse(Testing.EMPTY_SCAN_RESPONSE));
+        peripheral.scanLastSeen = SystemClock.elapsedRealtime() - 2 * 60 * 1000;
+        doReturn(new LePeripheralScanner() {
+            @Override
+            public void call(Subscriber<? super List<GattPeripheral>> subscriber) {
+                subscriber.onNext(Collections.<GattPeripheral>singletonList(peripheral));
+                subscriber.onCompleted();
+            }
+        }).when(stack).createLeScanner(any(PeripheralCriteria.class), eq(Integer.MAX_VALUE));
+
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        Sync.last(stack.discoverPeripherals(criteria).toList());
+
+        criteria.setCacheTtl(60 * 1000);
+        assertThat(Sync.last(stack.discoverPeripherals(criteria).toList()).size(),
+                   is(equalTo(1)));
+    }
+
     @Test
     public void isEnabledNoAdapter() {
         getShadowBluetoothManager().setAdapter(null);
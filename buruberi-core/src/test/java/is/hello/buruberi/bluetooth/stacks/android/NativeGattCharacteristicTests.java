@@ -28,6 +28,7 @@ import org.hamcrest.Matchers;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
+import org.robolectric.shadows.ShadowLooper;
 
 import java.util.UUID;
 
@@ -36,6 +37,7 @@ import is.hello.buruberi.bluetooth.errors.LostConnectionException;
 import is.hello.buruberi.bluetooth.stacks.GattCharacteristic;
 import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
 import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
+import is.hello.buruberi.bluetooth.stacks.RetryPolicy;
 import is.hello.buruberi.bluetooth.stacks.util.ErrorListener;
 import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
 import is.hello.buruberi.testing.BuruberiShadows;
@@ -43,11 +45,14 @@ import is.hello.buruberi.testing.BuruberiTestCase;
 import is.hello.buruberi.testing.ShadowBluetoothGatt;
 import is.hello.buruberi.testing.Testing;
 import is.hello.buruberi.util.Defaults;
+import is.hello.buruberi.util.Rx;
 import rx.Observable;
 import rx.Scheduler;
 import rx.functions.Action0;
+import rx.schedulers.Schedulers;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
@@ -153,6 +158,74 @@ public class NativeGattCharacteristicTests extends BuruberiTestCase {
         verify(timeout).unschedule();
     }
 
+    @SuppressWarnings("ConstantConditions")
+    @Test
+    public void readRetriedByPolicy() {
+        doReturn(Rx.mainThreadScheduler()).when(stack).getScheduler();
+
+        final NativeGattPeripheral peripheral = createConnectedPeripheral();
+        peripheral.setRetryPolicy(RetryPolicy.forTransientErrors()
+                                             .setBackoff(0, 0));
+        final BluetoothGattService nativeService = Testing.createMockGattService();
+        final OperationTimeout timeout = Testing.createMockOperationTimeout();
+
+        final NativeGattService service = new NativeGattService(nativeService, peripheral);
+        final NativeGattCharacteristic characteristic =
+                service.getCharacteristic(Testing.WRITE_CHARACTERISTIC);
+
+        final Testing.Result<byte[]> result = new Testing.Result<>();
+        characteristic.read(timeout).subscribe(result);
+        ShadowLooper.idleMainLooper();
+
+        final BluetoothGatt gatt = peripheral.gatt;
+        final ShadowBluetoothGatt gattShadow = BuruberiShadows.shadowOf(gatt);
+        gattShadow.verifyCall(ShadowBluetoothGatt.Call.READ_CHAR,
+                              Matchers.any(BluetoothGattCharacteristic.class));
+        gattShadow.clearCalls();
+
+        gattShadow.getGattCallback().onCharacteristicRead(gatt,
+                                                          characteristic.wrappedCharacteristic,
+                                                          GattException.GATT_BUSY);
+        ShadowLooper.idleMainLooper();
+        assertThat(result.getError(), is(nullValue()));
+        gattShadow.verifyCall(ShadowBluetoothGatt.Call.READ_CHAR,
+                              Matchers.any(BluetoothGattCharacteristic.class));
+
+        characteristic.wrappedCharacteristic.setValue(new byte[]{0x0, 0x1});
+        gattShadow.getGattCallback().onCharacteristicRead(gatt,
+                                                          characteristic.wrappedCharacteristic,
+                                                          BluetoothGatt.GATT_SUCCESS);
+        assertThat(result.getValues().size(), is(equalTo(1)));
+        assertThat(result.isCompleted(), is(true));
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    @Test
+    public void readRetryBudgetExhausted() {
+        doReturn(Schedulers.immediate()).when(stack).getScheduler();
+
+        final NativeGattPeripheral peripheral = createConnectedPeripheral();
+        peripheral.setRetryPolicy(RetryPolicy.forTransientErrors()
+                                             .setBackoff(0, 0)
+                                             .setBudget(0, RetryPolicy.DEFAULT_BUDGET_WINDOW));
+        final BluetoothGattService nativeService = Testing.createMockGattService();
+        final OperationTimeout timeout = Testing.createMockOperationTimeout();
+
+        final NativeGattService service = new NativeGattService(nativeService, peripheral);
+        final NativeGattCharacteristic characteristic =
+                service.getCharacteristic(Testing.WRITE_CHARACTERISTIC);
+
+        final Testing.Result<byte[]> result = new Testing.Result<>();
+        characteristic.read(timeout).subscribe(result);
+
+        final BluetoothGatt gatt = peripheral.gatt;
+        final ShadowBluetoothGatt gattShadow = BuruberiShadows.shadowOf(gatt);
+        gattShadow.getGattCallback().onCharacteristicRead(gatt,
+                                                          characteristic.wrappedCharacteristic,
+                                                          GattException.GATT_BUSY);
+        assertThat(result.getError(), is(instanceOf(GattException.class)));
+    }
+
     @SuppressWarnings("ConstantConditions")
     @Test
     public void enableNotificationSuccess() {
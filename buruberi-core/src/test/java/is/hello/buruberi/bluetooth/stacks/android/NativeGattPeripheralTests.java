@@ -16,8 +16,10 @@
 package is.hello.buruberi.bluetooth.stacks.android;
 
 import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothProfile;
 import android.content.BroadcastReceiver;
@@ -30,6 +32,8 @@ import android.support.v4.content.LocalBroadcastManager;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.shadows.ShadowLooper;
 
 import java.util.Arrays;
 import java.util.Collections;
@@ -41,9 +45,11 @@ import java.util.UUID;
 import is.hello.buruberi.bluetooth.errors.BondException;
 import is.hello.buruberi.bluetooth.errors.ConnectionStateException;
 import is.hello.buruberi.bluetooth.errors.GattException;
+import is.hello.buruberi.bluetooth.errors.OperationTimeoutException;
 import is.hello.buruberi.bluetooth.errors.ServiceDiscoveryException;
 import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
 import is.hello.buruberi.bluetooth.stacks.GattService;
+import is.hello.buruberi.bluetooth.stacks.IdlePolicy;
 import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
 import is.hello.buruberi.bluetooth.stacks.android.NativeGattPeripheral.ConnectedOnSubscribe;
 import is.hello.buruberi.bluetooth.stacks.util.ErrorListener;
@@ -59,10 +65,13 @@ import rx.Scheduler;
 import rx.Subscriber;
 import rx.functions.Action0;
 
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
 import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.is;
 import static org.junit.Assert.assertThat;
@@ -142,6 +151,18 @@ public class NativeGattPeripheralTests extends BuruberiTestCase {
                    is(equalTo(BluetoothDeviceCompat.TRANSPORT_AUTO)));
     }
 
+    @Test
+    public void connectGattAppliesTransport() {
+        final BluetoothGatt gatt = BluetoothDeviceCompat.connectGatt(Testing.createMockDevice(),
+                                                                     getContext(),
+                                                                     false,
+                                                                     mock(BluetoothGattCallback.class),
+                                                                     BluetoothDeviceCompat.TRANSPORT_LE);
+        assertThat(gatt, is(notNullValue()));
+        assertThat(BuruberiShadows.shadowOf(gatt).getTransport(),
+                   is(equalTo(BluetoothDeviceCompat.TRANSPORT_LE)));
+    }
+
     @SuppressWarnings("ConstantConditions")
     @Test
     public void disconnectSideEffects() throws Exception {
@@ -369,6 +390,59 @@ public class NativeGattPeripheralTests extends BuruberiTestCase {
         assertThat(peripheral.getConnectionStatus(), is(equalTo(GattPeripheral.STATUS_DISCONNECTING)));
     }
 
+    @SuppressWarnings("ConstantConditions")
+    @Test
+    public void getConnectionStatusTracksCallbacks() {
+        final BluetoothDevice device = Testing.createMockDevice();
+        final NativeGattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                         device,
+                                                                         Testing.RSSI_DECENT,
+                                                                         Testing.EMPTY_ADVERTISING_DATA);
+        peripheral.connect(GattPeripheral.CONNECT_FLAG_DEFAULTS,
+                           Testing.createMockOperationTimeout())
+                  .subscribe(new Testing.Result<GattPeripheral>());
+        assertThat(peripheral.getConnectionStatus(), is(equalTo(GattPeripheral.STATUS_CONNECTING)));
+
+        final BluetoothGatt gatt = peripheral.gatt;
+        final ShadowBluetoothGatt shadowGatt = BuruberiShadows.shadowOf(gatt);
+        shadowGatt.getGattCallback().onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                                                             BluetoothGatt.STATE_CONNECTED);
+        assertThat(peripheral.getConnectionStatus(), is(equalTo(GattPeripheral.STATUS_CONNECTED)));
+
+        // The tracked status is used until explicitly reconciled.
+        getShadowBluetoothManager().setConnectionState(device, BluetoothProfile.STATE_DISCONNECTED);
+        assertThat(peripheral.getConnectionStatus(), is(equalTo(GattPeripheral.STATUS_CONNECTED)));
+        assertThat(peripheral.reconcileConnectionStatus(), is(equalTo(GattPeripheral.STATUS_DISCONNECTED)));
+        assertThat(peripheral.getConnectionStatus(), is(equalTo(GattPeripheral.STATUS_DISCONNECTED)));
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    @Test
+    public void reconcilesConnectionStatusWhenRadioTurnsOn() {
+        final BluetoothDevice device = Testing.createMockDevice();
+        final NativeGattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                         device,
+                                                                         Testing.RSSI_DECENT,
+                                                                         Testing.EMPTY_ADVERTISING_DATA);
+        peripheral.connect(GattPeripheral.CONNECT_FLAG_DEFAULTS,
+                           Testing.createMockOperationTimeout())
+                  .subscribe(new Testing.Result<GattPeripheral>());
+
+        final BluetoothGatt gatt = peripheral.gatt;
+        final ShadowBluetoothGatt shadowGatt = BuruberiShadows.shadowOf(gatt);
+        shadowGatt.getGattCallback().onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                                                             BluetoothGatt.STATE_CONNECTED);
+        assertThat(peripheral.getConnectionStatus(), is(equalTo(GattPeripheral.STATUS_CONNECTED)));
+
+        getShadowBluetoothManager().setConnectionState(device, BluetoothProfile.STATE_DISCONNECTED);
+        final Intent stateChange = new Intent(BluetoothAdapter.ACTION_STATE_CHANGED)
+                .putExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_ON);
+        getContext().sendBroadcast(stateChange);
+        ShadowLooper.idleMainLooper();
+
+        assertThat(peripheral.getConnectionStatus(), is(equalTo(GattPeripheral.STATUS_DISCONNECTED)));
+    }
+
     //endregion
 
 
@@ -502,6 +576,289 @@ public class NativeGattPeripheralTests extends BuruberiTestCase {
         assertThat(peripheral.getBondStatus(), is(equalTo(GattPeripheral.BOND_BONDED)));
     }
 
+    @SuppressWarnings("ConstantConditions")
+    @Test
+    public void idlePolicyDisconnects() throws Exception {
+        final NativeBluetoothStack stack = new NativeBluetoothStack(getContext(),
+                                                                    errorListener,
+                                                                    loggerFacade);
+        final BluetoothDevice device = Testing.createMockDevice();
+        final NativeGattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                         device,
+                                                                         Testing.RSSI_DECENT,
+                                                                         Testing.EMPTY_ADVERTISING_DATA);
+        peripheral.setIdlePolicy(IdlePolicy.disconnect(1000));
+
+        try (final TestReceiver idle = new TestReceiver(new IntentFilter(GattPeripheral.ACTION_IDLE_TRANSITION))) {
+            peripheral.connect(GattPeripheral.CONNECT_FLAG_DEFAULTS,
+                               Testing.createMockOperationTimeout())
+                      .subscribe(new Testing.Result<GattPeripheral>());
+            ShadowLooper.idleMainLooper();
+
+            final BluetoothGatt gatt = peripheral.gatt;
+            final ShadowBluetoothGatt shadowGatt = BuruberiShadows.shadowOf(gatt);
+            shadowGatt.getGattCallback().onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                                                                 BluetoothGatt.STATE_CONNECTED);
+            ShadowLooper.idleMainLooper();
+
+            ShadowLooper.idleMainLooper(600);
+            peripheral.discoverServices(Testing.createMockOperationTimeout())
+                      .subscribe(new Testing.Result<Map<UUID, ? extends GattService>>());
+            ShadowLooper.idleMainLooper(600);
+            assertThat(idle.wasInvoked, is(false));
+
+            ShadowLooper.idleMainLooper(400);
+            assertThat(idle.wasInvoked, is(true));
+            shadowGatt.verifyCall(ShadowBluetoothGatt.Call.DISCONNECT);
+        }
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    @Test
+    public void connectDirectFirstFallsBack() throws Exception {
+        final NativeBluetoothStack stack = new NativeBluetoothStack(getContext(),
+                                                                    errorListener,
+                                                                    loggerFacade);
+        final BluetoothDevice device = Testing.createMockDevice();
+        final NativeGattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                         device,
+                                                                         Testing.RSSI_DECENT,
+                                                                         Testing.EMPTY_ADVERTISING_DATA);
+
+        final Testing.Result<GattPeripheral> result = new Testing.Result<>();
+        peripheral.connect(GattPeripheral.CONNECT_FLAG_DIRECT_FIRST | GattPeripheral.CONNECT_FLAG_TRANSPORT_LE,
+                           Testing.createMockOperationTimeout())
+                  .subscribe(result);
+        ShadowLooper.idleMainLooper();
+
+        final BluetoothGatt directGatt = peripheral.gatt;
+        assertThat(BuruberiShadows.shadowOf(directGatt).isAutoConnect(), is(false));
+
+        ShadowLooper.idleMainLooper(ConnectStrategy.DIRECT_DEADLINE_MS);
+
+        final BluetoothGatt waitingGatt = peripheral.gatt;
+        assertThat(waitingGatt, is(not(sameInstance(directGatt))));
+        assertThat(BuruberiShadows.shadowOf(waitingGatt).isAutoConnect(), is(true));
+        BuruberiShadows.shadowOf(directGatt).verifyCall(ShadowBluetoothGatt.Call.CLOSE);
+
+        BuruberiShadows.shadowOf(waitingGatt)
+                       .getGattCallback()
+                       .onConnectionStateChange(waitingGatt, BluetoothGatt.GATT_SUCCESS,
+                                                BluetoothGatt.STATE_CONNECTED);
+        ShadowLooper.idleMainLooper();
+        assertThat(result.isCompleted(), is(true));
+        assertThat(result.getValues(), hasItem((GattPeripheral) peripheral));
+
+        ShadowLooper.idleMainLooper(ConnectStrategy.DIRECT_DEADLINE_MS);
+        assertThat(peripheral.gatt, is(sameInstance(waitingGatt)));
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    @Test
+    public void reconnectAfterTimeoutAppliesStrategy() throws Exception {
+        final NativeBluetoothStack stack = new NativeBluetoothStack(getContext(),
+                                                                    errorListener,
+                                                                    loggerFacade);
+        final BluetoothDevice device = Testing.createMockDevice();
+        final NativeGattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                         device,
+                                                                         Testing.RSSI_DECENT,
+                                                                         Testing.EMPTY_ADVERTISING_DATA);
+
+        final OperationTimeout timeout = Testing.createMockOperationTimeout();
+        final Testing.Result<GattPeripheral> timedOut = new Testing.Result<>();
+        peripheral.connect(GattPeripheral.CONNECT_FLAG_DEFAULTS, timeout)
+                  .subscribe(timedOut);
+        ShadowLooper.idleMainLooper();
+
+        final ArgumentCaptor<Action0> timeoutAction = ArgumentCaptor.forClass(Action0.class);
+        verify(timeout).setTimeoutAction(timeoutAction.capture(), any(Scheduler.class));
+        timeoutAction.getValue().call();
+        ShadowLooper.idleMainLooper();
+        assertThat(timedOut.getError(), is(instanceOf(OperationTimeoutException.class)));
+
+        final BluetoothGatt staleGatt = peripheral.gatt;
+        assertThat(staleGatt, is(notNullValue()));
+
+        final Testing.Result<GattPeripheral> result = new Testing.Result<>();
+        peripheral.connect(GattPeripheral.CONNECT_FLAG_DIRECT_FIRST | GattPeripheral.CONNECT_FLAG_TRANSPORT_LE,
+                           Testing.createMockOperationTimeout())
+                  .subscribe(result);
+        ShadowLooper.idleMainLooper();
+
+        final BluetoothGatt directGatt = peripheral.gatt;
+        assertThat(directGatt, is(not(sameInstance(staleGatt))));
+        assertThat(BuruberiShadows.shadowOf(directGatt).isAutoConnect(), is(false));
+
+        ShadowLooper.idleMainLooper(ConnectStrategy.DIRECT_DEADLINE_MS);
+
+        final BluetoothGatt waitingGatt = peripheral.gatt;
+        assertThat(waitingGatt, is(not(sameInstance(directGatt))));
+        assertThat(BuruberiShadows.shadowOf(waitingGatt).isAutoConnect(), is(true));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void idlePolicyRequiresTimeout() {
+        IdlePolicy.disconnect(0);
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    @Test
+    public void restoresConnectionAfterRadioCycle() throws Exception {
+        getShadowBluetoothAdapter().setEnabled(true);
+        final NativeBluetoothStack stack = new NativeBluetoothStack(getContext(),
+                                                                    errorListener,
+                                                                    loggerFacade);
+        final BluetoothDevice device = Testing.createMockDevice();
+        final NativeGattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                         device,
+                                                                         Testing.RSSI_DECENT,
+                                                                         Testing.EMPTY_ADVERTISING_DATA);
+
+        peripheral.connect(GattPeripheral.CONNECT_FLAG_DEFAULTS | GattPeripheral.CONNECT_FLAG_RESTORE,
+                           Testing.createMockOperationTimeout())
+                  .subscribe(new Testing.Result<GattPeripheral>());
+        ShadowLooper.idleMainLooper();
+
+        final BluetoothGatt gatt = peripheral.gatt;
+        BuruberiShadows.shadowOf(gatt)
+                       .getGattCallback()
+                       .onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                                                BluetoothGatt.STATE_CONNECTED);
+        ShadowLooper.idleMainLooper();
+
+        getShadowBluetoothAdapter().setEnabled(false);
+        getContext().sendBroadcast(new Intent(BluetoothAdapter.ACTION_STATE_CHANGED)
+                                           .putExtra(BluetoothAdapter.EXTRA_STATE,
+                                                     BluetoothAdapter.STATE_OFF));
+        ShadowLooper.idleMainLooper();
+        BuruberiShadows.shadowOf(gatt).verifyCall(ShadowBluetoothGatt.Call.DISCONNECT);
+
+        BuruberiShadows.shadowOf(gatt)
+                       .getGattCallback()
+                       .onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                                                BluetoothGatt.STATE_DISCONNECTED);
+        ShadowLooper.idleMainLooper();
+        assertThat(peripheral.gatt, is(nullValue()));
+
+        getShadowBluetoothAdapter().setEnabled(true);
+        getContext().sendBroadcast(new Intent(BluetoothAdapter.ACTION_STATE_CHANGED)
+                                           .putExtra(BluetoothAdapter.EXTRA_STATE,
+                                                     BluetoothAdapter.STATE_ON));
+        ShadowLooper.idleMainLooper();
+        assertThat(peripheral.gatt, is(nullValue()));
+
+        ShadowLooper.idleMainLooper(ConnectionRestorer.STAGGER_MS);
+        assertThat(peripheral.gatt, is(notNullValue()));
+        assertThat(peripheral.getConnectionStatus(), is(GattPeripheral.STATUS_CONNECTING));
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    @Test
+    public void retriesPartialRestorationWithoutReconnecting() throws Exception {
+        getShadowBluetoothAdapter().setEnabled(true);
+        final NativeBluetoothStack stack = new NativeBluetoothStack(getContext(),
+                                                                    errorListener,
+                                                                    loggerFacade);
+        final BluetoothDevice device = Testing.createMockDevice();
+        final NativeGattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                         device,
+                                                                         Testing.RSSI_DECENT,
+                                                                         Testing.EMPTY_ADVERTISING_DATA);
+
+        peripheral.connect(GattPeripheral.CONNECT_FLAG_DEFAULTS | GattPeripheral.CONNECT_FLAG_RESTORE,
+                           Testing.createMockOperationTimeout())
+                  .subscribe(new Testing.Result<GattPeripheral>());
+        ShadowLooper.idleMainLooper();
+
+        final BluetoothGatt gatt = peripheral.gatt;
+        BuruberiShadows.shadowOf(gatt)
+                       .getGattCallback()
+                       .onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                                                BluetoothGatt.STATE_CONNECTED);
+        ShadowLooper.idleMainLooper();
+
+        BuruberiShadows.shadowOf(gatt)
+                       .setServices(Collections.singletonList(Testing.createMockGattService()));
+        peripheral.discoverServices(Testing.createMockOperationTimeout())
+                  .subscribe(new Testing.Result<Map<UUID, ? extends GattService>>());
+        ShadowLooper.idleMainLooper();
+        BuruberiShadows.shadowOf(gatt)
+                       .getGattCallback()
+                       .onServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS);
+        ShadowLooper.idleMainLooper();
+
+        getShadowBluetoothAdapter().setEnabled(false);
+        getContext().sendBroadcast(new Intent(BluetoothAdapter.ACTION_STATE_CHANGED)
+                                           .putExtra(BluetoothAdapter.EXTRA_STATE,
+                                                     BluetoothAdapter.STATE_OFF));
+        ShadowLooper.idleMainLooper();
+        BuruberiShadows.shadowOf(gatt)
+                       .getGattCallback()
+                       .onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                                                BluetoothGatt.STATE_DISCONNECTED);
+        ShadowLooper.idleMainLooper();
+
+        getShadowBluetoothAdapter().setEnabled(true);
+        getContext().sendBroadcast(new Intent(BluetoothAdapter.ACTION_STATE_CHANGED)
+                                           .putExtra(BluetoothAdapter.EXTRA_STATE,
+                                                     BluetoothAdapter.STATE_ON));
+        ShadowLooper.idleMainLooper(ConnectionRestorer.STAGGER_MS);
+
+        final BluetoothGatt restoredGatt = peripheral.gatt;
+        assertThat(restoredGatt, is(notNullValue()));
+        final ShadowBluetoothGatt shadowRestoredGatt = BuruberiShadows.shadowOf(restoredGatt);
+        shadowRestoredGatt.getGattCallback()
+                          .onConnectionStateChange(restoredGatt, BluetoothGatt.GATT_SUCCESS,
+                                                   BluetoothGatt.STATE_CONNECTED);
+        ShadowLooper.idleMainLooper();
+        shadowRestoredGatt.verifyCall(ShadowBluetoothGatt.Call.DISCOVER_SERVICES);
+
+        // Connecting succeeded, but rediscovering services did not.
+        shadowRestoredGatt.getGattCallback()
+                          .onServicesDiscovered(restoredGatt, BluetoothGatt.GATT_FAILURE);
+        ShadowLooper.idleMainLooper(ConnectionRestorer.BACKOFF_MS);
+        assertThat(peripheral.services.isEmpty(), is(true));
+
+        // The retry rediscovers services over the existing connection.
+        shadowRestoredGatt.setServices(Collections.singletonList(Testing.createMockGattService()));
+        shadowRestoredGatt.getGattCallback()
+                          .onServicesDiscovered(restoredGatt, BluetoothGatt.GATT_SUCCESS);
+        ShadowLooper.idleMainLooper();
+
+        assertThat(peripheral.gatt, is(sameInstance(restoredGatt)));
+        assertThat(peripheral.getConnectionStatus(), is(GattPeripheral.STATUS_CONNECTED));
+        assertThat(peripheral.services.isEmpty(), is(false));
+    }
+
+    @Test
+    public void cachesDeviceMetadata() {
+        final BluetoothDevice device = Testing.createMockDevice();
+        final ShadowBluetoothDeviceExt shadowDevice = BuruberiShadows.shadowOf(device);
+        shadowDevice.setName("Sense");
+        shadowDevice.setBondState(BluetoothDevice.BOND_NONE);
+        final NativeGattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                         device,
+                                                                         Testing.RSSI_DECENT,
+                                                                         Testing.EMPTY_ADVERTISING_DATA);
+        assertThat(peripheral.getName(), is(equalTo("Sense")));
+
+        shadowDevice.setName("Renamed");
+        assertThat(peripheral.getName(), is(equalTo("Sense")));
+
+        final Intent nameChanged = new Intent(BluetoothDevice.ACTION_NAME_CHANGED);
+        nameChanged.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        nameChanged.putExtra(BluetoothDevice.EXTRA_NAME, "Renamed");
+        getContext().sendBroadcast(nameChanged);
+        assertThat(peripheral.getName(), is(equalTo("Renamed")));
+
+        final Intent bondChanged = new Intent(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        bondChanged.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        bondChanged.putExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_BONDED);
+        getContext().sendBroadcast(bondChanged);
+        assertThat(peripheral.toString(), containsString("bondStatus=" + BluetoothDevice.BOND_BONDED));
+    }
+
     //endregion
 
 
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.robolectric.shadows.ShadowLooper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.ErrorListener;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import is.hello.buruberi.bluetooth.stacks.util.PresenceEvent;
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.testing.Testing;
+import is.hello.buruberi.util.AdvertisingDataBuilder;
+import rx.Subscriber;
+import rx.Subscription;
+import rx.observers.Subscribers;
+
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.hasKey;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+public class PresenceSessionTests extends BuruberiTestCase {
+    private final ErrorListener errorListener = mock(ErrorListener.class);
+    private final LoggerFacade loggerFacade = mock(LoggerFacade.class);
+    private final AtomicInteger windowsStarted = new AtomicInteger(0);
+    private NativeBluetoothStack stack;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+
+        getShadowBluetoothAdapter().setEnabled(true);
+        this.stack = spy(new NativeBluetoothStack(getContext(),
+                                                  errorListener,
+                                                  loggerFacade));
+        doReturn(new LePeripheralScanner() {
+            @Override
+            public void call(Subscriber<? super List<GattPeripheral>> subscriber) {
+                windowsStarted.incrementAndGet();
+                subscriber.onNext(Collections.<GattPeripheral>emptyList());
+                subscriber.onCompleted();
+            }
+        }).when(stack).createLeScanner(any(PeripheralCriteria.class),
+                                        eq(Integer.MAX_VALUE),
+                                        any(LePeripheralScanner.ChangeListener.class));
+    }
+
+    private List<GattPeripheral> sighting(int rssi) {
+        final AdvertisingData advertisingData = new AdvertisingDataBuilder().build();
+        final GattPeripheral peripheral = new NativeGattPeripheral(stack,
+                                                                   Testing.createMockDevice(),
+                                                                   rssi,
+                                                                   advertisingData);
+        return Collections.singletonList(peripheral);
+    }
+
+    @Test
+    public void reportsEnterAndExitWithHysteresis() {
+        doReturn(Testing.getNoOpScheduler()).when(stack).getScheduler();
+
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setPresenceThresholds(-60, -80);
+        criteria.setExitTimeout(30 * 1000);
+        final PresenceSession session = new PresenceSession(stack, criteria);
+
+        final List<PresenceEvent.Type> events = new ArrayList<>();
+        session.call(new Subscriber<PresenceEvent>() {
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                throw new AssertionError(e);
+            }
+
+            @Override
+            public void onNext(PresenceEvent presenceEvent) {
+                events.add(presenceEvent.type);
+            }
+        });
+
+        session.onWindowConcluded(sighting(-70), 1000);
+        assertThat(events, is(empty()));
+
+        session.onWindowConcluded(sighting(-50), 2000);
+        assertThat(events, is(equalTo(Collections.singletonList(PresenceEvent.Type.ENTERED))));
+
+        session.onWindowConcluded(sighting(-75), 3000);
+        session.onWindowConcluded(sighting(-90), 4000);
+        assertThat(events.size(), is(equalTo(1)));
+
+        session.onWindowConcluded(sighting(-95), 5000);
+        assertThat(events.get(1), is(equalTo(PresenceEvent.Type.EXITED)));
+
+        session.onWindowConcluded(sighting(-30), 6000);
+        assertThat(events.get(2), is(equalTo(PresenceEvent.Type.ENTERED)));
+
+        session.onWindowConcluded(Collections.<GattPeripheral>emptyList(), 36000);
+        assertThat(events.get(3), is(equalTo(PresenceEvent.Type.EXITED)));
+        assertThat(session.presences, not(hasKey(Testing.DEVICE_ADDRESS)));
+    }
+
+    @Test
+    public void usesSightingTimeAndSmoothedRssi() {
+        doReturn(Testing.getNoOpScheduler()).when(stack).getScheduler();
+
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setPresenceThresholds(-60, -80);
+        criteria.setExitTimeout(30 * 1000);
+        final PresenceSession session = new PresenceSession(stack, criteria);
+        session.call(Subscribers.<PresenceEvent>empty());
+
+        final List<GattPeripheral> sighting = sighting(-50);
+        final NativeGattPeripheral peripheral = (NativeGattPeripheral) sighting.get(0);
+        peripheral.scanSmoothedRssi = -70f;
+        peripheral.scanLastSeen = 1000;
+        session.onWindowConcluded(sighting, 10000);
+
+        final PresenceSession.Presence presence = session.presences.get(Testing.DEVICE_ADDRESS);
+        assertThat(presence.smoothedRssi, is(equalTo(-70f)));
+        assertThat(presence.lastSeen, is(equalTo(1000L)));
+        assertThat(presence.present, is(false));
+
+        session.onWindowConcluded(Collections.<GattPeripheral>emptyList(), 31000);
+        assertThat(session.presences, not(hasKey(Testing.DEVICE_ADDRESS)));
+    }
+
+    @Test
+    public void rotatesWindows() {
+        final Subscription subscription = stack.monitorPresence(new PeripheralCriteria())
+                                               .subscribe(Subscribers.empty());
+        assertThat(windowsStarted.get(), is(equalTo(1)));
+
+        ShadowLooper.idleMainLooper(ScanRotation.MINIMUM_START_INTERVAL_MS - 1000);
+        assertThat(windowsStarted.get(), is(equalTo(1)));
+
+        ShadowLooper.idleMainLooper(1000);
+        assertThat(windowsStarted.get(), is(equalTo(2)));
+
+        subscription.unsubscribe();
+
+        ShadowLooper.idleMainLooper(ScanRotation.MINIMUM_START_INTERVAL_MS);
+        assertThat(windowsStarted.get(), is(equalTo(2)));
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.ErrorListener;
+import is.hello.buruberi.bluetooth.stacks.util.IdentityResolver;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.testing.Testing;
+import is.hello.buruberi.util.AdvertisingDataBuilder;
+import rx.Observable;
+import rx.Subscriber;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ScanMultiplexerTests extends BuruberiTestCase {
+    private static final String OTHER_ADDRESS = "BA:BE:CA:FE:BE:EF";
+
+    private final ErrorListener errorListener = mock(ErrorListener.class);
+    private final LoggerFacade loggerFacade = mock(LoggerFacade.class);
+    private NativeBluetoothStack stack;
+    private ScanMultiplexer multiplexer;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+
+        getShadowBluetoothAdapter().setEnabled(true);
+        this.stack = spy(new NativeBluetoothStack(getContext(),
+                                                  errorListener,
+                                                  loggerFacade));
+        doReturn(Testing.getNoOpScheduler()).when(stack).getScheduler();
+        doReturn(new LePeripheralScanner() {
+            @Override
+            public void call(Subscriber<? super List<GattPeripheral>> subscriber) {
+            }
+        }).when(stack).createLeScanner(any(PeripheralCriteria.class),
+                                        eq(Integer.MAX_VALUE),
+                                        any(LePeripheralScanner.ChangeListener.class));
+        this.multiplexer = new ScanMultiplexer(stack);
+    }
+
+    private Testing.Result<GattPeripheral> observe(@NonNull PeripheralCriteria peripheralCriteria) {
+        final Testing.Result<GattPeripheral> result = new Testing.Result<>();
+        Observable.create(multiplexer.observe(peripheralCriteria))
+                  .subscribe(result);
+        return result;
+    }
+
+    private static AdvertisingData advertising(@NonNull String manufacturerData) {
+        return new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, manufacturerData)
+                .build();
+    }
+
+    @Test
+    public void sharesOneScanBetweenObservers() {
+        final Testing.Result<GattPeripheral> company = observe(new PeripheralCriteria()
+                .addStartsWithPredicate(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA03"));
+        final Testing.Result<GattPeripheral> address = observe(new PeripheralCriteria()
+                .addPeripheralAddress(OTHER_ADDRESS));
+
+        verify(stack, times(1)).createLeScanner(any(PeripheralCriteria.class),
+                                                 eq(Integer.MAX_VALUE),
+                                                 any(LePeripheralScanner.ChangeListener.class));
+
+        final BluetoothDevice device = Testing.createMockDevice();
+        final BluetoothDevice otherDevice = Testing.createMockDevice(OTHER_ADDRESS);
+        multiplexer.onAdvertisementChanged(device, advertising("EA0315"), Testing.RSSI_DECENT);
+        multiplexer.onAdvertisementChanged(otherDevice, advertising("4C0002"), Testing.RSSI_DECENT);
+        multiplexer.onAdvertisementChanged(otherDevice, advertising("EA0316"), Testing.RSSI_DECENT);
+
+        assertThat(company.getValues().size(), is(equalTo(2)));
+        assertThat(company.getValues().get(0).getAddress(), is(equalTo(Testing.DEVICE_ADDRESS)));
+        assertThat(company.getValues().get(1).getAddress(), is(equalTo(OTHER_ADDRESS)));
+        assertThat(address.getValues().size(), is(equalTo(2)));
+        assertThat(address.getValues().get(0).getAddress(), is(equalTo(OTHER_ADDRESS)));
+    }
+
+    @Test
+    public void suppressesUnchangedAdvertisementsAcrossWindows() {
+        final Testing.Result<GattPeripheral> result = observe(new PeripheralCriteria());
+        final BluetoothDevice device = Testing.createMockDevice();
+
+        multiplexer.onAdvertisementChanged(device, advertising("EA0315"), Testing.RSSI_DECENT);
+        multiplexer.onWindowConcluded(Collections.<GattPeripheral>emptyList(), 0);
+        multiplexer.onAdvertisementChanged(device, advertising("EA0315"), Testing.RSSI_BETTER);
+        multiplexer.onAdvertisementChanged(device, advertising("EA0316"), Testing.RSSI_BETTER);
+
+        assertThat(result.getValues().size(), is(equalTo(2)));
+        assertThat(result.getValues().get(1).getScanTimeRssi(), is(equalTo(Testing.RSSI_BETTER)));
+    }
+
+    @Test
+    public void sendsLatestAdvertisementsToLateObservers() {
+        final Testing.Result<GattPeripheral> early = observe(new PeripheralCriteria());
+        multiplexer.onAdvertisementChanged(Testing.createMockDevice(), advertising("EA0315"),
+                                           Testing.RSSI_DECENT);
+        multiplexer.onAdvertisementChanged(Testing.createMockDevice(OTHER_ADDRESS), advertising("4C0002"),
+                                           Testing.RSSI_DECENT);
+
+        final Testing.Result<GattPeripheral> late = observe(new PeripheralCriteria()
+                .addStartsWithPredicate(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA03"));
+
+        assertThat(early.getValues().size(), is(equalTo(2)));
+        assertThat(late.getValues().size(), is(equalTo(1)));
+        assertThat(late.getValues().get(0).getAddress(), is(equalTo(Testing.DEVICE_ADDRESS)));
+    }
+
+    @Test
+    public void completesObserversAtLimit() {
+        final PeripheralCriteria peripheralCriteria = new PeripheralCriteria();
+        peripheralCriteria.setLimit(1);
+        peripheralCriteria.setMinimumRssi(Testing.RSSI_DECENT);
+        final Testing.Result<GattPeripheral> result = observe(peripheralCriteria);
+
+        multiplexer.onAdvertisementChanged(Testing.createMockDevice(OTHER_ADDRESS), advertising("EA0315"), -90);
+        assertThat(result.isCompleted(), is(false));
+
+        multiplexer.onAdvertisementChanged(Testing.createMockDevice(), advertising("EA0315"),
+                                           Testing.RSSI_DECENT);
+        multiplexer.onAdvertisementChanged(Testing.createMockDevice(), advertising("EA0316"),
+                                           Testing.RSSI_DECENT);
+
+        assertThat(result.isCompleted(), is(true));
+        assertThat(result.getValues().size(), is(equalTo(1)));
+        assertThat(result.getValues().get(0).getAddress(), is(equalTo(Testing.DEVICE_ADDRESS)));
+    }
+
+    @Test
+    public void stopsScanWithLastObserver() {
+        final Testing.Result<GattPeripheral> first = observe(new PeripheralCriteria());
+        final Testing.Result<GattPeripheral> second = observe(new PeripheralCriteria());
+
+        first.unsubscribe();
+        observe(new PeripheralCriteria()).unsubscribe();
+        verify(stack, times(1)).createLeScanner(any(PeripheralCriteria.class),
+                                                 eq(Integer.MAX_VALUE),
+                                                 any(LePeripheralScanner.ChangeListener.class));
+
+        second.unsubscribe();
+        final Testing.Result<GattPeripheral> third = observe(new PeripheralCriteria());
+        verify(stack, times(2)).createLeScanner(any(PeripheralCriteria.class),
+                                                 eq(Integer.MAX_VALUE),
+                                                 any(LePeripheralScanner.ChangeListener.class));
+
+        multiplexer.onAdvertisementChanged(Testing.createMockDevice(), advertising("EA0315"),
+                                           Testing.RSSI_DECENT);
+        assertThat(first.getValues().size(), is(equalTo(0)));
+        assertThat(third.getValues().size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void forwardsRotationErrors() {
+        final Testing.Result<GattPeripheral> result = observe(new PeripheralCriteria());
+        final IllegalStateException error = new IllegalStateException();
+        multiplexer.onRotationError(error);
+
+        assertThat(result.getError(), is(sameInstance((Throwable) error)));
+    }
+
+    @Test
+    public void sharesOnlyPerAdvertisementCriteria() {
+        assertThat(ScanMultiplexer.canShare(new PeripheralCriteria()), is(true));
+
+        final PeripheralCriteria resolving = new PeripheralCriteria();
+        resolving.setIdentityResolver(new IdentityResolver());
+        assertThat(ScanMultiplexer.canShare(resolving), is(false));
+
+        final PeripheralCriteria quiet = new PeripheralCriteria();
+        quiet.setQuietPeriod(1000);
+        assertThat(ScanMultiplexer.canShare(quiet), is(false));
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.ErrorListener;
+import is.hello.buruberi.bluetooth.stacks.util.IdentityResolver;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.testing.Testing;
+import is.hello.buruberi.util.AdvertisingDataBuilder;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.startsWith;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class ScanPipelineTests extends BuruberiTestCase {
+    private static final int LANE_COUNT = 4;
+
+    private final ErrorListener errorListener = mock(ErrorListener.class);
+    private final LoggerFacade loggerFacade = mock(LoggerFacade.class);
+    private NativeBluetoothStack stack;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+
+        this.stack = spy(new NativeBluetoothStack(getContext(),
+                                                  errorListener,
+                                                  loggerFacade));
+        doReturn(Testing.getNoOpScheduler()).when(stack).getScheduler();
+    }
+
+    @Test
+    public void recognizesRotatedAddressesOnEveryLane() throws Exception {
+        final IdentityResolver identityResolver = new IdentityResolver();
+        identityResolver.setFingerprintRecordTypes(AdvertisingData.TYPE_LOCAL_NAME);
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setIdentityResolver(identityResolver);
+        criteria.setMinimumRssi(Testing.RSSI_DECENT);
+
+        final List<String> identities = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> addresses = Collections.synchronizedList(new ArrayList<String>());
+        final ScanPipeline pipeline = new ScanPipeline(stack, criteria, false, new ScanPipeline.Listener() {
+            @Override
+            public void onAdvertisementAccepted(@NonNull BluetoothDevice device,
+                                                @NonNull String identity,
+                                                int rssi,
+                                                @NonNull AdvertisingData advertisingData,
+                                                long seenAt) {
+                identities.add(identity);
+                addresses.add(device.getAddress());
+            }
+        }, LANE_COUNT);
+
+        final byte[] scanResponse = new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_LOCAL_NAME, "53656E7365")
+                .buildRaw();
+        final List<String> rotations = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final BluetoothDevice rotated = Testing.createMockDevice("70:81:94:0D:FB:0" + i);
+            rotations.add(rotated.getAddress());
+
+            // Only the first sighting has to satisfy the minimum signal strength.
+            final int rssi = (i == 0) ? Testing.RSSI_DECENT : -90;
+            pipeline.submit(rotated, rssi, scanResponse, SystemClock.elapsedRealtime());
+            pipeline.awaitIdle();
+        }
+        pipeline.shutdown();
+
+        assertThat(addresses, is(equalTo(rotations)));
+        assertThat(new HashSet<>(identities).size(), is(equalTo(1)));
+        verify(loggerFacade, times(1)).info(eq(BluetoothStack.LOG_TAG), startsWith("Found device"));
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.android;
+
+import android.bluetooth.BluetoothDevice;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingData;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingDecoder;
+import is.hello.buruberi.bluetooth.stacks.util.AdvertisingDecoderRegistry;
+import is.hello.buruberi.bluetooth.stacks.util.ErrorListener;
+import is.hello.buruberi.bluetooth.stacks.util.LoggerFacade;
+import is.hello.buruberi.bluetooth.stacks.util.PeripheralCriteria;
+import is.hello.buruberi.bluetooth.stacks.util.TelemetrySample;
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.testing.Testing;
+import is.hello.buruberi.util.AdvertisingDataBuilder;
+import rx.Subscriber;
+
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+
+public class TelemetryIngestionTests extends BuruberiTestCase {
+    private static final AdvertisingDecoder<Integer> TEMPERATURE = new AdvertisingDecoder<Integer>() {
+        @Override
+        public @Nullable Integer decode(@NonNull byte[] record, int offset, int length) {
+            if (length < 1) {
+                return null;
+            }
+            return (int) record[offset];
+        }
+    };
+
+    private final ErrorListener errorListener = mock(ErrorListener.class);
+    private final LoggerFacade loggerFacade = mock(LoggerFacade.class);
+    private NativeBluetoothStack stack;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+
+        getShadowBluetoothAdapter().setEnabled(true);
+        this.stack = spy(new NativeBluetoothStack(getContext(),
+                                                  errorListener,
+                                                  loggerFacade));
+        doReturn(Testing.getNoOpScheduler()).when(stack).getScheduler();
+        doReturn(new LePeripheralScanner() {
+            @Override
+            public void call(Subscriber<? super List<GattPeripheral>> subscriber) {
+            }
+        }).when(stack).createLeScanner(any(PeripheralCriteria.class),
+                                        eq(Integer.MAX_VALUE),
+                                        any(LePeripheralScanner.ChangeListener.class));
+    }
+
+    private static AdvertisingData advertising(@NonNull String manufacturerData) {
+        return new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, manufacturerData)
+                .build();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNonPositiveBatchInterval() {
+        new TelemetryIngestion(stack, new PeripheralCriteria(), new AdvertisingDecoderRegistry(), 0);
+    }
+
+    @Test
+    public void decodesAndBatchesChangedAdvertisements() {
+        final AdvertisingDecoderRegistry decoders = new AdvertisingDecoderRegistry()
+                .registerManufacturerDecoder(0x03EA, TEMPERATURE);
+        final TelemetryIngestion ingestion = new TelemetryIngestion(stack, new PeripheralCriteria(),
+                                                                    decoders, 1000);
+        final BluetoothDevice device = Testing.createMockDevice();
+
+        final List<List<TelemetrySample>> batches = new ArrayList<>();
+        ingestion.call(new Subscriber<List<TelemetrySample>>() {
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                throw new AssertionError(e);
+            }
+
+            @Override
+            public void onNext(List<TelemetrySample> samples) {
+                batches.add(samples);
+            }
+        });
+
+        ingestion.onAdvertisementChanged(device, advertising("EA0315"), Testing.RSSI_DECENT);
+        ingestion.onAdvertisementChanged(device, advertising("EA0315"), Testing.RSSI_DECENT);
+        ingestion.onAdvertisementChanged(device, advertising("FFFF16"), Testing.RSSI_DECENT);
+        ingestion.onAdvertisementChanged(device, advertising("EA0316"), Testing.RSSI_DECENT);
+        ingestion.flush();
+
+        assertThat(batches.size(), is(equalTo(1)));
+        final List<TelemetrySample> batch = batches.get(0);
+        assertThat(batch.size(), is(equalTo(2)));
+        assertThat(batch.get(0).address, is(equalTo(Testing.DEVICE_ADDRESS)));
+        assertThat(batch.get(0).rssi, is(equalTo(Testing.RSSI_DECENT)));
+        assertThat(batch.get(0).getValue(TEMPERATURE), is(equalTo(0x15)));
+        assertThat(batch.get(1).getValue(TEMPERATURE), is(equalTo(0x16)));
+
+        ingestion.flush();
+        assertThat(batches.size(), is(equalTo(1)));
+
+        ingestion.onWindowConcluded(Collections.<GattPeripheral>emptyList(), 0);
+        ingestion.onAdvertisementChanged(device, advertising("EA0316"), Testing.RSSI_DECENT);
+        ingestion.flush();
+        assertThat(batches.size(), is(equalTo(2)));
+        assertThat(batches.get(1).get(0).getValue(TEMPERATURE), is(equalTo(0x16)));
+    }
+
+    @Test
+    public void sampleValueRequiresMatchingDecoder() {
+        final AdvertisingDecoder<Integer> other = new AdvertisingDecoder<Integer>() {
+            @Override
+            public @Nullable Integer decode(@NonNull byte[] record, int offset, int length) {
+                return 0;
+            }
+        };
+        final TelemetrySample sample = new TelemetrySample(Testing.DEVICE_ADDRESS, TEMPERATURE,
+                                                           42, Testing.RSSI_DECENT, 0);
+        assertThat(sample.getValue(TEMPERATURE), is(equalTo(42)));
+        assertThat(sample.getValue(other), is(nullValue()));
+    }
+}
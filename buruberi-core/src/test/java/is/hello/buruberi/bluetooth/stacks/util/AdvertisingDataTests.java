@@ -26,13 +26,19 @@ import org.junit.Test;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.UUID;
 
 import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.util.AdvertisingDataBuilder;
 
+import static is.hello.buruberi.bluetooth.stacks.util.AdvertisingData.TYPE_INCOMPLETE_LIST_OF_32_BIT_SERVICE_CLASS_UUIDS;
+import static is.hello.buruberi.bluetooth.stacks.util.AdvertisingData.TYPE_LIST_OF_128_BIT_SERVICE_CLASS_UUIDS;
 import static is.hello.buruberi.bluetooth.stacks.util.AdvertisingData.TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS;
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
 import static org.junit.Assert.assertThat;
 
 public class AdvertisingDataTests extends BuruberiTestCase {
@@ -72,6 +78,67 @@ public class AdvertisingDataTests extends BuruberiTestCase {
                    is(deepEqualTo(asArray(outData.getRecordsForType(TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS)))));
     }
 
+    @Test
+    public void identity() {
+        final AdvertisingData data = AdvertisingData.parse(TEST_PAYLOAD);
+        final AdvertisingData sameData = AdvertisingData.parse(Arrays.copyOf(TEST_PAYLOAD, 31));
+        final AdvertisingData otherData = AdvertisingData.parse(new byte[] {
+                (byte) 0x03, (byte) TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS, (byte) 0xE1, (byte) 0xFF,
+        });
+
+        assertThat(data, is(equalTo(sameData)));
+        assertThat(data.hashCode(), is(equalTo(sameData.hashCode())));
+        assertThat(data.getContentHash(), is(equalTo(sameData.getContentHash())));
+        assertThat(data, is(not(equalTo(otherData))));
+        assertThat(parcelUnparcel(data), is(equalTo(data)));
+    }
+
+    @Test
+    public void hashScanRecord() {
+        final long hash = AdvertisingData.hashScanRecord(TEST_PAYLOAD);
+        assertThat(AdvertisingData.hashScanRecord(Arrays.copyOf(TEST_PAYLOAD, 31)), is(equalTo(hash)));
+
+        final byte[] changed = TEST_PAYLOAD.clone();
+        changed[3] = (byte) 0xFF;
+        assertThat(AdvertisingData.hashScanRecord(changed), is(not(equalTo(hash))));
+    }
+
+
+    @Test
+    public void advertisesService() {
+        final AdvertisingData advertisingData = new AdvertisingDataBuilder()
+                .add(TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS, "0D18E1FE")
+                .add(TYPE_INCOMPLETE_LIST_OF_32_BIT_SERVICE_CLASS_UUIDS, "0F180000")
+                .add(TYPE_LIST_OF_128_BIT_SERVICE_CLASS_UUIDS, "23D1BCEA5F782315DEEF121210150000")
+                .build();
+
+        assertThat(advertisingData.advertisesService(new ShortUuid(0xFEE1)), is(true));
+        assertThat(advertisingData.advertisesService(new ShortUuid(0x180D)), is(true));
+        assertThat(advertisingData.advertisesService(new ShortUuid(0x180F)), is(true));
+        assertThat(advertisingData.advertisesService(new ShortUuid(0x1810)), is(false));
+
+        assertThat(advertisingData.advertisesService(UUID.fromString("0000FEE1-0000-1000-8000-00805F9B34FB")),
+                   is(true));
+        assertThat(advertisingData.advertisesService(UUID.fromString("00001510-1212-EFDE-1523-785FEABCD123")),
+                   is(true));
+        assertThat(advertisingData.advertisesService(UUID.fromString("00001511-1212-EFDE-1523-785FEABCD123")),
+                   is(false));
+    }
+
+    @Test
+    public void getServiceUuids() {
+        final AdvertisingData advertisingData = new AdvertisingDataBuilder()
+                .add(TYPE_LIST_OF_16_BIT_SERVICE_CLASS_UUIDS, "E1FE")
+                .add(TYPE_LIST_OF_128_BIT_SERVICE_CLASS_UUIDS, "23D1BCEA5F782315DEEF121210150000")
+                .build();
+
+        final List<UUID> serviceUuids = advertisingData.getServiceUuids();
+        assertThat(serviceUuids, is(equalTo(Arrays.asList(
+                UUID.fromString("0000FEE1-0000-1000-8000-00805F9B34FB"),
+                UUID.fromString("00001510-1212-EFDE-1523-785FEABCD123")
+        ))));
+        assertThat(advertisingData.getServiceUuids(), is(sameInstance(serviceUuids)));
+    }
 
     //region Utilities
 
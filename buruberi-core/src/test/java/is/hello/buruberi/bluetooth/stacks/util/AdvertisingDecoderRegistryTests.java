@@ -0,0 +1,115 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.util.AdvertisingDataBuilder;
+
+import static is.hello.buruberi.bluetooth.stacks.util.AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA;
+import static is.hello.buruberi.bluetooth.stacks.util.AdvertisingData.TYPE_SERVICE_DATA;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class AdvertisingDecoderRegistryTests extends BuruberiTestCase {
+    private static class CountingDecoder implements AdvertisingDecoder<Integer> {
+        final AtomicInteger calls = new AtomicInteger(0);
+        byte[] lastRecord;
+
+        @Override
+        public @Nullable Integer decode(@NonNull byte[] record, int offset, int length) {
+            calls.incrementAndGet();
+            this.lastRecord = record;
+            if (length < 1) {
+                return null;
+            }
+            return record[offset] & 0xFF;
+        }
+    }
+
+    @SuppressWarnings("ConstantConditions")
+    @Test
+    public void dispatchesByKey() {
+        final CountingDecoder manufacturerDecoder = new CountingDecoder();
+        final CountingDecoder serviceDataDecoder = new CountingDecoder();
+        final CountingDecoder unusedDecoder = new CountingDecoder();
+        final AdvertisingDecoderRegistry registry = new AdvertisingDecoderRegistry()
+                .registerManufacturerDecoder(0x03EA, manufacturerDecoder)
+                .registerServiceDataDecoder(0xFEE1, serviceDataDecoder)
+                .registerManufacturerDecoder(0x004C, unusedDecoder);
+
+        final AdvertisingData advertisingData = new AdvertisingDataBuilder()
+                .add(TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0342")
+                .add(TYPE_SERVICE_DATA, "E1FE17")
+                .build();
+        final AdvertisingDecoderRegistry.Results results = registry.decode(advertisingData);
+        assertThat(results.isEmpty(), is(false));
+        assertThat(results.get(manufacturerDecoder), is(equalTo(0x42)));
+        assertThat(results.get(serviceDataDecoder), is(equalTo(0x17)));
+        assertThat(results.get(unusedDecoder), is(nullValue()));
+        assertThat(unusedDecoder.calls.get(), is(equalTo(0)));
+
+        final byte[] record = advertisingData.getRecordsForType(TYPE_MANUFACTURER_SPECIFIC_DATA).get(0);
+        assertThat(manufacturerDecoder.lastRecord, is(sameInstance(record)));
+    }
+
+    @Test
+    public void ignoresMalformedRecords() {
+        final CountingDecoder decoder = new CountingDecoder();
+        final AdvertisingDecoderRegistry registry = new AdvertisingDecoderRegistry()
+                .registerManufacturerDecoder(0x03EA, decoder);
+
+        final AdvertisingData advertisingData = new AdvertisingDataBuilder()
+                .add(TYPE_MANUFACTURER_SPECIFIC_DATA, "EA")
+                .add(TYPE_MANUFACTURER_SPECIFIC_DATA, "EA03")
+                .build();
+        final AdvertisingDecoderRegistry.Results results = registry.decode(advertisingData);
+        assertThat(results.isEmpty(), is(true));
+        assertThat(decoder.calls.get(), is(equalTo(1)));
+    }
+
+    @Test
+    public void cachesByContentHash() {
+        final CountingDecoder decoder = new CountingDecoder();
+        final AdvertisingDecoderRegistry registry = new AdvertisingDecoderRegistry()
+                .registerManufacturerDecoder(0x03EA, decoder);
+
+        final AdvertisingData first = new AdvertisingDataBuilder()
+                .add(TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0342")
+                .build();
+        final AdvertisingData second = new AdvertisingDataBuilder()
+                .add(TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0342")
+                .build();
+        final AdvertisingDecoderRegistry.Results results = registry.decode(first);
+        assertThat(registry.decode(second), is(sameInstance(results)));
+        assertThat(decoder.calls.get(), is(equalTo(1)));
+
+        final AdvertisingData changed = new AdvertisingDataBuilder()
+                .add(TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0343")
+                .build();
+        assertThat(registry.decode(changed).get(decoder), is(equalTo(0x43)));
+        assertThat(decoder.calls.get(), is(equalTo(2)));
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import is.hello.buruberi.testing.AssertExtensions;
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.testing.Testing;
+
+import static is.hello.buruberi.testing.AssertExtensions.assertThrows;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CompactAddressSetTests extends BuruberiTestCase {
+    @Test
+    public void parseAddress() throws Exception {
+        assertEquals(0xCAFEBEEFBABEL, CompactAddressSet.parseAddress("CA:FE:BE:EF:BA:BE"));
+        assertEquals(0xCAFEBEEFBABEL, CompactAddressSet.parseAddress("ca:fe:be:ef:ba:be"));
+        assertEquals(0L, CompactAddressSet.parseAddress("00:00:00:00:00:00"));
+
+        assertThrows(new AssertExtensions.ThrowingRunnable() {
+            @Override
+            public void run() throws Exception {
+                CompactAddressSet.parseAddress("CA:FE:BE:EF:BA");
+            }
+        });
+        assertThrows(new AssertExtensions.ThrowingRunnable() {
+            @Override
+            public void run() throws Exception {
+                CompactAddressSet.parseAddress("CA-FE-BE-EF-BA-BE");
+            }
+        });
+        assertThrows(new AssertExtensions.ThrowingRunnable() {
+            @Override
+            public void run() throws Exception {
+                CompactAddressSet.parseAddress("CA:FE:BE:EF:BA:BG");
+            }
+        });
+    }
+
+    @Test
+    public void read() throws Exception {
+        final String contents = "# Provisioned devices\n" +
+                "CA:FE:BE:EF:BA:BE\n" +
+                "\n" +
+                "  BA:BE:CA:FE:BE:EF  \n" +
+                "CA:FE:BE:EF:BA:BE\n";
+        final CompactAddressSet set = CompactAddressSet.read(new ByteArrayInputStream(contents.getBytes("UTF-8")));
+        assertEquals(2, set.size());
+        assertTrue(set.contains("CA:FE:BE:EF:BA:BE"));
+        assertTrue(set.contains("BA:BE:CA:FE:BE:EF"));
+        assertFalse(set.contains("00:00:00:00:00:01"));
+        assertFalse(set.contains("not an address"));
+    }
+
+    @Test
+    public void containsLargeSets() throws Exception {
+        final List<String> addresses = new ArrayList<>();
+        for (int i = 0; i < 20000; i += 2) {
+            addresses.add(String.format(Locale.US, "C0:FF:EE:%02X:%02X:%02X",
+                                        (i >> 16) & 0xFF, (i >> 8) & 0xFF, i & 0xFF));
+        }
+
+        final CompactAddressSet set = CompactAddressSet.of(addresses);
+        assertEquals(addresses.size(), set.size());
+        for (final String address : addresses) {
+            assertTrue(set.contains(address));
+        }
+        for (int i = 1; i < 20000; i += 2) {
+            assertFalse(set.contains(0xC0FFEE000000L | i));
+        }
+    }
+
+    @Test
+    public void criteriaMatching() throws Exception {
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        final AdvertisingData advertisingData = AdvertisingData.parse(Testing.EMPTY_SCAN_RESPONSE);
+        assertTrue(criteria.matches("BA:BE:CA:FE:BE:EF", advertisingData));
+
+        criteria.setPeripheralAddressSet(CompactAddressSet.of(Arrays.asList(Testing.DEVICE_ADDRESS)));
+        assertTrue(criteria.matches(Testing.DEVICE_ADDRESS, advertisingData));
+        assertFalse(criteria.matches("BA:BE:CA:FE:BE:EF", advertisingData));
+
+        criteria.addPeripheralAddress("BA:BE:CA:FE:BE:EF");
+        assertTrue(criteria.matches(Testing.DEVICE_ADDRESS, advertisingData));
+        assertTrue(criteria.matches("BA:BE:CA:FE:BE:EF", advertisingData));
+        assertFalse(criteria.matches("00:00:00:00:00:01", advertisingData));
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import is.hello.buruberi.bluetooth.errors.GattException;
+import is.hello.buruberi.bluetooth.errors.PeripheralNotFoundException;
+import is.hello.buruberi.bluetooth.stacks.BluetoothStack;
+import is.hello.buruberi.bluetooth.stacks.GattPeripheral;
+import is.hello.buruberi.bluetooth.stacks.OperationTimeout;
+import is.hello.buruberi.testing.AssertExtensions;
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.testing.Testing;
+import is.hello.buruberi.util.Defaults;
+import is.hello.buruberi.util.Operation;
+import rx.Observable;
+import rx.Subscription;
+import rx.schedulers.Schedulers;
+import rx.schedulers.TestScheduler;
+import rx.subjects.PublishSubject;
+
+import static is.hello.buruberi.testing.AssertExtensions.assertThrows;
+import static org.hamcrest.Matchers.equalTo;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class FleetExecutorTests extends BuruberiTestCase {
+    private static final String FIRST_ADDRESS = "AA:BB:CC:DD:EE:01";
+    private static final String SECOND_ADDRESS = "AA:BB:CC:DD:EE:02";
+    private static final String MISSING_ADDRESS = "AA:BB:CC:DD:EE:03";
+
+    private BluetoothStack stack;
+
+    @Before
+    public void setUp() {
+        super.setUp();
+
+        this.stack = mock(BluetoothStack.class);
+        doReturn(Defaults.createLogcatFacade()).when(stack).getLogger();
+        doReturn(Schedulers.immediate()).when(stack).getScheduler();
+    }
+
+    private GattPeripheral createPeripheral(String address) {
+        final GattPeripheral peripheral = mock(GattPeripheral.class);
+        doReturn(address).when(peripheral).getAddress();
+        doReturn(Testing.createMockOperationTimeout())
+                .when(peripheral)
+                .createAdaptiveOperationTimeout(any(Operation.class), anyLong(), any(TimeUnit.class));
+        doReturn(Observable.just(peripheral))
+                .when(peripheral)
+                .connect(anyInt(), any(OperationTimeout.class));
+        doReturn(Observable.just(Collections.emptyMap()))
+                .when(peripheral)
+                .discoverServices(any(OperationTimeout.class));
+        doReturn(Observable.just(peripheral))
+                .when(peripheral)
+                .disconnect();
+        return peripheral;
+    }
+
+    private void setScanResults(GattPeripheral... peripherals) {
+        final List<GattPeripheral> results = Arrays.asList(peripherals);
+        doReturn(Observable.just(results))
+                .when(stack)
+                .discoverPeripherals(any(PeripheralCriteria.class));
+    }
+
+    private static <T> FleetProgress<T> find(List<FleetProgress<T>> progress,
+                                             FleetProgress.Type type,
+                                             String address) {
+        for (final FleetProgress<T> item : progress) {
+            if (item.type == type && item.address.equals(address)) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void runsScriptAgainstEachDevice() {
+        final GattPeripheral first = createPeripheral(FIRST_ADDRESS);
+        final GattPeripheral second = createPeripheral(SECOND_ADDRESS);
+        setScanResults(first, second);
+
+        final FleetExecutor executor = new FleetExecutor(stack).setMaximumScans(1);
+        final Testing.Result<FleetProgress<String>> result = new Testing.Result<>();
+        executor.execute(Arrays.asList(FIRST_ADDRESS, SECOND_ADDRESS, MISSING_ADDRESS),
+                         new FleetExecutor.Script<String>() {
+                             @Override
+                             public Observable<String> run(GattPeripheral peripheral) {
+                                 return Observable.just("synced " + peripheral.getAddress());
+                             }
+                         })
+                .subscribe(result);
+
+        assertThat(result.getError(), is(nullValue()));
+        assertThat(result.isCompleted(), is(true));
+
+        final List<FleetProgress<String>> progress = result.getValues();
+        final FleetProgress<String> missing = find(progress, FleetProgress.Type.FAILED, MISSING_ADDRESS);
+        assertThat(missing.error, is(instanceOf(PeripheralNotFoundException.class)));
+
+        final FleetProgress<String> firstSucceeded = find(progress, FleetProgress.Type.SUCCEEDED, FIRST_ADDRESS);
+        assertThat(firstSucceeded.result, is(equalTo("synced " + FIRST_ADDRESS)));
+        assertThat(find(progress, FleetProgress.Type.SUCCEEDED, SECOND_ADDRESS).attempt, is(equalTo(1)));
+
+        verify(first).disconnect();
+        verify(second).disconnect();
+
+        final FleetProgress.Stats stats = progress.get(progress.size() - 1).stats;
+        assertThat(stats.total, is(equalTo(3)));
+        assertThat(stats.succeeded, is(equalTo(2)));
+        assertThat(stats.failed, is(equalTo(1)));
+        assertThat(stats.attempts, is(equalTo(2)));
+        assertThat(stats.getRemaining(), is(equalTo(0)));
+    }
+
+    @Test
+    public void retriesFailedDevices() {
+        final GattPeripheral peripheral = createPeripheral(FIRST_ADDRESS);
+        setScanResults(peripheral);
+
+        final AtomicInteger runs = new AtomicInteger(0);
+        final FleetExecutor executor = new FleetExecutor(stack).setRetryDelay(0);
+        final Testing.Result<FleetProgress<String>> result = new Testing.Result<>();
+        executor.execute(Collections.singletonList(FIRST_ADDRESS),
+                         new FleetExecutor.Script<String>() {
+                             @Override
+                             public Observable<String> run(GattPeripheral peripheral) {
+                                 if (runs.incrementAndGet() == 1) {
+                                     return Observable.error(new GattException(GattException.GATT_BUSY,
+                                                                               Operation.READ));
+                                 } else {
+                                     return Observable.just("synced");
+                                 }
+                             }
+                         })
+                .subscribe(result);
+
+        assertThat(result.isCompleted(), is(true));
+
+        final List<FleetProgress<String>> progress = result.getValues();
+        final FleetProgress<String> retrying = find(progress, FleetProgress.Type.RETRYING, FIRST_ADDRESS);
+        assertThat(retrying.attempt, is(equalTo(1)));
+        assertThat(retrying.error, is(instanceOf(GattException.class)));
+        assertThat(find(progress, FleetProgress.Type.SUCCEEDED, FIRST_ADDRESS).attempt, is(equalTo(2)));
+        verify(peripheral, times(2)).disconnect();
+    }
+
+    @Test
+    public void failsAfterMaximumAttempts() {
+        final GattPeripheral peripheral = createPeripheral(FIRST_ADDRESS);
+        setScanResults(peripheral);
+
+        final FleetExecutor executor = new FleetExecutor(stack).setRetryDelay(0)
+                                                               .setMaximumAttempts(2);
+        final Testing.Result<FleetProgress<String>> result = new Testing.Result<>();
+        executor.execute(Collections.singletonList(FIRST_ADDRESS),
+                         new FleetExecutor.Script<String>() {
+                             @Override
+                             public Observable<String> run(GattPeripheral peripheral) {
+                                 return Observable.error(new GattException(GattException.GATT_BUSY,
+                                                                           Operation.READ));
+                             }
+                         })
+                .subscribe(result);
+
+        assertThat(result.isCompleted(), is(true));
+
+        final FleetProgress<String> failed = find(result.getValues(), FleetProgress.Type.FAILED, FIRST_ADDRESS);
+        assertThat(failed.attempt, is(equalTo(2)));
+        assertThat(failed.stats.failed, is(equalTo(1)));
+        assertThat(failed.stats.attempts, is(equalTo(2)));
+    }
+
+    @Test
+    public void boundsConcurrentDevices() {
+        final GattPeripheral first = createPeripheral(FIRST_ADDRESS);
+        final GattPeripheral second = createPeripheral(SECOND_ADDRESS);
+        setScanResults(first, second);
+
+        final PublishSubject<String> firstScript = PublishSubject.create();
+        final FleetExecutor executor = new FleetExecutor(stack).setMaximumConcurrentDevices(1);
+        final Testing.Result<FleetProgress<String>> result = new Testing.Result<>();
+        executor.execute(Arrays.asList(FIRST_ADDRESS, SECOND_ADDRESS),
+                         new FleetExecutor.Script<String>() {
+                             @Override
+                             public Observable<String> run(GattPeripheral peripheral) {
+                                 if (peripheral == first) {
+                                     return firstScript;
+                                 } else {
+                                     return Observable.just("synced");
+                                 }
+                             }
+                         })
+                .subscribe(result);
+
+        verify(first).connect(anyInt(), any(OperationTimeout.class));
+        verify(second, never()).connect(anyInt(), any(OperationTimeout.class));
+
+        firstScript.onNext("synced");
+        firstScript.onCompleted();
+
+        verify(second).connect(anyInt(), any(OperationTimeout.class));
+        assertThat(result.isCompleted(), is(true));
+    }
+
+    @Test
+    public void rescansForMissingDevices() {
+        final TestScheduler scheduler = new TestScheduler();
+        doReturn(scheduler).when(stack).getScheduler();
+
+        final GattPeripheral first = createPeripheral(FIRST_ADDRESS);
+        final GattPeripheral second = createPeripheral(SECOND_ADDRESS);
+        when(stack.discoverPeripherals(any(PeripheralCriteria.class)))
+                .thenReturn(Observable.just(Collections.singletonList(first)),
+                            Observable.just(Collections.singletonList(second)),
+                            Observable.just(Collections.<GattPeripheral>emptyList()));
+
+        final FleetExecutor executor = new FleetExecutor(stack);
+        final Testing.Result<FleetProgress<String>> result = new Testing.Result<>();
+        executor.execute(Arrays.asList(FIRST_ADDRESS, SECOND_ADDRESS, MISSING_ADDRESS),
+                         new FleetExecutor.Script<String>() {
+                             @Override
+                             public Observable<String> run(GattPeripheral peripheral) {
+                                 return Observable.just("synced");
+                             }
+                         })
+                .subscribe(result);
+
+        verify(stack, times(1)).discoverPeripherals(any(PeripheralCriteria.class));
+        assertThat(find(result.getValues(), FleetProgress.Type.SUCCEEDED, FIRST_ADDRESS), is(notNullValue()));
+
+        scheduler.advanceTimeBy(5, TimeUnit.SECONDS);
+        verify(stack, times(1)).discoverPeripherals(any(PeripheralCriteria.class));
+
+        scheduler.advanceTimeBy(1, TimeUnit.SECONDS);
+        verify(stack, times(2)).discoverPeripherals(any(PeripheralCriteria.class));
+        assertThat(find(result.getValues(), FleetProgress.Type.SUCCEEDED, SECOND_ADDRESS), is(notNullValue()));
+        assertThat(find(result.getValues(), FleetProgress.Type.FAILED, MISSING_ADDRESS), is(nullValue()));
+
+        scheduler.advanceTimeBy(6, TimeUnit.SECONDS);
+        verify(stack, times(FleetExecutor.DEFAULT_MAXIMUM_SCANS)).discoverPeripherals(any(PeripheralCriteria.class));
+        final FleetProgress<String> missing = find(result.getValues(), FleetProgress.Type.FAILED, MISSING_ADDRESS);
+        assertThat(missing.error, is(instanceOf(PeripheralNotFoundException.class)));
+        assertThat(result.isCompleted(), is(true));
+    }
+
+    @Test
+    public void disconnectsWhenUnsubscribed() {
+        final GattPeripheral peripheral = createPeripheral(FIRST_ADDRESS);
+        setScanResults(peripheral);
+
+        final PublishSubject<String> script = PublishSubject.create();
+        final FleetExecutor executor = new FleetExecutor(stack);
+        final Subscription subscription =
+                executor.execute(Collections.singletonList(FIRST_ADDRESS),
+                                 new FleetExecutor.Script<String>() {
+                                     @Override
+                                     public Observable<String> run(GattPeripheral peripheral) {
+                                         return script;
+                                     }
+                                 })
+                        .subscribe(new Testing.Result<FleetProgress<String>>());
+
+        verify(peripheral).connect(anyInt(), any(OperationTimeout.class));
+        verify(peripheral, never()).disconnect();
+
+        subscription.unsubscribe();
+        verify(peripheral).disconnect();
+    }
+
+    @Test
+    public void validatesSettings() {
+        final FleetExecutor executor = new FleetExecutor(stack);
+        assertThrows(new AssertExtensions.ThrowingRunnable() {
+            @Override
+            public void run() throws Exception {
+                executor.setRetryDelay(-1);
+            }
+        });
+        assertThrows(new AssertExtensions.ThrowingRunnable() {
+            @Override
+            public void run() throws Exception {
+                executor.setScanDuration(0);
+            }
+        });
+        assertThrows(new AssertExtensions.ThrowingRunnable() {
+            @Override
+            public void run() throws Exception {
+                executor.setOperationTimeout(0);
+            }
+        });
+        assertThrows(new AssertExtensions.ThrowingRunnable() {
+            @Override
+            public void run() throws Exception {
+                executor.setMaximumScans(0);
+            }
+        });
+    }
+}
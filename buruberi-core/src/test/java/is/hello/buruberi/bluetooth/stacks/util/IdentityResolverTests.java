@@ -0,0 +1,84 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import org.junit.Test;
+
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.testing.Testing;
+import is.hello.buruberi.util.AdvertisingDataBuilder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IdentityResolverTests extends BuruberiTestCase {
+    // Sample data from the Bluetooth Core Specification, Vol 3, Part H, Appendix D.7
+    private static final String IRK = "EC0234A357C8AD05341010A60A397D9B";
+    private static final String RESOLVABLE_ADDRESS = "70:81:94:0D:FB:AA";
+
+    @Test
+    public void addressHash() throws Exception {
+        final IdentityResolver.Key key = new IdentityResolver.Key("identity", Bytes.fromString(IRK));
+        assertEquals(0x0DFBAA, key.ah(0x708194));
+    }
+
+    @Test
+    public void isResolvablePrivateAddress() throws Exception {
+        assertTrue(IdentityResolver.isResolvablePrivateAddress(CompactAddressSet.parseAddress(RESOLVABLE_ADDRESS)));
+        assertFalse(IdentityResolver.isResolvablePrivateAddress(CompactAddressSet.parseAddress(Testing.DEVICE_ADDRESS)));
+        assertFalse(IdentityResolver.isResolvablePrivateAddress(CompactAddressSet.parseAddress("30:81:94:0D:FB:AA")));
+    }
+
+    @Test
+    public void resolvesWithKeys() throws Exception {
+        final IdentityResolver resolver = new IdentityResolver();
+        resolver.addIdentityResolvingKey(Testing.DEVICE_ADDRESS, Bytes.fromString(IRK));
+
+        final byte[] scanRecord = Testing.EMPTY_SCAN_RESPONSE;
+        assertEquals(Testing.DEVICE_ADDRESS, resolver.resolve(RESOLVABLE_ADDRESS, scanRecord));
+        assertEquals("70:81:94:0D:FB:AB", resolver.resolve("70:81:94:0D:FB:AB", scanRecord));
+        assertEquals("BA:BE:CA:FE:BE:EF", resolver.resolve("BA:BE:CA:FE:BE:EF", scanRecord));
+    }
+
+    @Test
+    public void fallsBackToFingerprint() throws Exception {
+        final IdentityResolver resolver = new IdentityResolver();
+        final byte[] scanRecord = new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_LOCAL_NAME, "53656E7365")
+                .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0301")
+                .buildRaw();
+        final byte[] laterScanRecord = new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_LOCAL_NAME, "53656E7365")
+                .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0302")
+                .buildRaw();
+
+        assertEquals("70:00:00:00:00:01", resolver.resolve("70:00:00:00:00:01", scanRecord));
+
+        resolver.setFingerprintRecordTypes(AdvertisingData.TYPE_LOCAL_NAME);
+        final String identity = resolver.resolve("70:00:00:00:00:01", scanRecord);
+        assertTrue(identity.startsWith(IdentityResolver.FINGERPRINT_PREFIX));
+        assertEquals(identity, resolver.resolve("70:00:00:00:00:02", laterScanRecord));
+
+        resolver.setFingerprintRecordTypes(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA);
+        assertNotEquals(resolver.resolve("70:00:00:00:00:01", scanRecord),
+                        resolver.resolve("70:00:00:00:00:02", laterScanRecord));
+
+        resolver.setFingerprintRecordTypes();
+        assertEquals("70:00:00:00:00:01", resolver.resolve("70:00:00:00:00:01", scanRecord));
+    }
+}
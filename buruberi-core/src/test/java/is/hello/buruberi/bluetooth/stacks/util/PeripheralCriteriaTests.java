@@ -0,0 +1,180 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import is.hello.buruberi.testing.BuruberiTestCase;
+import is.hello.buruberi.testing.Testing;
+import is.hello.buruberi.util.AdvertisingDataBuilder;
+import rx.functions.Func1;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PeripheralCriteriaTests extends BuruberiTestCase {
+    private static final String SERVICE_IDENTIFIER = "23D1BCEA5F782315DEEF1212E1FE0000";
+
+    @Test
+    public void matchesAddressAndAdvertisingData() throws Exception {
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.addPeripheralAddress(Testing.DEVICE_ADDRESS);
+        criteria.addExactMatchPredicate(AdvertisingData.TYPE_SERVICE_DATA_128_BIT_UUID,
+                                        SERVICE_IDENTIFIER);
+
+        final AdvertisingData matching = new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_SERVICE_DATA_128_BIT_UUID, SERVICE_IDENTIFIER)
+                .build();
+        final AdvertisingData notMatching = new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_SERVICE_DATA_128_BIT_UUID, "00D1BCEA5F782315DEEF1212E1FE00FF")
+                .build();
+
+        assertTrue(criteria.matches(Testing.DEVICE_ADDRESS, matching));
+        assertFalse(criteria.matches(Testing.DEVICE_ADDRESS, notMatching));
+        assertFalse(criteria.matches("BA:BE:CA:FE:BE:EF", matching));
+    }
+
+    @Test
+    public void adaptiveOrderingRunsSelectiveTestsFirst() throws Exception {
+        final AtomicInteger permissiveCalls = new AtomicInteger(0);
+        final AtomicInteger selectiveCalls = new AtomicInteger(0);
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setWantsAdaptiveOrdering(true);
+        criteria.addPredicate(new Func1<AdvertisingData, Boolean>() {
+            @Override
+            public Boolean call(AdvertisingData advertisingData) {
+                permissiveCalls.incrementAndGet();
+                return true;
+            }
+        });
+        criteria.addPredicate(new Func1<AdvertisingData, Boolean>() {
+            @Override
+            public Boolean call(AdvertisingData advertisingData) {
+                selectiveCalls.incrementAndGet();
+                return false;
+            }
+        });
+
+        final AdvertisingData advertisingData = new AdvertisingDataBuilder().build();
+        for (int i = 0; i < 100; i++) {
+            assertFalse(criteria.matches(Testing.DEVICE_ADDRESS, advertisingData));
+        }
+        assertEquals(100, selectiveCalls.get());
+
+        permissiveCalls.set(0);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(criteria.matches(Testing.DEVICE_ADDRESS, advertisingData));
+        }
+        assertEquals(0, permissiveCalls.get());
+        assertEquals(200, selectiveCalls.get());
+    }
+
+    @Test
+    public void adaptiveOrderingKeepsAllTests() throws Exception {
+        final PeripheralCriteria criteria = new PeripheralCriteria();
+        criteria.setWantsAdaptiveOrdering(true);
+        criteria.addPeripheralAddress(Testing.DEVICE_ADDRESS);
+        criteria.addExactMatchPredicate(AdvertisingData.TYPE_SERVICE_DATA_128_BIT_UUID,
+                                        SERVICE_IDENTIFIER);
+
+        final AdvertisingData matching = new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_SERVICE_DATA_128_BIT_UUID, SERVICE_IDENTIFIER)
+                .build();
+        for (int i = 0; i < 200; i++) {
+            assertFalse(criteria.matches("BA:BE:CA:FE:BE:EF", matching));
+        }
+
+        assertTrue(criteria.matches(Testing.DEVICE_ADDRESS, matching));
+        assertFalse(criteria.matches(Testing.DEVICE_ADDRESS, new AdvertisingDataBuilder().build()));
+    }
+
+    @Test
+    public void indexMatchesSubscribers() throws Exception {
+        final PeripheralCriteriaIndex<String> index = new PeripheralCriteriaIndex<>();
+
+        index.add("service", new PeripheralCriteria()
+                .addExactMatchPredicate(AdvertisingData.TYPE_SERVICE_DATA_128_BIT_UUID,
+                                        SERVICE_IDENTIFIER));
+        index.add("company", new PeripheralCriteria()
+                .addStartsWithPredicate(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA03"));
+        index.add("both", new PeripheralCriteria()
+                .addStartsWithPredicate(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0301")
+                .addStartsWithPredicate(AdvertisingData.TYPE_SERVICE_DATA_128_BIT_UUID, "23D1"));
+        index.add("address", new PeripheralCriteria()
+                .addPeripheralAddress(Testing.DEVICE_ADDRESS));
+        index.add("predicate", new PeripheralCriteria()
+                .addStartsWithPredicate(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA03")
+                .addPredicate(new Func1<AdvertisingData, Boolean>() {
+                    @Override
+                    public Boolean call(AdvertisingData advertisingData) {
+                        return false;
+                    }
+                }));
+        assertEquals(5, index.size());
+
+        final AdvertisingData advertisingData = new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_SERVICE_DATA_128_BIT_UUID, SERVICE_IDENTIFIER)
+                .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA030102")
+                .build();
+        assertEquals(new HashSet<>(Arrays.asList("service", "company", "both", "address")),
+                     index.match(Testing.DEVICE_ADDRESS, advertisingData));
+        assertEquals(new HashSet<>(Arrays.asList("service", "company", "both")),
+                     index.match("BA:BE:CA:FE:BE:EF", advertisingData));
+
+        final AdvertisingData otherCompany = new AdvertisingDataBuilder()
+                .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "4C000215")
+                .build();
+        assertEquals(Collections.<String>emptySet(), index.match("BA:BE:CA:FE:BE:EF", otherCompany));
+
+        index.remove("company");
+        index.remove("both");
+        assertEquals(Collections.singleton("service"),
+                     index.match("BA:BE:CA:FE:BE:EF", advertisingData));
+    }
+
+    @Test
+    public void indexAgreesWithCriteria() throws Exception {
+        final PeripheralCriteria criteria = new PeripheralCriteria()
+                .addStartsWithPredicate(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA03")
+                .addExactMatchPredicate(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0305");
+        final PeripheralCriteriaIndex<String> index = new PeripheralCriteriaIndex<>();
+        index.add("criteria", criteria);
+
+        final AdvertisingData[] candidates = {
+                new AdvertisingDataBuilder().build(),
+                new AdvertisingDataBuilder()
+                        .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0305")
+                        .build(),
+                new AdvertisingDataBuilder()
+                        .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA030506")
+                        .build(),
+                new AdvertisingDataBuilder()
+                        .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0306")
+                        .add(AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, "EA0305")
+                        .build(),
+        };
+        for (final AdvertisingData candidate : candidates) {
+            assertEquals(criteria.matches(Testing.DEVICE_ADDRESS, candidate),
+                         index.match(Testing.DEVICE_ADDRESS, candidate).contains("criteria"));
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 Hello Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package is.hello.buruberi.bluetooth.stacks.util;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import is.hello.buruberi.testing.BuruberiTestCase;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ShortUuidTests extends BuruberiTestCase {
+    @Test
+    public void toUuid() {
+        assertThat(new ShortUuid(0xFEE1).toUuid(),
+                   is(equalTo(UUID.fromString("0000FEE1-0000-1000-8000-00805F9B34FB"))));
+    }
+
+    @Test
+    public void fromUuid() {
+        assertThat(ShortUuid.fromUuid(UUID.fromString("0000FEE1-0000-1000-8000-00805F9B34FB")),
+                   is(equalTo(new ShortUuid(0xFEE1))));
+        assertThat(ShortUuid.fromUuid(UUID.fromString("0001FEE1-0000-1000-8000-00805F9B34FB")),
+                   is(nullValue()));
+        assertThat(ShortUuid.fromUuid(UUID.fromString("00001510-1212-EFDE-1523-785FEABCD123")),
+                   is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsWideValues() {
+        new ShortUuid(0x10000);
+    }
+}
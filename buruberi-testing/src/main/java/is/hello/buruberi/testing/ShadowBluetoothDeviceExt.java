@@ -104,7 +104,9 @@ public class ShadowBluetoothDeviceExt extends ShadowBluetoothDevice {
     @Implementation
     public BluetoothGatt connectGatt(Context context, boolean autoConnect,
                                      BluetoothGattCallback callback, int transport) {
-        return connectGatt(context, autoConnect, callback);
+        final BluetoothGatt bluetoothGatt = connectGatt(context, autoConnect, callback);
+        BuruberiShadows.shadowOf(bluetoothGatt).setTransport(transport);
+        return bluetoothGatt;
     }
 
     //endregion
@@ -15,6 +15,7 @@
 */
 package is.hello.buruberi.testing;
 
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
@@ -42,6 +43,7 @@ public class ShadowBluetoothGatt {
     private final List<Pair<Call, Object[]>> calls = new ArrayList<>();
     private BluetoothGattCallback gattCallback;
     private boolean autoConnect;
+    private int transport = BluetoothDevice.TRANSPORT_AUTO;
     private List<BluetoothGattService> services;
 
 
@@ -61,6 +63,14 @@ public class ShadowBluetoothGatt {
         this.autoConnect = autoConnect;
     }
 
+    public int getTransport() {
+        return transport;
+    }
+
+    void setTransport(int transport) {
+        this.transport = transport;
+    }
+
     @Implementation
     public boolean connect() {
         trackCall(Call.CONNECT);